@@ -26,6 +26,9 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
@@ -40,6 +43,8 @@ import org.apache.wicket.spring.injection.annot.SpringBean;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import de.tudarmstadt.ukp.clarin.webanno.api.AnnotationService;
 import de.tudarmstadt.ukp.clarin.webanno.api.RepositoryService;
@@ -76,6 +81,10 @@ public class AnnotationServiceImpl
     @SpringBean(name = "documentRepository")
     private RepositoryService projectRepository;
 
+    private final AtomicLong schemaVersionCounter = new AtomicLong();
+    private final Map<Long, Long> schemaVersions = new ConcurrentHashMap<Long, Long>();
+    private final Map<Long, TagSetIndex> tagSetIndexes = new ConcurrentHashMap<Long, TagSetIndex>();
+
     public AnnotationServiceImpl()
     {
 
@@ -87,6 +96,7 @@ public class AnnotationServiceImpl
         throws IOException
     {
         entityManager.persist(aTag);
+        updateSchemaVersion(aTag.getTagSet().getProject());
 
         createLog(aTag.getTagSet().getProject(), aUser.getUsername()).info(
                 " Added tag [" + aTag.getName() + "] with ID [" + aTag.getId() + "] to TagSet ["
@@ -106,6 +116,7 @@ public class AnnotationServiceImpl
         else {
             entityManager.merge(aTagSet);
         }
+        updateSchemaVersion(aTagSet.getProject());
         createLog(aTagSet.getProject(), aUser.getUsername()).info(
                 " Added tagset [" + aTagSet.getName() + "] with ID [" + aTagSet.getId() + "]");
         createLog(aTagSet.getProject(), aUser.getUsername()).removeAllAppenders();
@@ -122,6 +133,7 @@ public class AnnotationServiceImpl
         else {
             entityManager.merge(aLayer);
         }
+        updateSchemaVersion(aLayer.getProject());
         createLog(aLayer.getProject(), aUser.getUsername()).info(
                 " Added layer [" + aLayer.getName() + "] with ID [" + aLayer.getId() + "]");
         createLog(aLayer.getProject(), aUser.getUsername()).removeAllAppenders();
@@ -137,6 +149,7 @@ public class AnnotationServiceImpl
         else {
             entityManager.merge(aFeature);
         }
+        updateSchemaVersion(aFeature.getProject());
     }
 
     @Override
@@ -151,7 +164,12 @@ public class AnnotationServiceImpl
     @Override
     public boolean existsTag(String aTagName, TagSet aTagSet)
     {
+        if (getTagSetIndex(aTagSet).contains(aTagName)) {
+            return true;
+        }
 
+        // The index may have been built while the tag was being created, so a miss is confirmed
+        // against the database.
         try {
             getTag(aTagName, aTagSet);
             return true;
@@ -788,6 +806,38 @@ public class AnnotationServiceImpl
         return tags;
     }
 
+    @Override
+    @Transactional
+    public List<String> listTagNames(TagSet aTagSet, String aPrefix, int aFirst, int aCount)
+    {
+        return getTagSetIndex(aTagSet).list(aPrefix, aFirst, aCount);
+    }
+
+    @Override
+    @Transactional
+    public int countTags(TagSet aTagSet)
+    {
+        return getTagSetIndex(aTagSet).size();
+    }
+
+    /**
+     * Get the index of the tag names in the given tagset. The index is built once per schema
+     * version of the project and shared by all users.
+     */
+    private TagSetIndex getTagSetIndex(TagSet aTagSet)
+    {
+        long version = aTagSet.getProject() != null ? getSchemaVersion(aTagSet.getProject()) : 0;
+        TagSetIndex index = tagSetIndexes.get(aTagSet.getId());
+        if (index == null || index.getVersion() != version) {
+            List<String> names = entityManager
+                    .createQuery("SELECT name FROM Tag WHERE tagSet = :tagSet", String.class)
+                    .setParameter("tagSet", aTagSet).getResultList();
+            index = new TagSetIndex(version, names);
+            tagSetIndexes.put(aTagSet.getId(), index);
+        }
+        return index;
+    }
+
     @Override
     @Transactional
     public List<TagSet> listTagSets()
@@ -810,6 +860,7 @@ public class AnnotationServiceImpl
     public void removeTag(Tag aTag)
     {
         entityManager.remove(aTag);
+        updateSchemaVersion(aTag.getTagSet().getProject());
     }
 
     @Override
@@ -820,6 +871,8 @@ public class AnnotationServiceImpl
             entityManager.remove(tag);
         }
         entityManager.remove(aTagSet);
+        tagSetIndexes.remove(aTagSet.getId());
+        updateSchemaVersion(aTagSet.getProject());
     }
 
     @Override
@@ -827,6 +880,7 @@ public class AnnotationServiceImpl
     public void removeAnnotationFeature(AnnotationFeature aFeature)
     {
         entityManager.remove(aFeature);
+        updateSchemaVersion(aFeature.getProject());
 
     }
 
@@ -835,6 +889,7 @@ public class AnnotationServiceImpl
     public void removeAnnotationLayer(AnnotationLayer aLayer)
     {
         entityManager.remove(aLayer);
+        updateSchemaVersion(aLayer.getProject());
 
     }
 
@@ -858,6 +913,45 @@ public class AnnotationServiceImpl
 		for (Tag tag : listTags(aTagSet)) {
 			entityManager.remove(tag);
 		}
-
+		updateSchemaVersion(aTagSet.getProject());
 	}
+
+    @Override
+    public long getSchemaVersion(Project aProject)
+    {
+        Long version = schemaVersions.get(aProject.getId());
+        return version != null ? version : 0;
+    }
+
+    /**
+     * Bump the schema version of the project once the current transaction has been committed.
+     * Bumping it earlier would allow a concurrent request to cache data derived from the
+     * uncommitted schema under the new version.
+     */
+    private void updateSchemaVersion(final Project aProject)
+    {
+        if (aProject == null) {
+            return;
+        }
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager
+                    .registerSynchronization(new TransactionSynchronizationAdapter()
+                    {
+                        @Override
+                        public void afterCommit()
+                        {
+                            bumpSchemaVersion(aProject);
+                        }
+                    });
+        }
+        else {
+            bumpSchemaVersion(aProject);
+        }
+    }
+
+    private void bumpSchemaVersion(Project aProject)
+    {
+        schemaVersions.put(aProject.getId(), schemaVersionCounter.incrementAndGet());
+    }
 }
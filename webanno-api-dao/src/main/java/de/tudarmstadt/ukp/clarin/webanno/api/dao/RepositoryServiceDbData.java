@@ -60,6 +60,9 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -114,6 +117,8 @@ import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import de.tudarmstadt.ukp.clarin.webanno.api.AnnotationService;
 import de.tudarmstadt.ukp.clarin.webanno.api.RepositoryService;
@@ -225,7 +230,19 @@ public class RepositoryServiceDbData
     // The annotation preference properties File name
     String annotationPreferencePropertiesFileName;
 
-    private final Object lock = new Object();
+    // Locks for reading and writing CAS files by document ID and user. Reading or writing the
+    // CAS of one document and user does not block access to the CASes of others.
+    private final ConcurrentMap<String, Object> casLocks = new ConcurrentHashMap<String, Object>();
+
+    // CAS versions by document ID and user. A new version number is drawn from the counter
+    // whenever a CAS is written or removed.
+    private final AtomicLong casVersionCounter = new AtomicLong();
+    private final Map<String, Long> casVersions = new ConcurrentHashMap<String, Long>();
+
+    // Constraints versions by project ID. A new version number is drawn from the counter
+    // whenever a constraint set is created, changed or removed.
+    private final AtomicLong constraintsVersionCounter = new AtomicLong();
+    private final Map<Long, Long> constraintsVersions = new ConcurrentHashMap<Long, Long>();
 
     public RepositoryServiceDbData()
     {
@@ -426,6 +443,38 @@ public class RepositoryServiceDbData
         return new File(getAnnotationFolder(aSourceDocument), aUsername + ".ser").exists();
     }
 
+    @Override
+    public long getCasVersion(SourceDocument aSourceDocument, String aUsername)
+    {
+        Long version = casVersions.get(casVersionKey(aSourceDocument, aUsername));
+        return version != null ? version : 0;
+    }
+
+    private void updateCasVersion(SourceDocument aSourceDocument, String aUsername)
+    {
+        casVersions.put(casVersionKey(aSourceDocument, aUsername),
+                casVersionCounter.incrementAndGet());
+    }
+
+    private static String casVersionKey(SourceDocument aSourceDocument, String aUsername)
+    {
+        return aSourceDocument.getId() + "/" + aUsername;
+    }
+
+    private Object getCasLock(SourceDocument aSourceDocument, String aUsername)
+    {
+        String key = casVersionKey(aSourceDocument, aUsername);
+        Object casLock = casLocks.get(key);
+        if (casLock == null) {
+            Object newLock = new Object();
+            casLock = casLocks.putIfAbsent(key, newLock);
+            if (casLock == null) {
+                casLock = newLock;
+            }
+        }
+        return casLock;
+    }
+
     @Override
     @Transactional(noRollbackFor = NoResultException.class)
     public boolean existsCorrectionCas(SourceDocument aSourceDocument)
@@ -1369,6 +1418,7 @@ public class RepositoryServiceDbData
                 .exists()) {
             FileUtils.forceDelete(new File(getAnnotationFolder(aSourceDocument),
                     WebAnnoConst.CURATION_USER + ".ser"));
+            updateCasVersion(aSourceDocument, WebAnnoConst.CURATION_USER);
 
             createLog(aSourceDocument.getProject()).info(
                     " Removed Curated document from  project [" + aSourceDocument.getProject()
@@ -1737,7 +1787,7 @@ public class RepositoryServiceDbData
                     + aDocument.getProject().getId() + ")", e);
         }
         
-        synchronized (lock) {
+        synchronized (getCasLock(aDocument, aUserName)) {
             File annotationFolder = getAnnotationFolder(aDocument);
             FileUtils.forceMkdir(annotationFolder);
 
@@ -1765,6 +1815,7 @@ public class RepositoryServiceDbData
 
                 File targetPath = getAnnotationFolder(aDocument);
                 writeSerializedCas(aJcas, new File(targetPath, aUserName + ".ser"));
+                updateCasVersion(aDocument, aUserName);
 
                 createLog(aDocument.getProject()).info(
                         "Updated annotation document [" + aDocument.getName() + "] " + "with ID ["
@@ -1897,7 +1948,7 @@ public class RepositoryServiceDbData
 
         // DebugUtils.smallStack();
 
-        synchronized (lock) {
+        synchronized (getCasLock(aDocument, aUsername)) {
             File annotationFolder = getAnnotationFolder(aDocument);
 
             String file = aUsername + ".ser";
@@ -2434,6 +2485,7 @@ public class RepositoryServiceDbData
     public void createConstraintSet(ConstraintSet aSet)
     {
         entityManager.persist(aSet);
+        updateConstraintsVersion(aSet.getProject());
         createLog(aSet.getProject()).info(
                 "Read constraints set [" + aSet.getName() + "] for project ["
                         + aSet.getProject().getName() + "] with ID [" + aSet.getProject().getId()
@@ -2446,6 +2498,7 @@ public class RepositoryServiceDbData
     public void removeConstraintSet(ConstraintSet aSet)
     {
         entityManager.remove(entityManager.merge(aSet));
+        updateConstraintsVersion(aSet.getProject());
         createLog(aSet.getProject()).info(
                 " Removed Curated document from  project [" + aSet.getProject()
                         + "] for the source document [" + aSet.getId());
@@ -2480,6 +2533,7 @@ public class RepositoryServiceDbData
         String filename = aSet.getId() + ".txt";
         FileUtils.forceMkdir(new File(constraintRulesPath));
         FileUtils.copyInputStreamToFile(aContent, new File(constraintRulesPath, filename));
+        updateConstraintsVersion(aSet.getProject());
 
         createLog(aSet.getProject()).info(
                 "Created constraints set file [" + filename + "] for project ["
@@ -2487,6 +2541,42 @@ public class RepositoryServiceDbData
                         + "]");
         createLog(aSet.getProject()).removeAllAppenders();
     }
+
+    @Override
+    public long getConstraintsVersion(Project aProject)
+    {
+        Long version = constraintsVersions.get(aProject.getId());
+        return version != null ? version : 0;
+    }
+
+    /**
+     * Bump the constraints version of the project once the current transaction has been
+     * committed. Bumping it earlier would allow a concurrent request to cache the old constraint
+     * sets under the new version.
+     */
+    private void updateConstraintsVersion(final Project aProject)
+    {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager
+                    .registerSynchronization(new TransactionSynchronizationAdapter()
+                    {
+                        @Override
+                        public void afterCommit()
+                        {
+                            bumpConstraintsVersion(aProject);
+                        }
+                    });
+        }
+        else {
+            bumpConstraintsVersion(aProject);
+        }
+    }
+
+    private void bumpConstraintsVersion(Project aProject)
+    {
+        constraintsVersions.put(aProject.getId(), constraintsVersionCounter.incrementAndGet());
+    }
+
     /**
      * Provides exporting constraints as a file.
      */
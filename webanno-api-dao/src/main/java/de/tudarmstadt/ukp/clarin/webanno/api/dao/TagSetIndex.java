@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright 2016
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.api.dao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Immutable index over the tag names of a tagset. Supports checking if a tag exists and listing
+ * the tags starting with a given prefix (ignoring case) page by page.
+ */
+public class TagSetIndex
+{
+    private static final Comparator<String> ORDER = new Comparator<String>()
+    {
+        @Override
+        public int compare(String aO1, String aO2)
+        {
+            int result = key(aO1).compareTo(key(aO2));
+            return result != 0 ? result : aO1.compareTo(aO2);
+        }
+    };
+
+    private final long version;
+    private final Set<String> names;
+
+    /**
+     * Tag names sorted by their lower-cased form.
+     */
+    private final String[] sortedNames;
+
+    /**
+     * Lower-cased tag names in the same order as {@link #sortedNames}.
+     */
+    private final String[] sortedKeys;
+
+    public TagSetIndex(long aVersion, Collection<String> aNames)
+    {
+        version = aVersion;
+        names = new HashSet<>(aNames);
+        sortedNames = names.toArray(new String[names.size()]);
+        Arrays.sort(sortedNames, ORDER);
+        sortedKeys = new String[sortedNames.length];
+        for (int i = 0; i < sortedNames.length; i++) {
+            sortedKeys[i] = key(sortedNames[i]);
+        }
+    }
+
+    public long getVersion()
+    {
+        return version;
+    }
+
+    public boolean contains(String aName)
+    {
+        return names.contains(aName);
+    }
+
+    public int size()
+    {
+        return sortedNames.length;
+    }
+
+    /**
+     * List the tag names starting with the given prefix, ignoring case.
+     *
+     * @param aPrefix
+     *            the prefix. If it is empty, all tag names match.
+     * @param aFirst
+     *            the index of the first matching name to return.
+     * @param aCount
+     *            the maximum number of names to return.
+     * @return the matching names.
+     */
+    public List<String> list(String aPrefix, int aFirst, int aCount)
+    {
+        String prefix = key(aPrefix == null ? "" : aPrefix);
+
+        // Find the first name not sorting before the prefix - all names starting with the prefix
+        // follow it directly.
+        int start = Arrays.binarySearch(sortedKeys, prefix);
+        if (start < 0) {
+            start = -(start + 1);
+        }
+        else {
+            // Several names may have the same key - go to the first one
+            while (start > 0 && sortedKeys[start - 1].equals(prefix)) {
+                start--;
+            }
+        }
+
+        List<String> result = new ArrayList<>();
+        for (int i = start + aFirst; i < sortedKeys.length && result.size() < aCount; i++) {
+            if (!sortedKeys[i].startsWith(prefix)) {
+                break;
+            }
+            result.add(sortedNames[i]);
+        }
+        return result;
+    }
+
+    private static String key(String aName)
+    {
+        return aName.toLowerCase(Locale.ROOT);
+    }
+}
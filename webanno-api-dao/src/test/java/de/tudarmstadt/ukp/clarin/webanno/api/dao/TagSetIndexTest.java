@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright 2016
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.api.dao;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class TagSetIndexTest
+{
+    private final TagSetIndex index = new TagSetIndex(1, asList("NN", "NNS", "nnp", "VB", "VBD",
+            "ADJ", "Nomen"));
+
+    @Test
+    public void testContains()
+    {
+        assertTrue(index.contains("NN"));
+        assertTrue(index.contains("nnp"));
+        assertFalse(index.contains("nn"));
+        assertFalse(index.contains("XY"));
+        assertEquals(7, index.size());
+    }
+
+    @Test
+    public void testPrefixIgnoresCase()
+    {
+        assertEquals(asList("NN", "nnp", "NNS"), index.list("nn", 0, 10));
+        assertEquals(asList("NN", "nnp", "NNS", "Nomen"), index.list("N", 0, 10));
+        assertEquals(asList("VB", "VBD"), index.list("vb", 0, 10));
+    }
+
+    @Test
+    public void testPaging()
+    {
+        assertEquals(asList("NN", "nnp"), index.list("n", 0, 2));
+        assertEquals(asList("NNS", "Nomen"), index.list("n", 2, 2));
+        assertEquals(Collections.emptyList(), index.list("n", 4, 2));
+    }
+
+    @Test
+    public void testEmptyPrefix()
+    {
+        assertEquals(asList("ADJ", "NN", "nnp", "NNS", "Nomen", "VB", "VBD"),
+                index.list("", 0, 10));
+        assertEquals(asList("ADJ", "NN"), index.list(null, 0, 2));
+    }
+
+    @Test
+    public void testNoMatch()
+    {
+        assertEquals(Collections.emptyList(), index.list("x", 0, 10));
+        assertEquals(Collections.emptyList(), index.list("zzz", 0, 10));
+    }
+}
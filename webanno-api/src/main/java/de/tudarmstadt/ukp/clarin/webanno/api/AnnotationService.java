@@ -345,6 +345,32 @@ public interface AnnotationService
      */
     List<Tag> listTags(TagSet tag);
 
+    /**
+     * List the names of the tags in a {@link TagSet} which start with the given prefix, ignoring
+     * case. The names are served from an in-memory index, so this is suitable for autocompleting
+     * tags from very large tagsets.
+     *
+     * @param tagSet
+     *            the tagset.
+     * @param prefix
+     *            the prefix. If it is empty, all tag names match.
+     * @param first
+     *            the index of the first matching name to return.
+     * @param count
+     *            the maximum number of names to return.
+     * @return the tag names ordered by name.
+     */
+    List<String> listTagNames(TagSet tagSet, String prefix, int first, int count);
+
+    /**
+     * Count the tags in a {@link TagSet}.
+     *
+     * @param tagSet
+     *            the tagset.
+     * @return the number of tags.
+     */
+    int countTags(TagSet tagSet);
+
     /**
      * list all {@link TagSet} in the system
      *
@@ -398,4 +424,17 @@ public interface AnnotationService
     TagSet createTagSet(String aDescription, String aLanguage, String aTagSetName, String[] aTags,
             String[] aTagDescription, Project aProject, User aUser)
                 throws IOException;
+
+    /**
+     * Get the version of the annotation schema (layers, features, tagsets and tags) of the given
+     * project. The version changes every time any part of the schema is created, updated or
+     * removed through this service and the change has been committed, so it can be used as part
+     * of the key when caching data derived from the schema. Versions are only valid while the
+     * application is running.
+     *
+     * @param project
+     *            the project.
+     * @return the schema version.
+     */
+    long getSchemaVersion(Project project);
 }
@@ -370,6 +370,20 @@ public interface RepositoryService
      */
     boolean existsCorrectionCas(SourceDocument sourceDocument);
 
+    /**
+     * Get the version of the CAS of the given user for the given {@link SourceDocument}. The
+     * version changes every time the CAS is written or removed, so it can be used as part of the
+     * key when caching data derived from the CAS. Versions are only valid while the application is
+     * running.
+     *
+     * @param sourceDocument
+     *            the source document.
+     * @param username
+     *            the username (or the CURATION_USER/CORRECTION_USER pseudo users).
+     * @return the CAS version.
+     */
+    long getCasVersion(SourceDocument sourceDocument, String username);
+
     /**
      * Exports an {@link AnnotationDocument } CAS Object as TCF/TXT/XMI... file formats.
      *
@@ -1149,4 +1163,15 @@ public interface RepositoryService
      * @return true if exists
      */
     boolean existConstraintSet(String constraintSetName, Project aProject);
+
+    /**
+     * Get the version of the constraints of the given project. The version changes every time a
+     * constraint set is created, written or removed, so it can be used to invalidate parsed
+     * constraints. Versions are only valid while the application is running.
+     *
+     * @param aProject
+     *            the project.
+     * @return the constraints version.
+     */
+    long getConstraintsVersion(Project aProject);
 }
@@ -18,10 +18,15 @@
 package de.tudarmstadt.ukp.clarin.webanno.brat.annotation;
 
 import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.TypeUtil.getAdapter;
+import static de.tudarmstadt.ukp.clarin.webanno.brat.util.BratAnnotatorUtility.getCasUsername;
+import static de.tudarmstadt.ukp.clarin.webanno.brat.util.BratAnnotatorUtility.isUserCas;
 
 import java.io.IOException;
-import java.io.StringWriter;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
 
+import org.apache.commons.io.output.StringBuilderWriter;
 import org.apache.commons.lang.exception.ExceptionUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -29,6 +34,8 @@ import org.apache.uima.UIMAException;
 import org.apache.uima.cas.CAS;
 import org.apache.uima.cas.text.AnnotationFS;
 import org.apache.uima.jcas.JCas;
+import org.apache.wicket.Component;
+import org.apache.wicket.MarkupContainer;
 import org.apache.wicket.ajax.AbstractDefaultAjaxBehavior;
 import org.apache.wicket.ajax.AjaxRequestTarget;
 import org.apache.wicket.behavior.AbstractAjaxBehavior;
@@ -45,7 +52,6 @@ import org.apache.wicket.request.cycle.AbstractRequestCycleListener;
 import org.apache.wicket.request.cycle.RequestCycle;
 import org.apache.wicket.spring.injection.annot.SpringBean;
 
-import com.fasterxml.jackson.core.JsonGenerator;
 import com.googlecode.wicket.jquery.ui.resource.JQueryUIResourceReference;
 
 import de.tudarmstadt.ukp.clarin.webanno.api.AnnotationService;
@@ -55,11 +61,14 @@ import de.tudarmstadt.ukp.clarin.webanno.brat.annotation.component.AnnotationDet
 import de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasController;
 import de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil;
 import de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAnnotationException;
+import de.tudarmstadt.ukp.clarin.webanno.brat.controller.RenderCache;
 import de.tudarmstadt.ukp.clarin.webanno.brat.controller.SpanAdapter;
+import de.tudarmstadt.ukp.clarin.webanno.brat.controller.WindowPrefetcher;
 import de.tudarmstadt.ukp.clarin.webanno.brat.display.model.Offsets;
 import de.tudarmstadt.ukp.clarin.webanno.brat.display.model.OffsetsList;
 import de.tudarmstadt.ukp.clarin.webanno.brat.display.model.VID;
 import de.tudarmstadt.ukp.clarin.webanno.brat.message.ArcAnnotationResponse;
+import de.tudarmstadt.ukp.clarin.webanno.brat.message.DocumentDeltaResponse;
 import de.tudarmstadt.ukp.clarin.webanno.brat.message.GetCollectionInformationResponse;
 import de.tudarmstadt.ukp.clarin.webanno.brat.message.GetDocumentResponse;
 import de.tudarmstadt.ukp.clarin.webanno.brat.message.LoadConfResponse;
@@ -78,7 +87,6 @@ import de.tudarmstadt.ukp.clarin.webanno.brat.resource.JQueryJsonResourceReferen
 import de.tudarmstadt.ukp.clarin.webanno.brat.resource.JQuerySvgDomResourceReference;
 import de.tudarmstadt.ukp.clarin.webanno.brat.resource.JQuerySvgResourceReference;
 import de.tudarmstadt.ukp.clarin.webanno.brat.resource.WebfontResourceReference;
-import de.tudarmstadt.ukp.clarin.webanno.model.Mode;
 import de.tudarmstadt.ukp.clarin.webanno.support.JSONUtil;
 import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Sentence;
 
@@ -107,11 +115,32 @@ public class BratAnnotator
     @SpringBean(name = "annotationService")
     private AnnotationService annotationService;
 
+    @SpringBean(name = "renderCache")
+    private RenderCache renderCache;
+
+    @SpringBean(name = "windowPrefetcher")
+    private WindowPrefetcher windowPrefetcher;
+
     private WebMarkupContainer vis;
     private AbstractAjaxBehavior controller;
     private String collection = "";
     AnnotationDetailEditorPanel editor;
 
+    /**
+     * The data last sent to the brat client. Used to send only the changes after an edit. This is
+     * transient - if it is lost, we simply do a full render next time.
+     */
+    private transient GetDocumentResponse lastRenderedResponse;
+
+    /**
+     * Keys of the collection information sent to the browser while this page is shown. The
+     * browser keeps these in a page-global cache, so they do not need to be sent again when the
+     * visualizer is re-created via AJAX.
+     */
+    private transient Set<String> sentCollectionKeys;
+
+    private transient boolean prefetchScheduled;
+
     /**
      * Data models for {@link BratAnnotator}
      *
@@ -203,8 +232,7 @@ public class BratAnnotator
                 
                 // Load the CAS if necessary
                 boolean requiresCasLoading = action.equals(SpanAnnotationResponse.COMMAND)
-                        || action.equals(ArcAnnotationResponse.COMMAND)
-                        || action.equals(GetDocumentResponse.COMMAND);
+                        || action.equals(ArcAnnotationResponse.COMMAND);
                 JCas jCas = null;
                 if (requiresCasLoading) {
                     // Make sure we load the CAS only once here in case of an annotation action.
@@ -239,6 +267,7 @@ public class BratAnnotator
                 }
 
                 Object result = null;
+                String resultJson = null;
                 try {
                     LOG.info("AJAX-RPC CALLED: [" + action + "]");
 
@@ -344,8 +373,7 @@ public class BratAnnotator
                     }
                     else if (action.equals(GetCollectionInformationResponse.COMMAND)) {
                         if (getModelObject().getProject() != null) {
-                            result = controller.getCollectionInformation(getModelObject()
-                                    .getAnnotationLayers());
+                            resultJson = getCollectionInformationJson(getCollectionKey());
                         }
                         else {
                             result = new GetCollectionInformationResponse();
@@ -353,8 +381,23 @@ public class BratAnnotator
                     }
                     else if (action.equals(GetDocumentResponse.COMMAND)) {
                         if (getModelObject().getProject() != null) {
-                            result = controller.getDocumentResponse(getModelObject(), 0, jCas,
-                                    true, annotationService);
+                            // The CAS is only loaded if the window is not in the render cache
+                            String cacheKey = getRenderCacheKey();
+                            resultJson = renderCache.get(cacheKey);
+                            if (resultJson == null) {
+                                GetDocumentResponse response = controller.getDocumentResponse(
+                                        getModelObject(), 0, getCas(getModelObject()), true,
+                                        annotationService);
+                                resultJson = toJson(response);
+                                renderCache.put(cacheKey, resultJson);
+                                lastRenderedResponse = response;
+                            }
+                            else {
+                                // We do not keep the rendered objects in the cache, so the next
+                                // edit has to send the full window again.
+                                lastRenderedResponse = null;
+                            }
+                            prefetchAdjacentWindowsLater();
                         }
                         else {
                             result = new GetDocumentResponse();
@@ -373,16 +416,23 @@ public class BratAnnotator
                 }
 
                 // Serialize updated document to JSON
-                if (result == null) {
+                if (result == null && resultJson == null) {
                     LOG.warn("AJAX-RPC: Action [" + action + "] produced no result!");
                 }
                 else {
-                    String json = toJson(result);
                     // Since we cannot pass the JSON directly to Brat, we attach it to the HTML
                     // element into which BRAT renders the SVG. In our modified ajax.js, we pick it
                     // up from there and then pass it on to BRAT to do the rendering.
-                    aTarget.prependJavaScript("Wicket.$('" + vis.getMarkupId() + "').temp = "
-                            + json + ";");
+                    StringBuilder script = new StringBuilder();
+                    script.append("Wicket.$('").append(vis.getMarkupId()).append("').temp = ");
+                    if (resultJson != null) {
+                        script.append(resultJson);
+                    }
+                    else {
+                        appendJson(script, result);
+                    }
+                    script.append(";");
+                    aTarget.prependJavaScript(script);
                 }
                 aTarget.addChildren(getPage(), FeedbackPanel.class);
                 if (getModelObject().getSelection().getAnnotation().isNotSet()) {
@@ -430,6 +480,10 @@ public class BratAnnotator
     {
         super.renderHead(aResponse);
 
+        // A new visualizer is set up on the client - it does not know about any previously
+        // rendered data anymore.
+        lastRenderedResponse = null;
+
         // Libraries
         aResponse.render(JavaScriptHeaderItem.forReference(JQueryUIResourceReference.get()));
         aResponse.render(JavaScriptHeaderItem.forReference(JQuerySvgResourceReference.get()));
@@ -481,25 +535,118 @@ public class BratAnnotator
         aResponse.render(OnDomReadyHeaderItem.forScript(script.toString()));
     }
 
-    private String bratInitCommand()
+    private CharSequence bratInitCommand()
+    {
+        String key = getCollectionKey();
+        String cached = "window.bratCollections['" + key + "']";
+        boolean sent = sentCollectionKeys != null && sentCollectionKeys.contains(key);
+
+        StringBuilder script = new StringBuilder();
+        script.append("window.bratCollections = window.bratCollections || {};");
+        if (!sent) {
+            script.append(cached).append(" = ");
+            script.append(getCollectionInformationJson(key));
+            script.append(";");
+            if (sentCollectionKeys == null) {
+                sentCollectionKeys = new HashSet<String>();
+            }
+            sentCollectionKeys.add(key);
+        }
+        // The browser should already have the collection information. If it does not, e.g.
+        // because the page was reloaded, it is fetched via AJAX.
+        script.append("if (").append(cached).append(") {");
+        // The visualizer modifies the data it receives, so we pass a copy
+        script.append("Wicket.$('").append(vis.getMarkupId())
+                .append("').dispatcher.post('collectionLoaded', [$.extend(true, {}, ")
+                .append(cached).append(")]);");
+        script.append("} else {");
+        script.append(bratInitLaterCommand());
+        script.append("}");
+        return script;
+    }
+
+    /**
+     * Key of the collection information of the current model in the {@link RenderCache}. It
+     * changes when the layers shown or the schema of the project change.
+     */
+    private String getCollectionKey()
+    {
+        return RenderCache.collectionKey(getModelObject().getProject(),
+                getModelObject().getAnnotationLayers(), annotationService);
+    }
+
+    private String getCollectionInformationJson(String aKey)
     {
-        GetCollectionInformationResponse response = new GetCollectionInformationResponse();
-        response.setEntityTypes(BratAjaxCasController.buildEntityTypes(getModelObject()
-                .getAnnotationLayers(), annotationService));
-        String json = toJson(response);
-        return "Wicket.$('" + vis.getMarkupId() + "').dispatcher.post('collectionLoaded', [" + json
-                + "]);";
+        String json = renderCache.get(aKey);
+        if (json == null) {
+            GetCollectionInformationResponse response = new GetCollectionInformationResponse();
+            response.setEntityTypes(BratAjaxCasController.buildEntityTypes(getModelObject()
+                    .getAnnotationLayers(), annotationService));
+            json = toJson(response);
+            renderCache.put(aKey, json);
+        }
+        return json;
     }
 
-    public String bratRenderCommand(JCas aJCas)
+    public CharSequence bratRenderCommand(JCas aJCas)
     {
         LOG.info("BEGIN bratRenderCommand");
         GetDocumentResponse response = new GetDocumentResponse();
         BratAjaxCasController.render(response, getModelObject(), aJCas, annotationService);
-        String json = toJson(response);
+        CharSequence command = dispatcherPostCommand("renderData", response);
+        lastRenderedResponse = response;
+        prefetchAdjacentWindowsLater();
         LOG.info("END bratRenderCommand");
-        return "Wicket.$('" + vis.getMarkupId() + "').dispatcher.post('renderData', [" + json
-                + "]);";
+        return command;
+    }
+
+    /**
+     * Render the current display window. If the client already shows the same window, only the
+     * entities, relations and comments that changed since the last rendering are sent to the
+     * client. Otherwise, the whole window is sent.
+     */
+    private CharSequence bratRenderCommand(AjaxRequestTarget aTarget, JCas aJCas)
+    {
+        LOG.info("BEGIN bratRenderCommand");
+        GetDocumentResponse response = new GetDocumentResponse();
+        BratAjaxCasController.render(response, getModelObject(), aJCas, annotationService);
+
+        DocumentDeltaResponse delta = null;
+        if (lastRenderedResponse != null && !isRenderedInRequest(aTarget)) {
+            delta = DocumentDeltaResponse.diff(lastRenderedResponse, response);
+        }
+        // No prefetching here - this is called after edits, which change the CAS version and
+        // thus invalidate the prefetched windows anyway
+        lastRenderedResponse = response;
+
+        CharSequence command;
+        if (delta != null) {
+            command = dispatcherPostCommand(DocumentDeltaResponse.COMMAND, delta);
+        }
+        else {
+            command = dispatcherPostCommand("renderData", response);
+        }
+        LOG.info("END bratRenderCommand");
+        return command;
+    }
+
+    /**
+     * Check if the annotator is re-rendered as part of the given AJAX request. In this case, the
+     * client-side visualizer is re-created and loses its data, so we cannot send a delta.
+     */
+    private boolean isRenderedInRequest(AjaxRequestTarget aTarget)
+    {
+        Collection<? extends Component> components = aTarget.getComponents();
+        for (Component component : components) {
+            if (component == this) {
+                return true;
+            }
+            if (component instanceof MarkupContainer
+                    && ((MarkupContainer) component).contains(this, true)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -558,7 +705,7 @@ public class BratAnnotator
      */
     public void bratRender(AjaxRequestTarget aTarget, JCas aJCas)
     {
-        aTarget.appendJavaScript(bratRenderCommand(aJCas));
+        aTarget.appendJavaScript(bratRenderCommand(aTarget, aJCas));
     }
 /**
  * Display an annotation on the next token if auto forwarding is enabled
@@ -572,7 +719,6 @@ public class BratAnnotator
     public void autoForward(AjaxRequestTarget aTarget, JCas aJCas) throws UIMAException, ClassNotFoundException, IOException, BratAnnotationException
     {
         LOG.info("BEGIN auto-forward annotation");
-        GetDocumentResponse response = new GetDocumentResponse();
         Selection selection = getModelObject().getSelection();
 
         AnnotationFS nextToken = BratAjaxCasUtil.getNextToken(aJCas, selection.getBegin(),
@@ -590,12 +736,8 @@ public class BratAnnotator
                 editor.actionAnnotate(aTarget, getModelObject(), true);
             }
         }
-        BratAjaxCasController.render(response, getModelObject(), aJCas, annotationService);
-        
-        String json = toJson(response);
+        aTarget.appendJavaScript(bratRenderCommand(aTarget, aJCas));
         LOG.info("auto-forward annotation");
-        aTarget.appendJavaScript("Wicket.$('" + vis.getMarkupId()
-                + "').dispatcher.post('renderData', [" + json + "]);");
     }
 
     /**
@@ -639,18 +781,34 @@ public class BratAnnotator
     {
 
     }
-    private String toJson(Object result)
+    /**
+     * Build a script posting the given data to the brat dispatcher. The JSON is written straight
+     * into the script buffer which is passed on to Wicket without further copying.
+     */
+    private StringBuilder dispatcherPostCommand(String aCommand, Object aData)
+    {
+        StringBuilder script = new StringBuilder();
+        script.append("Wicket.$('").append(vis.getMarkupId()).append("').dispatcher.post('")
+                .append(aCommand).append("', [");
+        appendJson(script, aData);
+        script.append("]);");
+        return script;
+    }
+
+    private void appendJson(StringBuilder aOut, Object aObject)
     {
-        StringWriter out = new StringWriter();
-        JsonGenerator jsonGenerator = null;
         try {
-            jsonGenerator = JSONUtil.getJsonConverter().getObjectMapper().getFactory()
-                    .createGenerator(out);
-            jsonGenerator.writeObject(result);
+            JSONUtil.writeJson(aObject, new StringBuilderWriter(aOut));
         }
         catch (IOException e) {
             error("Unable to produce JSON response " + ":" + ExceptionUtils.getRootCauseMessage(e));
         }
+    }
+
+    private String toJson(Object aObject)
+    {
+        StringBuilder out = new StringBuilder();
+        appendJson(out, aObject);
         return out.toString();
     }
 
@@ -658,11 +816,7 @@ public class BratAnnotator
         throws UIMAException, IOException, ClassNotFoundException
     {
 
-        if (aBratAnnotatorModel.getMode().equals(Mode.ANNOTATION)
-                || aBratAnnotatorModel.getMode().equals(Mode.AUTOMATION)
-                || aBratAnnotatorModel.getMode().equals(Mode.CORRECTION)
-                || aBratAnnotatorModel.getMode().equals(Mode.CORRECTION_MERGE)) {
-
+        if (isUserCas(aBratAnnotatorModel)) {
             return repository.readAnnotationCas(aBratAnnotatorModel.getDocument(),
                     aBratAnnotatorModel.getUser());
         }
@@ -670,4 +824,40 @@ public class BratAnnotator
             return repository.readCurationCas(aBratAnnotatorModel.getDocument());
         }
     }
+
+    /**
+     * Key of the current display window in the {@link RenderCache}.
+     */
+    private String getRenderCacheKey()
+    {
+        BratAnnotatorModel bModel = getModelObject();
+        String username = getCasUsername(bModel);
+        return RenderCache.documentKey(bModel, annotationService, username,
+                repository.getCasVersion(bModel.getDocument(), username));
+    }
+
+    /**
+     * Render the windows before and after the current one in the background once the current
+     * request is done, i.e. after any changes to the CAS have been written. This is only called
+     * when the user navigated to another window, not after edits.
+     */
+    private void prefetchAdjacentWindowsLater()
+    {
+        if (prefetchScheduled) {
+            return;
+        }
+        prefetchScheduled = true;
+        RequestCycle.get().getListeners().add(new AbstractRequestCycleListener()
+        {
+            @Override
+            public void onEndRequest(RequestCycle aCycle)
+            {
+                prefetchScheduled = false;
+                BratAnnotatorModel bModel = getModelObject();
+                if (bModel.getDocument() != null && bModel.getProject() != null) {
+                    windowPrefetcher.prefetch(bModel);
+                }
+            }
+        });
+    }
 }
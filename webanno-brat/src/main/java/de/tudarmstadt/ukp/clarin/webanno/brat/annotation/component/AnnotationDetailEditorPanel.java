@@ -29,20 +29,24 @@ import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.
 import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.selectSentenceAt;
 import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.setFeature;
 import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.TypeUtil.getAdapter;
+import static de.tudarmstadt.ukp.clarin.webanno.brat.util.BratAnnotatorUtility.getCasUsername;
 
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import javax.persistence.NoResultException;
 
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.exception.ExceptionUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -88,13 +92,13 @@ import org.apache.wicket.request.Request;
 import org.apache.wicket.request.cycle.RequestCycle;
 import org.apache.wicket.spring.injection.annot.SpringBean;
 import org.apache.wicket.util.time.Duration;
-import org.codehaus.plexus.util.StringUtils;
 
 import com.googlecode.wicket.jquery.core.Options;
 import com.googlecode.wicket.jquery.core.template.IJQueryTemplate;
 import com.googlecode.wicket.jquery.ui.widget.tooltip.TooltipBehavior;
 import com.googlecode.wicket.kendo.ui.form.NumberTextField;
 import com.googlecode.wicket.kendo.ui.form.TextField;
+import com.googlecode.wicket.kendo.ui.form.autocomplete.AutoCompleteTextField;
 import com.googlecode.wicket.kendo.ui.form.combobox.ComboBox;
 
 import de.tudarmstadt.ukp.clarin.webanno.api.AnnotationService;
@@ -106,6 +110,8 @@ import de.tudarmstadt.ukp.clarin.webanno.brat.controller.ArcAdapter;
 import de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil;
 import de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAnnotationException;
 import de.tudarmstadt.ukp.clarin.webanno.brat.controller.ChainAdapter;
+import de.tudarmstadt.ukp.clarin.webanno.brat.controller.ReferenceIndex;
+import de.tudarmstadt.ukp.clarin.webanno.brat.controller.ReferenceIndex.LinkReference;
 import de.tudarmstadt.ukp.clarin.webanno.brat.controller.SpanAdapter;
 import de.tudarmstadt.ukp.clarin.webanno.brat.controller.TypeAdapter;
 import de.tudarmstadt.ukp.clarin.webanno.brat.controller.TypeUtil;
@@ -116,6 +122,7 @@ import de.tudarmstadt.ukp.clarin.webanno.constraints.evaluator.Evaluator;
 import de.tudarmstadt.ukp.clarin.webanno.constraints.evaluator.PossibleValue;
 import de.tudarmstadt.ukp.clarin.webanno.constraints.evaluator.RulesIndicator;
 import de.tudarmstadt.ukp.clarin.webanno.constraints.evaluator.ValuesGenerator;
+import de.tudarmstadt.ukp.clarin.webanno.constraints.model.ParsedConstraints;
 import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocumentState;
 import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationFeature;
 import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationLayer;
@@ -165,6 +172,29 @@ public class AnnotationDetailEditorPanel
 
     private List<FeatureModel> featureModels;
     private BratAnnotatorModel bModel;
+
+    /**
+     * Constraints evaluated for the selected annotation. This is transient - if it is lost, the
+     * constraints are simply evaluated again.
+     */
+    private transient EvaluatedConstraints evaluatedConstraints;
+
+    /**
+     * References to the spans of the selected layer. This is transient - if it is lost, the index
+     * is simply built again.
+     */
+    private transient ReferenceIndex referenceIndex;
+
+    /**
+     * Tagsets with more tags than this are not loaded into a combobox. Instead, the tags are
+     * completed on the server.
+     */
+    private static final int MAX_COMBOBOX_TAGS = 1000;
+
+    /**
+     * Number of tags offered by the autocompletion at a time.
+     */
+    private static final int AUTOCOMPLETE_PAGE_SIZE = 50;
     private String selectedTag = "";
     /**
      *Function to return tooltip using jquery
@@ -308,7 +338,8 @@ public class AnnotationDetailEditorPanel
 
                         AnnotationLayer layer = bModel.getSelectedAnnotationLayer();
                         TypeAdapter adapter = getAdapter(annotationService, layer);
-                        if (adapter instanceof SpanAdapter && getAttachedRels(jCas, fs, layer).size() > 0) {
+                        if (adapter instanceof SpanAdapter && getAttachedRels(jCas, fs,
+                                getReferenceIndex(jCas, layer, bModel)).size() > 0) {
                             deleteModal.setTitle("Are you sure you like to delete all attached relations to this span annotation?");
                             deleteModal.setContent(new DeleteOrReplaceAnnotationModalPanel(
                                     deleteModal.getContentId(), bModel, deleteModal,
@@ -740,8 +771,13 @@ public class AnnotationDetailEditorPanel
         //
         // NOTE: It is important that this happens before UNATTACH SPANS since the attach feature
         // is no longer set after UNATTACH SPANS!
+        ReferenceIndex references = null;
+        if (adapter instanceof SpanAdapter) {
+            references = getReferenceIndex(jCas, layer, aBModel);
+        }
+
         if (adapter instanceof SpanAdapter) {
-            for (AnnotationFS attachedFs : getAttachedRels(jCas, fs, layer)) {
+            for (AnnotationFS attachedFs : getAttachedRels(jCas, fs, references)) {
                 jCas.getCas().removeFsFromIndexes(attachedFs);
                 info("The attached annotation for relation type [" + annotationService
                         .getLayer(attachedFs.getType().getName(), bModel.getProject()).getUiName()
@@ -776,31 +812,30 @@ public class AnnotationDetailEditorPanel
 
         // == CLEAN UP LINK FEATURES ==
         // If the deleted FS is a span that is the target of a link feature, we must unset that
-        // link and delete the slot if it is a multi-valued link. Here, we have to scan all
-        // annotations from layers that have link features that could point to the FS
-        // to be deleted: the link feature must be the type of the FS or it must be generic.
+        // link and delete the slot if it is a multi-valued link. The reference index tells us
+        // which annotations from layers with link features that could point to the FS to be
+        // deleted actually do so: the link feature must be the type of the FS or it must be
+        // generic.
         if (adapter instanceof SpanAdapter) {
-            for (AnnotationFeature linkFeature : annotationService.listAttachedLinkFeatures(layer)) {
-                Type linkType = CasUtil.getType(jCas.getCas(), linkFeature.getLayer().getName());
-
-                for (AnnotationFS linkFS : CasUtil.select(jCas.getCas(), linkType)) {
-                    List<LinkWithRoleModel> links = getFeature(linkFS, linkFeature);
-                    Iterator<LinkWithRoleModel> i = links.iterator();
-                    boolean modified = false;
-                    while (i.hasNext()) {
-                        LinkWithRoleModel link = i.next();
-                        if (link.targetAddr == getAddr(fs)) {
-                            i.remove();
-                            LOG.debug("Cleared slot [" + link.role + "] in feature ["
-                                    + linkFeature.getName() + "] on annotation [" + getAddr(linkFS)
-                                    + "]");
-                            modified = true;
-                        }
-                    }
-                    if (modified) {
-                        setFeature(linkFS, linkFeature, links);
+            for (LinkReference reference : references.getLinks(getAddr(fs))) {
+                AnnotationFeature linkFeature = reference.getFeature();
+                AnnotationFS linkFS = selectByAddr(jCas, reference.getHostAddr());
+                List<LinkWithRoleModel> links = getFeature(linkFS, linkFeature);
+                Iterator<LinkWithRoleModel> i = links.iterator();
+                boolean modified = false;
+                while (i.hasNext()) {
+                    LinkWithRoleModel link = i.next();
+                    if (link.targetAddr == getAddr(fs)) {
+                        i.remove();
+                        LOG.debug("Cleared slot [" + link.role + "] in feature ["
+                                + linkFeature.getName() + "] on annotation [" + getAddr(linkFS)
+                                + "]");
+                        modified = true;
                     }
                 }
+                if (modified) {
+                    setFeature(linkFS, linkFeature, links);
+                }
             }
         }
 
@@ -932,6 +967,85 @@ public class AnnotationDetailEditorPanel
         }
     }
 
+    /**
+     * Get the path used by constraint rules to restrict the values of the given feature.
+     *
+     * @return the path or {@code null} if the feature cannot be restricted.
+     */
+    private static String getRestrictionFeaturePath(AnnotationFeature aFeature)
+    {
+        switch (aFeature.getLinkMode()) {
+        case WITH_ROLE:
+            return aFeature.getName() + "." + aFeature.getLinkTypeRoleFeatureName();
+        case NONE:
+            return aFeature.getName();
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Evaluate the constraints for all features of the selected annotation in one pass. The
+     * values of condition paths are shared between the features. The result is kept until another
+     * annotation is selected, the CAS is written or the constraints change.
+     *
+     * @param aBModel
+     *            the annotator model.
+     * @param aRestrictionFeaturePath
+     *            the path of the feature for which the values are requested. Evaluated even if
+     *            it does not belong to any of the current feature models.
+     * @return the evaluated constraints.
+     */
+    private EvaluatedConstraints evaluateConstraints(BratAnnotatorModel aBModel,
+            String aRestrictionFeaturePath)
+        throws UIMAException, IOException, ClassNotFoundException
+    {
+        int address = aBModel.getSelection().getAnnotation().getId();
+        String username = getCasUsername(aBModel);
+        long casVersion = repository.getCasVersion(aBModel.getDocument(), username);
+
+        EvaluatedConstraints evaluated = evaluatedConstraints;
+        if (evaluated != null && evaluated.isValid(address, casVersion, aBModel.getConstraints())
+                && evaluated.contains(aRestrictionFeaturePath)) {
+            return evaluated;
+        }
+
+        Set<String> paths = new LinkedHashSet<>();
+        paths.add(aRestrictionFeaturePath);
+        for (FeatureModel fm : featureModels) {
+            String path = getRestrictionFeaturePath(fm.feature);
+            if (fm.feature.getTagset() != null && path != null) {
+                paths.add(path);
+            }
+        }
+
+        JCas jCas = getCas(aBModel);
+        FeatureStructure featureStructure = selectByAddr(jCas, address);
+
+        Evaluator evaluator = new ValuesGenerator();
+        evaluated = new EvaluatedConstraints(address, casVersion, aBModel.getConstraints());
+        for (String path : paths) {
+            boolean affected = evaluator.isThisAffectedByConstraintRules(featureStructure, path,
+                    aBModel.getConstraints());
+            try {
+                List<PossibleValue> possibleValues = evaluator.generatePossibleValues(
+                        featureStructure, path, aBModel.getConstraints());
+                evaluated.put(path, affected, possibleValues, null);
+
+                LOG.debug("Possible values for [" + featureStructure.getType().getName() + "] ["
+                        + path + "]: " + possibleValues);
+            }
+            catch (Exception e) {
+                LOG.error("Unable to evaluate constraints: " + e.getMessage(), e);
+                evaluated.put(path, affected, new ArrayList<PossibleValue>(),
+                        ExceptionUtils.getRootCauseMessage(e));
+            }
+        }
+
+        evaluatedConstraints = evaluated;
+        return evaluated;
+    }
+
     private void autoScroll(JCas jCas, BratAnnotatorModel aBModel)
     {
         int address = getAddr(selectSentenceAt(jCas, aBModel.getSentenceBeginOffset(),
@@ -1555,7 +1669,19 @@ public class AnnotationDetailEditorPanel
             add(new Label("feature", aModel.feature.getUiName()));
 
             indicator.reset(); //reset the indicator
-            if (aModel.feature.getTagset() != null) {
+            if (aModel.feature.getTagset() != null
+                    && annotationService.countTags(aModel.feature.getTagset()) > MAX_COMBOBOX_TAGS) {
+                // Too many tags to send them all to the browser - complete the input on the
+                // server instead
+                List<String> suggestions = new ArrayList<>();
+                if (bModel.getConstraints() != null
+                        && bModel.getSelection().getAnnotation().isSet()) {
+                    suggestions = suggestTagsBasedOnRules(bModel, aModel);
+                }
+                field = new TagAutoCompleteTextField("value", aModel.feature.getTagset(),
+                        suggestions);
+            }
+            else if (aModel.feature.getTagset() != null) {
 
                 List<Tag> tagset = null;
                 BratAnnotatorModel model = bModel;
@@ -1629,16 +1755,8 @@ public class AnnotationDetailEditorPanel
         private List<Tag> populateTagsBasedOnRules(BratAnnotatorModel model, FeatureModel aModel)
         {
             // Add values from rules
-            String restrictionFeaturePath;
-            switch (aModel.feature.getLinkMode()) {
-            case WITH_ROLE:
-                restrictionFeaturePath = aModel.feature.getName() + "."
-                        + aModel.feature.getLinkTypeRoleFeatureName();
-                break;
-            case NONE:
-                restrictionFeaturePath = aModel.feature.getName();
-                break;
-            default:
+            String restrictionFeaturePath = getRestrictionFeaturePath(aModel.feature);
+            if (restrictionFeaturePath == null) {
                 throw new IllegalArgumentException("Unsupported link mode ["
                         + aModel.feature.getLinkMode() + "] on feature ["
                         + aModel.feature.getName() + "]");
@@ -1647,28 +1765,17 @@ public class AnnotationDetailEditorPanel
             List<Tag> valuesFromTagset = annotationService.listTags(aModel.feature.getTagset());
 
             try {
-                JCas jCas = getCas(model);
+                EvaluatedConstraints evaluated = evaluateConstraints(model,
+                        restrictionFeaturePath);
 
-                FeatureStructure featureStructure = selectByAddr(jCas, model.getSelection()
-                        .getAnnotation().getId());
-
-                Evaluator evaluator = new ValuesGenerator();
                 //Only show indicator if this feature can be affected by Constraint rules!
-                indicator.setAffected(evaluator.isThisAffectedByConstraintRules(featureStructure,
-                        restrictionFeaturePath, model.getConstraints()));
+                indicator.setAffected(evaluated.isAffected(restrictionFeaturePath));
                 
-                List<PossibleValue> possibleValues;
-                try {
-                    possibleValues = evaluator.generatePossibleValues(
-                            featureStructure, restrictionFeaturePath, model.getConstraints());
-    
-                    LOG.debug("Possible values for [" + featureStructure.getType().getName() + "] ["
-                            + restrictionFeaturePath + "]: " + possibleValues);
-                }
-                catch (Exception e) {
-                    error("Unable to evaluate constraints: " + ExceptionUtils.getRootCauseMessage(e));
-                    LOG.error("Unable to evaluate constraints: " + e.getMessage(), e);
-                    possibleValues = new ArrayList<>();
+                List<PossibleValue> possibleValues = evaluated
+                        .getPossibleValues(restrictionFeaturePath);
+                if (evaluated.getError(restrictionFeaturePath) != null) {
+                    error("Unable to evaluate constraints: "
+                            + evaluated.getError(restrictionFeaturePath));
                 }
 
                 // only adds tags which are suggested by rules and exist in tagset.
@@ -1685,6 +1792,57 @@ public class AnnotationDetailEditorPanel
             return valuesFromTagset;
         }
 
+        /**
+         * Get the values suggested by the constraints which exist in the tagset.
+         */
+        private List<String> suggestTagsBasedOnRules(BratAnnotatorModel model,
+                FeatureModel aModel)
+        {
+            String restrictionFeaturePath = getRestrictionFeaturePath(aModel.feature);
+            if (restrictionFeaturePath == null) {
+                throw new IllegalArgumentException("Unsupported link mode ["
+                        + aModel.feature.getLinkMode() + "] on feature ["
+                        + aModel.feature.getName() + "]");
+            }
+
+            List<String> suggestions = new ArrayList<>();
+            try {
+                EvaluatedConstraints evaluated = evaluateConstraints(model,
+                        restrictionFeaturePath);
+
+                //Only show indicator if this feature can be affected by Constraint rules!
+                indicator.setAffected(evaluated.isAffected(restrictionFeaturePath));
+
+                List<PossibleValue> possibleValues = evaluated
+                        .getPossibleValues(restrictionFeaturePath);
+                if (evaluated.getError(restrictionFeaturePath) != null) {
+                    error("Unable to evaluate constraints: "
+                            + evaluated.getError(restrictionFeaturePath));
+                }
+
+                // Same as compareSortAndAdd(), but looking up the values in the tagset index
+                // instead of comparing them to every tag
+                if (possibleValues.isEmpty()) {
+                    indicator.didntMatchAnyRule();
+                }
+                for (PossibleValue value : possibleValues) {
+                    if (annotationService.existsTag(value.getValue(), aModel.feature.getTagset())
+                            && !suggestions.contains(value.getValue())) {
+                        indicator.rulesApplied();
+                        suggestions.add(value.getValue());
+                    }
+                }
+                if (suggestions.isEmpty()) {
+                    indicator.didntMatchAnyTag();
+                }
+            }
+            catch (IOException | ClassNotFoundException | UIMAException e) {
+                error(ExceptionUtils.getRootCauseMessage(e));
+                LOG.error(ExceptionUtils.getRootCauseMessage(e), e);
+            }
+            return suggestions;
+        }
+
         @Override
         public Component getFocusComponent()
         {
@@ -1698,6 +1856,60 @@ public class AnnotationDetailEditorPanel
         }
     };
 
+    /**
+     * Completes the input from the tags of a tagset. The choices are requested from the server
+     * with the current input on every change, so only the tags starting with the input are
+     * fetched from the tagset index. Values suggested by the constraints are offered first.
+     */
+    private class TagAutoCompleteTextField
+        extends AutoCompleteTextField<String>
+    {
+        private static final long serialVersionUID = -2735163402838916428L;
+
+        private final TagSet tagSet;
+        private final List<String> suggestions;
+
+        public TagAutoCompleteTextField(String aId, TagSet aTagSet, List<String> aSuggestions)
+        {
+            super(aId);
+            tagSet = aTagSet;
+            suggestions = aSuggestions;
+        }
+
+        @Override
+        protected List<String> getChoices(String aInput)
+        {
+            List<String> choices = new ArrayList<>();
+            for (String suggestion : suggestions) {
+                if (StringUtils.isEmpty(aInput)
+                        || StringUtils.startsWithIgnoreCase(suggestion, aInput)) {
+                    choices.add(suggestion);
+                }
+            }
+
+            // The suggested tags may also be in the tagset - fetch further pages until a full
+            // page of other tags has been added or there are no more matching tags
+            Set<String> seen = new HashSet<>(choices);
+            int added = 0;
+            int first = 0;
+            while (added < AUTOCOMPLETE_PAGE_SIZE) {
+                List<String> names = annotationService.listTagNames(tagSet, aInput, first,
+                        AUTOCOMPLETE_PAGE_SIZE);
+                for (String name : names) {
+                    if (added < AUTOCOMPLETE_PAGE_SIZE && seen.add(name)) {
+                        choices.add(name);
+                        added++;
+                    }
+                }
+                if (names.size() < AUTOCOMPLETE_PAGE_SIZE) {
+                    break;
+                }
+                first += AUTOCOMPLETE_PAGE_SIZE;
+            }
+            return choices;
+        }
+    }
+
     public class LinkFeatureEditor
         extends FeatureEditor
     {
@@ -2063,28 +2275,17 @@ public class AnnotationDetailEditorPanel
             List<Tag> valuesFromTagset = annotationService.listTags(aModel.feature.getTagset());
 
             try {
-                JCas jCas = getCas(model);
-
-                FeatureStructure featureStructure = selectByAddr(jCas, model.getSelection()
-                        .getAnnotation().getId());
+                EvaluatedConstraints evaluated = evaluateConstraints(model,
+                        restrictionFeaturePath);
 
-                Evaluator evaluator = new ValuesGenerator();
                 //Only show indicator if this feature can be affected by Constraint rules!
-                indicator.setAffected(evaluator.isThisAffectedByConstraintRules(featureStructure,
-                        restrictionFeaturePath, model.getConstraints()));
+                indicator.setAffected(evaluated.isAffected(restrictionFeaturePath));
                 
-                List<PossibleValue> possibleValues;
-                try {
-                    possibleValues = evaluator.generatePossibleValues(
-                            featureStructure, restrictionFeaturePath, model.getConstraints());
-    
-                    LOG.debug("Possible values for [" + featureStructure.getType().getName() + "] ["
-                            + restrictionFeaturePath + "]: " + possibleValues);
-                }
-                catch (Exception e) {
-                    error("Unable to evaluate constraints: " + ExceptionUtils.getRootCauseMessage(e));
-                    LOG.error("Unable to evaluate constraints: " + ExceptionUtils.getRootCauseMessage(e), e);
-                    possibleValues = new ArrayList<>();
+                List<PossibleValue> possibleValues = evaluated
+                        .getPossibleValues(restrictionFeaturePath);
+                if (evaluated.getError(restrictionFeaturePath) != null) {
+                    error("Unable to evaluate constraints: "
+                            + evaluated.getError(restrictionFeaturePath));
                 }
 
                 // Only adds tags which are suggested by rules and exist in tagset.
@@ -2455,6 +2656,64 @@ public class AnnotationDetailEditorPanel
 		}
 	}
 
+    /**
+     * Possible values and rule indicators for the features of one annotation, valid for one
+     * version of the CAS and one set of constraints.
+     */
+    private static class EvaluatedConstraints
+    {
+        private final int address;
+        private final long casVersion;
+        private final ParsedConstraints constraints;
+        private final Map<String, Boolean> affected = new HashMap<>();
+        private final Map<String, List<PossibleValue>> possibleValues = new HashMap<>();
+        private final Map<String, String> errors = new HashMap<>();
+
+        public EvaluatedConstraints(int aAddress, long aCasVersion,
+                ParsedConstraints aConstraints)
+        {
+            address = aAddress;
+            casVersion = aCasVersion;
+            constraints = aConstraints;
+        }
+
+        public boolean isValid(int aAddress, long aCasVersion, ParsedConstraints aConstraints)
+        {
+            return address == aAddress && casVersion == aCasVersion
+                    && constraints == aConstraints;
+        }
+
+        public void put(String aPath, boolean aAffected, List<PossibleValue> aPossibleValues,
+                String aError)
+        {
+            affected.put(aPath, aAffected);
+            possibleValues.put(aPath, aPossibleValues);
+            if (aError != null) {
+                errors.put(aPath, aError);
+            }
+        }
+
+        public boolean contains(String aPath)
+        {
+            return possibleValues.containsKey(aPath);
+        }
+
+        public boolean isAffected(String aPath)
+        {
+            return affected.get(aPath);
+        }
+
+        public List<PossibleValue> getPossibleValues(String aPath)
+        {
+            return possibleValues.get(aPath);
+        }
+
+        public String getError(String aPath)
+        {
+            return errors.get(aPath);
+        }
+    }
+
     public static class FeatureModel
         implements Serializable
     {
@@ -2585,63 +2844,40 @@ public class AnnotationDetailEditorPanel
         }
     }
 
-    private  Set<AnnotationFS> getAttachedRels(JCas aJCas, AnnotationFS aFs, AnnotationLayer aLayer) throws UIMAException, ClassNotFoundException, IOException{
-        
+    private Set<AnnotationFS> getAttachedRels(JCas aJCas, AnnotationFS aFs,
+            ReferenceIndex aReferences)
+    {
         Set<AnnotationFS> toBeDeleted = new HashSet<AnnotationFS>();
-        for (AnnotationLayer relationLayer : annotationService
-                .listAttachedRelationLayers(aLayer)) {
-            ArcAdapter relationAdapter = (ArcAdapter) getAdapter(annotationService,
-                    relationLayer);
-            Type relationType = CasUtil.getType(aJCas.getCas(), relationLayer.getName());
-            Feature sourceFeature = relationType.getFeatureByBaseName(relationAdapter
-                    .getSourceFeatureName());
-            Feature targetFeature = relationType.getFeatureByBaseName(relationAdapter
-                    .getTargetFeatureName());
-
-            // This code is already prepared for the day that relations can go between
-            // different layers and may have different attach features for the source and
-            // target layers.
-            Feature relationSourceAttachFeature = null;
-            Feature relationTargetAttachFeature = null;
-            if (relationAdapter.getAttachFeatureName() != null) {
-                relationSourceAttachFeature = sourceFeature.getRange().getFeatureByBaseName(
-                        relationAdapter.getAttachFeatureName());
-                relationTargetAttachFeature = targetFeature.getRange().getFeatureByBaseName(
-                        relationAdapter.getAttachFeatureName());
-            }
-            
-            for (AnnotationFS relationFS : CasUtil.select(aJCas.getCas(), relationType)) {
-                // Here we get the annotations that the relation is pointing to in the UI
-                FeatureStructure sourceFS;
-                if (relationSourceAttachFeature != null) {
-                    sourceFS = relationFS.getFeatureValue(sourceFeature).getFeatureValue(
-                            relationSourceAttachFeature);
-                }
-                else {
-                    sourceFS = relationFS.getFeatureValue(sourceFeature);
-                }
+        for (int relationAddr : aReferences.getRelations(getAddr(aFs))) {
+            AnnotationFS relationFS = selectByAddr(aJCas, relationAddr);
+            toBeDeleted.add(relationFS);
+            LOG.debug("Deleted relation [" + relationAddr + "] from layer ["
+                    + relationFS.getType().getName() + "]");
+        }
+        return toBeDeleted;
+    }
 
-                FeatureStructure targetFS;
-                if (relationTargetAttachFeature != null) {
-                    targetFS = relationFS.getFeatureValue(targetFeature).getFeatureValue(
-                            relationTargetAttachFeature);
-                }
-                else {
-                    targetFS = relationFS.getFeatureValue(targetFeature);
-                }
+    /**
+     * Get the index of the references to the spans of the given layer. The index is kept until
+     * the CAS changes, so checking for attached relations and deleting them afterwards only
+     * scans the relation and link layers once.
+     */
+    private ReferenceIndex getReferenceIndex(JCas aJCas, AnnotationLayer aLayer,
+            BratAnnotatorModel aBModel)
+    {
+        String username = getCasUsername(aBModel);
+        long casVersion = repository.getCasVersion(aBModel.getDocument(), username);
 
-                if (isSame(sourceFS, aFs) || isSame(targetFS, aFs)) {
-                    toBeDeleted.add(relationFS);
-                    LOG.debug("Deleted relation [" + getAddr(relationFS) + "] from layer ["
-                            + relationLayer.getName() + "]");
-                }
-            }
+        ReferenceIndex index = referenceIndex;
+        if (index == null || !index.isValid(aBModel.getDocument().getId(), username, casVersion,
+                aLayer.getId())) {
+            index = ReferenceIndex.build(aJCas.getCas(), annotationService, aLayer,
+                    aBModel.getDocument().getId(), username, casVersion);
+            referenceIndex = index;
         }
-        return toBeDeleted;
-        
+        return index;
     }
-    
-    
+
     public AnnotationFeatureForm getAnnotationFeatureForm()
     {
         return annotationFeatureForm;
@@ -2692,7 +2928,7 @@ public class AnnotationDetailEditorPanel
 		TagSet tagSet = annotationService.listAnnotationFeature(bModel.getSelectedAnnotationLayer()).get(0).getTagset();
 		
 		// there should be at least one tag in the tagset
-		if(annotationService.listTags(tagSet).size()==0){
+		if(annotationService.countTags(tagSet)==0){
 			return false;
 		}
 		return true;
@@ -24,6 +24,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
 
 import de.tudarmstadt.ukp.clarin.webanno.api.AnnotationService;
 import de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst;
@@ -34,6 +35,11 @@ import de.tudarmstadt.ukp.clarin.webanno.model.LinkMode;
 
 public abstract class ColoringStrategy
 {
+    /**
+     * Palettes precomputed per layer ID.
+     */
+    private static final Map<Long, LayerColors> LAYER_COLORS = new ConcurrentHashMap<>();
+
     public static final ColoringStrategy labelHashBasedColor(final String[] aPalette)
     {
         return new ColoringStrategy()
@@ -77,36 +83,42 @@ public abstract class ColoringStrategy
         else if (aPreferences.isStaticColor()) {
             int threshold;
 
-            if (WebAnnoConst.SPAN_TYPE.equals(aLayer.getType()) && !hasLinkFeature(aService, aLayer)) {
+            if (!getLayerColors(aService, aLayer).contrastRequired) {
                 threshold = Integer.MAX_VALUE; // No filtering
             }
             else {
-                // Chains and arcs contain relations that are rendered as lines on the light
-                // window background - need to make sure there is some contrast, so we cannot use
-                // the full palette.
                 threshold = LIGHTNESS_FILTER_THRESHOLD;
             }
 
             coloringStrategy = staticColor(nextPaletteEntry(PALETTE_PASTEL, aColorQueues, threshold));
         }
         else {
-            String[] palette;
-
-            if (WebAnnoConst.SPAN_TYPE.equals(aLayer.getType()) && !hasLinkFeature(aService, aLayer)) {
-                palette = PALETTE_NORMAL;
-            }
-            else {
-                // Chains and arcs contain relations that are rendered as lines on the light
-                // window background - need to make sure there is some contrast, so we cannot use
-                // the full palette.
-                palette = PALETTE_NORMAL_FILTERED;
-            }
-
-            coloringStrategy = labelHashBasedColor(palette);
+            coloringStrategy = labelHashBasedColor(getLayerColors(aService, aLayer).palette);
         }
         return coloringStrategy;
     }
 
+    /**
+     * Get the precomputed palette for the given layer. These are shared by all users and are
+     * rebuilt when the schema version of the project changes, e.g. because features were added.
+     */
+    private static LayerColors getLayerColors(AnnotationService aService, AnnotationLayer aLayer)
+    {
+        long projectId = aLayer.getProject().getId();
+        long schemaVersion = aService.getSchemaVersion(aLayer.getProject());
+        LayerColors layerColors = LAYER_COLORS.get(aLayer.getId());
+        if (layerColors == null || layerColors.schemaVersion != schemaVersion) {
+            // The schema has changed - drop all outdated entries of the project, so that layers
+            // which have been removed do not stay in the map
+            LAYER_COLORS.values().removeIf(c -> c.projectId == projectId
+                    && c.schemaVersion != schemaVersion);
+
+            layerColors = new LayerColors(aService, aLayer, schemaVersion);
+            LAYER_COLORS.put(aLayer.getId(), layerColors);
+        }
+        return layerColors;
+    }
+
     private static boolean hasLinkFeature(AnnotationService aService, AnnotationLayer aLayer)
     {
         for (AnnotationFeature feature : aService.listAnnotationFeature(aLayer)) {
@@ -117,6 +129,27 @@ public abstract class ColoringStrategy
         return false;
     }
 
+    private static class LayerColors
+    {
+        final long projectId;
+        final long schemaVersion;
+        final boolean contrastRequired;
+        final String[] palette;
+
+        LayerColors(AnnotationService aService, AnnotationLayer aLayer, long aSchemaVersion)
+        {
+            projectId = aLayer.getProject().getId();
+            schemaVersion = aSchemaVersion;
+
+            // Chains and arcs contain relations that are rendered as lines on the light
+            // window background - need to make sure there is some contrast, so we cannot use
+            // the full palette.
+            contrastRequired = !WebAnnoConst.SPAN_TYPE.equals(aLayer.getType())
+                    || hasLinkFeature(aService, aLayer);
+            palette = contrastRequired ? PALETTE_NORMAL_FILTERED : PALETTE_NORMAL;
+        }
+    }
+
     private static String nextPaletteEntry(String[] aPalette,
             Map<String[], Queue<String>> aPaletteCursors, int aThreshold)
     {
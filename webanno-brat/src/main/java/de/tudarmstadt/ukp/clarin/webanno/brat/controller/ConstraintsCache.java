@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * Copyright 2016
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.brat.controller;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Resource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.RepositoryService;
+import de.tudarmstadt.ukp.clarin.webanno.constraints.grammar.ConstraintsGrammar;
+import de.tudarmstadt.ukp.clarin.webanno.constraints.grammar.ParseException;
+import de.tudarmstadt.ukp.clarin.webanno.constraints.grammar.syntaxtree.Parse;
+import de.tudarmstadt.ukp.clarin.webanno.constraints.model.ParsedConstraints;
+import de.tudarmstadt.ukp.clarin.webanno.constraints.model.Rule;
+import de.tudarmstadt.ukp.clarin.webanno.constraints.model.Scope;
+import de.tudarmstadt.ukp.clarin.webanno.constraints.visitor.ParserVisitor;
+import de.tudarmstadt.ukp.clarin.webanno.model.ConstraintSet;
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+
+/**
+ * Parses and merges the constraint sets of a project once and shares the result across all
+ * sessions. The cached constraints are replaced when the constraints version of the project
+ * changes (see {@link RepositoryService#getConstraintsVersion(Project)}).
+ * <p>
+ * The merged constraints are immutable, so they can safely be used by several users at the same
+ * time.
+ */
+public class ConstraintsCache
+{
+    private final Log log = LogFactory.getLog(getClass());
+
+    @Resource(name = "documentRepository")
+    private RepositoryService repository;
+
+    private final Map<Long, CachedConstraints> cache = new ConcurrentHashMap<>();
+
+    /**
+     * Get the merged constraints of the given project.
+     *
+     * @param aProject
+     *            the project.
+     * @param aErrors
+     *            receives the problems encountered while parsing and merging the constraint sets.
+     *            These are reported every time the constraints are requested.
+     * @return the constraints or {@code null} if the project has no constraint sets.
+     * @throws IOException
+     *             if a constraint set cannot be read.
+     */
+    public ParsedConstraints getConstraints(Project aProject, List<String> aErrors)
+        throws IOException
+    {
+        long version = repository.getConstraintsVersion(aProject);
+        CachedConstraints cached = cache.get(aProject.getId());
+        if (cached == null || cached.version != version) {
+            // If two users load the constraints at the same time, they are simply parsed twice
+            cached = load(aProject, version);
+            cache.put(aProject.getId(), cached);
+        }
+        aErrors.addAll(cached.errors);
+        return cached.constraints;
+    }
+
+    private CachedConstraints load(Project aProject, long aVersion)
+        throws IOException
+    {
+        List<String> errors = new ArrayList<>();
+        Map<String, String> imports = new LinkedHashMap<>();
+        Map<String, List<Rule>> scopes = new LinkedHashMap<>();
+        boolean empty = true;
+
+        for (ConstraintSet set : repository.listConstraintSets(aProject)) {
+            try {
+                String script = repository.readConstrainSet(set);
+                ConstraintsGrammar parser = new ConstraintsGrammar(new StringReader(script));
+                Parse p = parser.Parse();
+                ParsedConstraints constraints = p.accept(new ParserVisitor());
+                empty = false;
+
+                // Merge imports
+                for (Entry<String, String> e : constraints.getImports().entrySet()) {
+                    // Check if the value already points to some other feature in previous
+                    // constraint file(s).
+                    if (imports.containsKey(e.getKey())
+                            && !e.getValue().equalsIgnoreCase(imports.get(e.getKey()))) {
+                        // If detected, notify user with proper message
+                        StringBuilder errorMessage = new StringBuilder();
+                        errorMessage.append("Conflict detected in imports for key \"");
+                        errorMessage.append(e.getKey());
+                        errorMessage.append("\", conflicting values are \"");
+                        errorMessage.append(e.getValue());
+                        errorMessage.append("\" & \"");
+                        errorMessage.append(imports.get(e.getKey()));
+                        errorMessage.append(
+                                "\". Please contact Project Admin for correcting this. Constraints feature may not work.");
+                        errorMessage.append("\nAborting Constraint rules merge!");
+                        log.error(errorMessage.toString());
+                        errors.add(errorMessage.toString());
+                        break;
+                    }
+                }
+                imports.putAll(constraints.getImports());
+
+                // Merge scopes
+                for (Scope scope : constraints.getScopes()) {
+                    List<Rule> rules = scopes.get(scope.getScopeName());
+                    if (rules == null) {
+                        // Scope does not exist yet
+                        rules = new ArrayList<>();
+                        scopes.put(scope.getScopeName(), rules);
+                    }
+                    rules.addAll(scope.getRules());
+                }
+            }
+            catch (ParseException e) {
+                log.error("Error", e);
+                errors.add(e.getMessage());
+            }
+        }
+
+        ParsedConstraints merged = null;
+        if (!empty) {
+            List<Scope> mergedScopes = new ArrayList<>();
+            for (Entry<String, List<Rule>> e : scopes.entrySet()) {
+                mergedScopes.add(new Scope(e.getKey(), Collections.unmodifiableList(e.getValue())));
+            }
+            merged = new ParsedConstraints(Collections.unmodifiableMap(imports),
+                    Collections.unmodifiableList(mergedScopes));
+        }
+
+        return new CachedConstraints(aVersion, merged, Collections.unmodifiableList(errors));
+    }
+
+    private static class CachedConstraints
+    {
+        private final long version;
+        private final ParsedConstraints constraints;
+        private final List<String> errors;
+
+        public CachedConstraints(long aVersion, ParsedConstraints aConstraints,
+                List<String> aErrors)
+        {
+            version = aVersion;
+            constraints = aConstraints;
+            errors = aErrors;
+        }
+    }
+}
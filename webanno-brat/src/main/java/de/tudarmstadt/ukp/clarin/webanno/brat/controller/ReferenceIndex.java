@@ -0,0 +1,277 @@
+/*******************************************************************************
+ * Copyright 2016
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.brat.controller;
+
+import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.getAddr;
+import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.TypeUtil.getAdapter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.uima.cas.ArrayFS;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.Feature;
+import org.apache.uima.cas.FeatureStructure;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.text.AnnotationFS;
+import org.apache.uima.fit.util.CasUtil;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.AnnotationService;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationFeature;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationLayer;
+import de.tudarmstadt.ukp.clarin.webanno.model.LinkMode;
+
+/**
+ * Index of the annotations referring to the spans of a layer: the relations attached to the spans
+ * (directly or via the attach feature of the relation layer) and the annotations having link
+ * features with slots filled by the spans.
+ * <p>
+ * The index is built in a single pass over the relation and link host types and stores only
+ * annotation addresses. Since addresses are stable when a CAS is saved and loaded again, the index
+ * remains valid for all copies of the same CAS version.
+ */
+public class ReferenceIndex
+{
+    private final long documentId;
+    private final String username;
+    private final long casVersion;
+    private final long layerId;
+
+    private final Map<Integer, List<Integer>> relations = new HashMap<>();
+    private final Map<Integer, List<LinkReference>> links = new HashMap<>();
+
+    private ReferenceIndex(long aDocumentId, String aUsername, long aCasVersion, long aLayerId)
+    {
+        documentId = aDocumentId;
+        username = aUsername;
+        casVersion = aCasVersion;
+        layerId = aLayerId;
+    }
+
+    /**
+     * Build the index of references to the spans of the given layer.
+     *
+     * @param aCas
+     *            the CAS.
+     * @param aAnnotationService
+     *            the annotation service.
+     * @param aLayer
+     *            the span layer.
+     * @param aDocumentId
+     *            the ID of the document the CAS belongs to.
+     * @param aUsername
+     *            the user owning the CAS.
+     * @param aCasVersion
+     *            the version of the CAS.
+     * @return the index.
+     */
+    public static ReferenceIndex build(CAS aCas, AnnotationService aAnnotationService,
+            AnnotationLayer aLayer, long aDocumentId, String aUsername, long aCasVersion)
+    {
+        ReferenceIndex index = new ReferenceIndex(aDocumentId, aUsername, aCasVersion,
+                aLayer.getId());
+
+        for (AnnotationLayer relationLayer : aAnnotationService
+                .listAttachedRelationLayers(aLayer)) {
+            index.indexRelations(aCas, aAnnotationService, relationLayer);
+        }
+
+        for (AnnotationFeature linkFeature : aAnnotationService.listAttachedLinkFeatures(aLayer)) {
+            // Slots can only be cleared in multi-valued link features
+            if (LinkMode.WITH_ROLE.equals(linkFeature.getLinkMode())) {
+                index.indexLinks(aCas, linkFeature);
+            }
+        }
+
+        return index;
+    }
+
+    private void indexRelations(CAS aCas, AnnotationService aAnnotationService,
+            AnnotationLayer aRelationLayer)
+    {
+        ArcAdapter relationAdapter = (ArcAdapter) getAdapter(aAnnotationService, aRelationLayer);
+        Type relationType = CasUtil.getType(aCas, aRelationLayer.getName());
+        Feature sourceFeature = relationType.getFeatureByBaseName(relationAdapter
+                .getSourceFeatureName());
+        Feature targetFeature = relationType.getFeatureByBaseName(relationAdapter
+                .getTargetFeatureName());
+
+        // This code is already prepared for the day that relations can go between different
+        // layers and may have different attach features for the source and target layers.
+        Feature relationSourceAttachFeature = null;
+        Feature relationTargetAttachFeature = null;
+        if (relationAdapter.getAttachFeatureName() != null) {
+            relationSourceAttachFeature = sourceFeature.getRange().getFeatureByBaseName(
+                    relationAdapter.getAttachFeatureName());
+            relationTargetAttachFeature = targetFeature.getRange().getFeatureByBaseName(
+                    relationAdapter.getAttachFeatureName());
+        }
+
+        for (AnnotationFS relationFS : CasUtil.select(aCas, relationType)) {
+            // Here we get the annotations that the relation is pointing to in the UI
+            FeatureStructure sourceFS = relationFS.getFeatureValue(sourceFeature);
+            if (relationSourceAttachFeature != null && sourceFS != null) {
+                sourceFS = sourceFS.getFeatureValue(relationSourceAttachFeature);
+            }
+
+            FeatureStructure targetFS = relationFS.getFeatureValue(targetFeature);
+            if (relationTargetAttachFeature != null && targetFS != null) {
+                targetFS = targetFS.getFeatureValue(relationTargetAttachFeature);
+            }
+
+            int relationAddr = getAddr(relationFS);
+            if (sourceFS != null) {
+                add(relations, getAddr(sourceFS), relationAddr);
+            }
+            if (targetFS != null && !targetFS.equals(sourceFS)) {
+                add(relations, getAddr(targetFS), relationAddr);
+            }
+        }
+    }
+
+    private void indexLinks(CAS aCas, AnnotationFeature aLinkFeature)
+    {
+        Type hostType = CasUtil.getType(aCas, aLinkFeature.getLayer().getName());
+        Feature arrayFeature = hostType.getFeatureByBaseName(aLinkFeature.getName());
+        Type linkType = aCas.getTypeSystem().getType(aLinkFeature.getLinkTypeName());
+        Feature targetFeature = linkType.getFeatureByBaseName(aLinkFeature
+                .getLinkTypeTargetFeatureName());
+
+        for (AnnotationFS hostFS : CasUtil.select(aCas, hostType)) {
+            ArrayFS array = (ArrayFS) hostFS.getFeatureValue(arrayFeature);
+            if (array == null) {
+                continue;
+            }
+            int hostAddr = getAddr(hostFS);
+            for (int i = 0; i < array.size(); i++) {
+                FeatureStructure target = array.get(i).getFeatureValue(targetFeature);
+                if (target != null) {
+                    add(links, getAddr(target), new LinkReference(hostAddr, aLinkFeature));
+                }
+            }
+        }
+    }
+
+    private static <T> void add(Map<Integer, List<T>> aIndex, int aTarget, T aReference)
+    {
+        List<T> references = aIndex.get(aTarget);
+        if (references == null) {
+            references = new ArrayList<>();
+            aIndex.put(aTarget, references);
+        }
+        if (!references.contains(aReference)) {
+            references.add(aReference);
+        }
+    }
+
+    /**
+     * Check if this index can be used for the given CAS version and layer.
+     */
+    public boolean isValid(long aDocumentId, String aUsername, long aCasVersion, long aLayerId)
+    {
+        return documentId == aDocumentId && username.equals(aUsername)
+                && casVersion == aCasVersion && layerId == aLayerId;
+    }
+
+    /**
+     * @param aTargetAddr
+     *            the address of the span.
+     * @return the addresses of the relations attached to the span.
+     */
+    public List<Integer> getRelations(int aTargetAddr)
+    {
+        List<Integer> result = relations.get(aTargetAddr);
+        return result != null ? result : Collections.<Integer> emptyList();
+    }
+
+    /**
+     * @param aTargetAddr
+     *            the address of the span.
+     * @return the annotations having a slot filled by the span.
+     */
+    public List<LinkReference> getLinks(int aTargetAddr)
+    {
+        List<LinkReference> result = links.get(aTargetAddr);
+        return result != null ? result : Collections.<LinkReference> emptyList();
+    }
+
+    /**
+     * An annotation with a link feature.
+     */
+    public static class LinkReference
+    {
+        private final int hostAddr;
+        private final AnnotationFeature feature;
+
+        public LinkReference(int aHostAddr, AnnotationFeature aFeature)
+        {
+            hostAddr = aHostAddr;
+            feature = aFeature;
+        }
+
+        public int getHostAddr()
+        {
+            return hostAddr;
+        }
+
+        public AnnotationFeature getFeature()
+        {
+            return feature;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + ((feature == null) ? 0 : feature.hashCode());
+            result = prime * result + hostAddr;
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null) {
+                return false;
+            }
+            if (getClass() != obj.getClass()) {
+                return false;
+            }
+            LinkReference other = (LinkReference) obj;
+            if (feature == null) {
+                if (other.feature != null) {
+                    return false;
+                }
+            }
+            else if (!feature.equals(other.feature)) {
+                return false;
+            }
+            if (hostAddr != other.hostAddr) {
+                return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*******************************************************************************
+ * Copyright 2016
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.brat.controller;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.springframework.beans.factory.annotation.Value;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.AnnotationService;
+import de.tudarmstadt.ukp.clarin.webanno.brat.annotation.BratAnnotatorModel;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationLayer;
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+
+/**
+ * Least-recently-used cache for the rendered brat JSON of a display window and for the brat
+ * collection information (type configuration).
+ * <p>
+ * The cache key covers everything that influences the rendering: the document, the version of
+ * every CAS involved (see {@link de.tudarmstadt.ukp.clarin.webanno.api.RepositoryService#getCasVersion}),
+ * the display window, the layer settings and the schema version of the project (see
+ * {@link AnnotationService#getSchemaVersion}). Since these versions change whenever a CAS or the
+ * schema is written, entries rendered from an older state can no longer be reached and are
+ * eventually evicted.
+ */
+public class RenderCache
+{
+    private @Value(value = "${ui.brat.renderCache.size}") int capacity;
+
+    private final Map<String, String> cache = new LinkedHashMap<String, String>(16, 0.75f, true)
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Entry<String, String> aEldest)
+        {
+            return size() > capacity;
+        }
+    };
+
+    public synchronized String get(String aKey)
+    {
+        return cache.get(aKey);
+    }
+
+    public synchronized void put(String aKey, String aJson)
+    {
+        if (capacity > 0) {
+            cache.put(aKey, aJson);
+        }
+    }
+
+    public synchronized void clear()
+    {
+        cache.clear();
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    public void setCapacity(int aCapacity)
+    {
+        capacity = aCapacity;
+    }
+
+    /**
+     * Build the part of the cache key that describes the display window and the layer settings
+     * of the given model.
+     *
+     * @param aBModel
+     *            the annotator model.
+     * @param aAnnotationService
+     *            the annotation service.
+     * @return the key.
+     */
+    public static StringBuilder windowKey(BratAnnotatorModel aBModel,
+            AnnotationService aAnnotationService)
+    {
+        StringBuilder key = new StringBuilder();
+        key.append(aBModel.getDocument().getId());
+        key.append('|').append(aBModel.getMode());
+        key.append('|').append(aBModel.getScriptDirection());
+        key.append('|').append(aBModel.getSentenceAddress());
+        key.append('|').append(aBModel.getSentenceBeginOffset());
+        key.append('-').append(aBModel.getSentenceEndOffset());
+        key.append('|').append(aBModel.getPreferences().getWindowSize());
+        key.append('|').append(aBModel.getPreferences().isStaticColor());
+        appendLayers(key, aBModel.getProject(), aBModel.getAnnotationLayers(), aAnnotationService);
+        return key;
+    }
+
+    /**
+     * Build the cache key of the display window of the given model rendered from the CAS of the
+     * given user.
+     *
+     * @param aBModel
+     *            the annotator model.
+     * @param aAnnotationService
+     *            the annotation service.
+     * @param aUsername
+     *            the user owning the CAS.
+     * @param aCasVersion
+     *            the version of the CAS.
+     * @return the key.
+     */
+    public static String documentKey(BratAnnotatorModel aBModel,
+            AnnotationService aAnnotationService, String aUsername, long aCasVersion)
+    {
+        StringBuilder key = windowKey(aBModel, aAnnotationService);
+        key.append('|').append(aUsername);
+        key.append('@').append(aCasVersion);
+        return key.toString();
+    }
+
+    /**
+     * Build the cache key for the brat collection information of the given layers.
+     *
+     * @param aProject
+     *            the project.
+     * @param aLayers
+     *            the layers shown.
+     * @param aAnnotationService
+     *            the annotation service.
+     * @return the key.
+     */
+    public static String collectionKey(Project aProject, List<AnnotationLayer> aLayers,
+            AnnotationService aAnnotationService)
+    {
+        StringBuilder key = new StringBuilder("collection");
+        appendLayers(key, aProject, aLayers, aAnnotationService);
+        return key.toString();
+    }
+
+    private static void appendLayers(StringBuilder aKey, Project aProject,
+            List<AnnotationLayer> aLayers, AnnotationService aAnnotationService)
+    {
+        // Features and tags can only change along with the schema version
+        aKey.append("|S").append(aProject.getId());
+        aKey.append('@').append(aAnnotationService.getSchemaVersion(aProject));
+        for (AnnotationLayer layer : aLayers) {
+            aKey.append("|L").append(layer.getId());
+            aKey.append(layer.isEnabled() ? 'e' : '-');
+            aKey.append(layer.isReadonly() ? 'r' : '-');
+        }
+    }
+}
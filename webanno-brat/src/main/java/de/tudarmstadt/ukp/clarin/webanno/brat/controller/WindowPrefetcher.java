@@ -0,0 +1,195 @@
+/*******************************************************************************
+ * Copyright 2016
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.brat.controller;
+
+import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.selectByAddr;
+import static de.tudarmstadt.ukp.clarin.webanno.brat.util.BratAnnotatorUtility.getCasUsername;
+import static de.tudarmstadt.ukp.clarin.webanno.brat.util.BratAnnotatorUtility.isUserCas;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Resource;
+
+import org.apache.commons.io.output.StringBuilderWriter;
+import org.apache.commons.lang.SerializationUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.uima.jcas.JCas;
+import org.springframework.beans.factory.DisposableBean;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.AnnotationService;
+import de.tudarmstadt.ukp.clarin.webanno.api.RepositoryService;
+import de.tudarmstadt.ukp.clarin.webanno.brat.annotation.BratAnnotatorModel;
+import de.tudarmstadt.ukp.clarin.webanno.brat.message.GetDocumentResponse;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocument;
+import de.tudarmstadt.ukp.clarin.webanno.support.JSONUtil;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Sentence;
+
+/**
+ * Renders the display windows before and after the current one in the background and puts them
+ * into the {@link RenderCache}, so that paging through a document is served from the cache.
+ * <p>
+ * The windows are rendered by a single low-priority thread. Only the most recent requests are
+ * kept - if the user pages faster than the windows can be rendered, the older requests are
+ * dropped. The windows are cached under the CAS version they were rendered from, so edits
+ * invalidate them like any other cached window. The repository only locks the CAS of the shown
+ * document and user while it is read, so prefetching does not hold up access to other CASes.
+ * Prefetching is only requested when the user moves to another window. After an edit, the
+ * prefetched windows would be outdated right away and reading the CAS would hold up the next
+ * edit.
+ */
+public class WindowPrefetcher
+    implements DisposableBean
+{
+    private static final Log LOG = LogFactory.getLog(WindowPrefetcher.class);
+
+    private static final int QUEUE_SIZE = 8;
+
+    @Resource(name = "documentRepository")
+    private RepositoryService repository;
+
+    @Resource(name = "annotationService")
+    private AnnotationService annotationService;
+
+    @Resource(name = "renderCache")
+    private RenderCache renderCache;
+
+    private final ExecutorService executor = new ThreadPoolExecutor(1, 1, 0L,
+            TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(QUEUE_SIZE),
+            new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable aRunnable)
+                {
+                    Thread thread = new Thread(aRunnable, "brat-window-prefetch");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            }, new ThreadPoolExecutor.DiscardOldestPolicy());
+
+    /**
+     * Schedule rendering the windows adjacent to the window currently shown by the given model.
+     * The model is copied, so the caller may continue to change it.
+     *
+     * @param aBModel
+     *            the annotator model.
+     */
+    public void prefetch(BratAnnotatorModel aBModel)
+    {
+        if (renderCache.getCapacity() <= 0 || aBModel.getDocument() == null) {
+            return;
+        }
+
+        final BratAnnotatorModel bModel = (BratAnnotatorModel) SerializationUtils.clone(aBModel);
+        final String username = getCasUsername(bModel);
+        executor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    prefetchAdjacentWindows(bModel, username);
+                }
+                catch (Exception e) {
+                    // Not being able to prefetch is not an error - the window is rendered when
+                    // it is requested.
+                    LOG.debug("Unable to prefetch display windows", e);
+                }
+            }
+        });
+    }
+
+    private void prefetchAdjacentWindows(BratAnnotatorModel aBModel, String aUsername)
+        throws Exception
+    {
+        long version = repository.getCasVersion(aBModel.getDocument(), aUsername);
+        JCas jCas = readCas(aBModel);
+        // If the CAS was written in the meantime, whatever we could render is already stale
+        if (version != repository.getCasVersion(aBModel.getDocument(), aUsername)) {
+            return;
+        }
+
+        int current = aBModel.getSentenceAddress();
+        int windowSize = aBModel.getPreferences().getWindowSize();
+
+        int next = BratAjaxCasUtil.getNextPageFirstSentenceAddress(jCas, current, windowSize);
+
+        // Same as the "previous page" action - if there are less sentences before the current
+        // window than fit into the window, go to the first sentence
+        int previous = BratAjaxCasUtil.getPreviousDisplayWindowSentenceBeginAddress(jCas, current,
+                windowSize);
+        if (previous == current && current != aBModel.getFirstSentenceAddress()) {
+            previous = aBModel.getFirstSentenceAddress();
+        }
+
+        if (next != current) {
+            prefetchWindow(aBModel, aUsername, version, jCas, next);
+        }
+        if (previous != current) {
+            prefetchWindow(aBModel, aUsername, version, jCas, previous);
+        }
+    }
+
+    private void prefetchWindow(BratAnnotatorModel aBModel, String aUsername, long aVersion,
+            JCas aJCas, int aSentenceAddress)
+        throws IOException
+    {
+        Sentence sentence = selectByAddr(aJCas, Sentence.class, aSentenceAddress);
+        aBModel.setSentenceAddress(aSentenceAddress);
+        aBModel.setSentenceBeginOffset(sentence.getBegin());
+        aBModel.setSentenceEndOffset(sentence.getEnd());
+
+        String key = RenderCache.documentKey(aBModel, annotationService, aUsername, aVersion);
+        if (renderCache.get(key) != null) {
+            return;
+        }
+
+        GetDocumentResponse response = new GetDocumentResponse();
+        BratAjaxCasController.render(response, aBModel, aJCas, annotationService);
+        StringBuilder json = new StringBuilder();
+        JSONUtil.writeJson(response, new StringBuilderWriter(json));
+        renderCache.put(key, json.toString());
+    }
+
+    private JCas readCas(BratAnnotatorModel aBModel)
+        throws Exception
+    {
+        if (isUserCas(aBModel)) {
+            // Not using readAnnotationCas(SourceDocument, User) here because it changes the
+            // state of the document
+            AnnotationDocument annotationDocument = repository.getAnnotationDocument(
+                    aBModel.getDocument(), aBModel.getUser());
+            return repository.readAnnotationCas(annotationDocument);
+        }
+        else {
+            return repository.readCurationCas(aBModel.getDocument());
+        }
+    }
+
+    @Override
+    public void destroy()
+    {
+        executor.shutdownNow();
+    }
+}
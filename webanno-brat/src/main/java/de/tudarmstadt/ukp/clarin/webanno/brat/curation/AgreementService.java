@@ -0,0 +1,889 @@
+/*******************************************************************************
+ * Copyright 2016
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.brat.curation;
+
+import static java.util.Arrays.asList;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Resource;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.SerializationException;
+import org.apache.commons.lang.SerializationUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.uima.UIMAException;
+import org.apache.uima.jcas.JCas;
+import org.springframework.beans.factory.DisposableBean;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.AnnotationService;
+import de.tudarmstadt.ukp.clarin.webanno.api.RepositoryService;
+import de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.AgreementUtils.AgreementContribution;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.AgreementUtils.AgreementResult;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.AgreementUtils.ConcreteAgreementMeasure;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.DiffAdapter;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.DiffResult;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.LinkCompareBehavior;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocument;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocumentState;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationFeature;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationLayer;
+import de.tudarmstadt.ukp.clarin.webanno.model.LinkMode;
+import de.tudarmstadt.ukp.clarin.webanno.model.PermissionLevel;
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
+import de.tudarmstadt.ukp.clarin.webanno.model.User;
+import de.tudarmstadt.ukp.dkpro.core.api.metadata.type.DocumentMetaData;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
+
+/**
+ * Calculates the agreement studies of each document and stores them in the repository, so that
+ * the agreement of a project can be obtained by merging the stored studies instead of loading all
+ * finished CASes.
+ * <p>
+ * The studies of a document are calculated in the background for all features of the project
+ * whenever the state of one of its annotation documents changes (see
+ * {@link #documentStateChanged(SourceDocument)}). Each stored study remembers which CASes and
+ * which definition of its layer it was calculated from. If the finished CASes of a document or
+ * the layer change otherwise, e.g. because a project was imported or a feature was edited, the
+ * stored study is not used and the study is calculated again when it is requested.
+ */
+public class AgreementService
+    implements DisposableBean
+{
+    private static final Log LOG = LogFactory.getLog(AgreementService.class);
+
+    private static final String AGREEMENT_FOLDER = "agreement";
+
+    /**
+     * Fingerprint key of the schema version and layer definition.
+     */
+    private static final String SCHEMA = "#schema";
+
+    /**
+     * Fingerprint key marking that a CAS has been written too recently to rely on its timestamp.
+     */
+    private static final String UNSETTLED = "#unsettled";
+
+    /**
+     * The coarsest modification time resolution of the file systems we expect (FAT has two
+     * seconds).
+     */
+    private static final long TIMESTAMP_RESOLUTION = 2000;
+
+    /**
+     * The number of calculations submitted via {@link #submit(Runnable)} which run at once.
+     */
+    private static final int CALCULATION_THREADS = 2;
+
+    @Resource(name = "documentRepository")
+    private RepositoryService repository;
+
+    @Resource(name = "annotationService")
+    private AnnotationService annotationService;
+
+    /**
+     * The IDs of the documents waiting to be updated. A document is queued at most once, so the
+     * queue cannot grow beyond the number of documents.
+     */
+    private final Set<Long> pending = ConcurrentHashMap.newKeySet();
+
+    private final ExecutorService executor = new ThreadPoolExecutor(1, 1, 0L,
+            TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable aRunnable)
+                {
+                    Thread thread = new Thread(aRunnable, "agreement-update");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+
+    /**
+     * Diffs the documents when agreement is requested. The pool has one thread per core, so at
+     * most that many documents have their CASes loaded at a time - also if several agreements
+     * are calculated at once. Idle threads are released again.
+     */
+    private final ThreadPoolExecutor diffExecutor = new ThreadPoolExecutor(
+            Runtime.getRuntime().availableProcessors(),
+            Runtime.getRuntime().availableProcessors(), 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable aRunnable)
+                {
+                    Thread thread = new Thread(aRunnable, "agreement-diff");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * Runs the calculations requested by users, e.g. agreement reports.
+     */
+    private final ExecutorService calculationExecutor = new ThreadPoolExecutor(
+            CALCULATION_THREADS, CALCULATION_THREADS, 0L, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable aRunnable)
+                {
+                    Thread thread = new Thread(aRunnable, "agreement-report");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    public AgreementService()
+    {
+        diffExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Schedule calculating the agreement studies of the given document. This should be called
+     * whenever an annotation document of the document reaches or leaves the finished state. If
+     * the document is already waiting to be updated, nothing happens.
+     *
+     * @param aDocument
+     *            the source document.
+     */
+    public void documentStateChanged(final SourceDocument aDocument)
+    {
+        if (!pending.add(aDocument.getId())) {
+            return;
+        }
+
+        executor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                // Changes from here on schedule the document again
+                pending.remove(aDocument.getId());
+                try {
+                    // The document may have been removed while it was waiting
+                    if (repository.existsSourceDocument(aDocument.getProject(),
+                            aDocument.getName())) {
+                        updateDocument(aDocument);
+                    }
+                }
+                catch (Exception e) {
+                    // The studies are calculated again when they are requested the next time
+                    LOG.error("Unable to calculate agreement for document [" + aDocument.getName()
+                            + "]", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Run a long agreement calculation, e.g. a report, in the background. Only a few calculations
+     * run at once, further ones wait until one of them is done. Calculations which have not
+     * finished when the application is shut down are interrupted.
+     *
+     * @param aCalculation
+     *            the calculation. It has to report its progress and errors itself.
+     * @return the future of the calculation.
+     */
+    public Future<?> submit(Runnable aCalculation)
+    {
+        return calculationExecutor.submit(aCalculation);
+    }
+
+    /**
+     * Get the pairwise agreement on the given feature by merging the studies of all documents.
+     * Each document is processed on its own: stored studies are used if they are up to date,
+     * otherwise the CASes of the document are loaded, diffed and released again. Several
+     * documents are processed in parallel, but at most one per core, so only the CASes of a few
+     * documents are in memory at a time.
+     */
+    public PairwiseAnnotationResult getPairwiseAgreement(Project aProject,
+        AnnotationFeature aFeature, ConcreteAgreementMeasure aMeasure,
+        LinkCompareBehavior aLinkCompareBehavior, boolean aExcludeIncomplete)
+        throws IOException, UIMAException
+    {
+        return getLayerAgreement(aProject, aFeature.getLayer(), asList(aFeature), aMeasure,
+                aLinkCompareBehavior, aExcludeIncomplete, null).get(aFeature);
+    }
+
+    /**
+     * Get the pairwise agreement on all features of the given layer. Each layer is diffed only
+     * once per document and the agreement on all its features is derived from the same diff.
+     *
+     * @param aListener
+     *            receives the progress after each document. May be {@code null}.
+     * @return the agreement by feature in the order of the features of the layer.
+     */
+    public Map<AnnotationFeature, PairwiseAnnotationResult> getLayerAgreement(Project aProject,
+        AnnotationLayer aLayer, ConcreteAgreementMeasure aMeasure,
+        LinkCompareBehavior aLinkCompareBehavior, boolean aExcludeIncomplete,
+        ProgressListener aListener)
+        throws IOException, UIMAException
+    {
+        List<AnnotationFeature> features = listFeatures(aProject).get(aLayer);
+        if (features == null) {
+            return new LinkedHashMap<>();
+        }
+        return getLayerAgreement(aProject, aLayer, features, aMeasure, aLinkCompareBehavior,
+                aExcludeIncomplete, aListener);
+    }
+
+    private Map<AnnotationFeature, PairwiseAnnotationResult> getLayerAgreement(
+        Project aProject, final AnnotationLayer aLayer, final List<AnnotationFeature> aFeatures,
+        ConcreteAgreementMeasure aMeasure, LinkCompareBehavior aLinkCompareBehavior,
+        final boolean aExcludeIncomplete, ProgressListener aListener)
+        throws IOException, UIMAException
+    {
+        final List<String> users = listUsers(aProject);
+        final Map<Long, Map<String, AnnotationDocument>> finished = listFinished(aProject);
+        final LinkCompareBehavior behavior = getEffectiveBehavior(aLayer, aLinkCompareBehavior);
+
+        // The documents are diffed in parallel, but merged in document order, so the items are in
+        // the same order as if the agreement was calculated over all documents at once
+        List<Callable<Map<AnnotationFeature, Map<List<String>, AgreementContribution>>>> tasks =
+                new ArrayList<>();
+        for (final SourceDocument document : listDocuments(aProject)) {
+            tasks.add(
+                    new Callable<Map<AnnotationFeature, Map<List<String>, AgreementContribution>>>()
+            {
+                @Override
+                public Map<AnnotationFeature, Map<List<String>, AgreementContribution>> call()
+                    throws IOException, UIMAException
+                {
+                    return getDocumentContributions(document, aLayer, aFeatures, behavior,
+                            aExcludeIncomplete, users, getFinished(finished, document));
+                }
+            });
+        }
+        Map<AnnotationFeature, Map<List<String>, AgreementContribution>> totals = foldInOrder(
+                diffExecutor, tasks, aListener);
+
+        Map<AnnotationFeature, PairwiseAnnotationResult> results = new LinkedHashMap<>();
+        for (AnnotationFeature feature : aFeatures) {
+            PairwiseAnnotationResult result = new PairwiseAnnotationResult();
+            for (int m = 0; m < users.size(); m++) {
+                for (int n = 0; n < m; n++) {
+                    List<String> pair = pairKey(users.get(m), users.get(n));
+                    AgreementContribution total = totals.containsKey(feature) ? totals.get(
+                            feature).get(pair) : null;
+                    if (total == null) {
+                        // There are no documents
+                        total = new AgreementContribution();
+                    }
+                    AgreementResult res = new AgreementResult(aLayer.getName(),
+                            feature.getName(), pair, total, aExcludeIncomplete);
+                    result.add(users.get(m), users.get(n),
+                            AgreementUtils.calculateAgreement(aMeasure, res));
+                }
+            }
+            results.put(feature, result);
+        }
+        return results;
+    }
+
+    /**
+     * Get the contributions of a document to the studies of the given features. Only if the
+     * stored studies of some feature are missing or outdated, the CASes are loaded and the layer
+     * is diffed - once for all features.
+     *
+     * @return the contributions by feature and pair of users.
+     */
+    private Map<AnnotationFeature, Map<List<String>, AgreementContribution>>
+            getDocumentContributions(SourceDocument aDocument, AnnotationLayer aLayer,
+            List<AnnotationFeature> aFeatures, LinkCompareBehavior aBehavior,
+            boolean aExcludeIncomplete, List<String> aUsers,
+            Map<String, AnnotationDocument> aFinished)
+        throws IOException, UIMAException
+    {
+        Map<String, String> fingerprint = getFingerprint(aDocument, aLayer, aUsers, aFinished);
+
+        Map<AnnotationFeature, Map<List<String>, AgreementContribution>> result =
+                new LinkedHashMap<>();
+        Map<Long, Map<Boolean, DocumentStudies>> updated = null;
+        for (AnnotationFeature feature : aFeatures) {
+            DocumentStudies studies = read(getStudiesFile(aDocument, feature, aBehavior,
+                    aExcludeIncomplete));
+            if (studies == null || !studies.fingerprint.equals(fingerprint)) {
+                if (updated == null) {
+                    updated = updateLayer(aDocument, aLayer, aBehavior, aUsers, aFinished,
+                            fingerprint);
+                }
+                studies = updated.get(feature.getId()).get(aExcludeIncomplete);
+            }
+            result.put(feature, studies.pairs);
+        }
+        return result;
+    }
+
+    /**
+     * Run the given tasks on the executor and merge their contributions in the order of the
+     * tasks, so the result is the same as if the tasks were run one after another. If a task
+     * fails, the remaining tasks are cancelled.
+     *
+     * @param aListener
+     *            receives the progress after each task. May be {@code null}.
+     * @return the merged contributions by key and pair of users.
+     */
+    static <K> Map<K, Map<List<String>, AgreementContribution>> foldInOrder(
+            ExecutorService aExecutor,
+            List<Callable<Map<K, Map<List<String>, AgreementContribution>>>> aTasks,
+            ProgressListener aListener)
+        throws IOException, UIMAException
+    {
+        List<Future<Map<K, Map<List<String>, AgreementContribution>>>> futures =
+                new ArrayList<>();
+        try {
+            for (Callable<Map<K, Map<List<String>, AgreementContribution>>> task : aTasks) {
+                futures.add(aExecutor.submit(task));
+            }
+
+            Map<K, Map<List<String>, AgreementContribution>> totals = new LinkedHashMap<>();
+            for (int i = 0; i < futures.size(); i++) {
+                for (Map.Entry<K, Map<List<String>, AgreementContribution>> e : futures.get(i)
+                        .get().entrySet()) {
+                    Map<List<String>, AgreementContribution> total = totals.get(e.getKey());
+                    if (total == null) {
+                        total = new HashMap<>();
+                        totals.put(e.getKey(), total);
+                    }
+                    fold(total, e.getValue());
+                }
+
+                if (aListener != null) {
+                    aListener.progress(i + 1, futures.size());
+                }
+            }
+            return totals;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while calculating agreement");
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            else if (cause instanceof UIMAException) {
+                throw (UIMAException) cause;
+            }
+            else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            else {
+                throw new IllegalStateException(cause);
+            }
+        }
+        finally {
+            // Does nothing if all tasks are done
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private static void fold(Map<List<String>, AgreementContribution> aTotals,
+            Map<List<String>, AgreementContribution> aPairs)
+    {
+        for (Map.Entry<List<String>, AgreementContribution> e : aPairs.entrySet()) {
+            AgreementContribution total = aTotals.get(e.getKey());
+            if (total == null) {
+                total = new AgreementContribution();
+                aTotals.put(e.getKey(), total);
+            }
+            total.add(e.getValue());
+        }
+    }
+
+    /**
+     * Calculate and store the studies of all features for the given document. Studies which are
+     * still up to date are skipped - the CASes are only read if any study needs to be updated.
+     */
+    private void updateDocument(SourceDocument aDocument)
+        throws IOException, UIMAException
+    {
+        Project project = aDocument.getProject();
+        List<String> users = listUsers(project);
+        Map<String, AnnotationDocument> finished = getFinished(listFinished(project), aDocument);
+
+        Map<String, List<JCas>> casMap = null;
+        List<DiffAdapter> adapters = null;
+
+        Map<AnnotationLayer, List<AnnotationFeature>> featuresByLayer = listFeatures(project);
+        removeOrphanedStudies(aDocument, featuresByLayer);
+        for (AnnotationLayer layer : featuresByLayer.keySet()) {
+            // Determine the fingerprint before reading the CASes - if they change in the
+            // meantime, the studies are calculated again the next time
+            Map<String, String> fingerprint = getFingerprint(aDocument, layer, users, finished);
+            for (LinkCompareBehavior behavior : getBehaviors(layer)) {
+                if (isUpToDate(aDocument, featuresByLayer.get(layer), behavior, fingerprint)) {
+                    continue;
+                }
+
+                if (casMap == null) {
+                    casMap = readCases(users, finished);
+                    adapters = CasDiff2.getAdapters(annotationService, project);
+                }
+                DiffResult diff = CasDiff2.doDiff(asList(layer.getName()), adapters, behavior,
+                        casMap);
+                for (AnnotationFeature feature : featuresByLayer.get(layer)) {
+                    writeStudies(aDocument, feature, behavior, users, fingerprint, diff, casMap);
+                }
+            }
+        }
+    }
+
+    /**
+     * Check if the stored studies of all the given features match the fingerprint.
+     */
+    private boolean isUpToDate(SourceDocument aDocument, List<AnnotationFeature> aFeatures,
+            LinkCompareBehavior aBehavior, Map<String, String> aFingerprint)
+    {
+        for (AnnotationFeature feature : aFeatures) {
+            for (boolean excludeIncomplete : new boolean[] { false, true }) {
+                DocumentStudies studies = read(getStudiesFile(aDocument, feature, aBehavior,
+                        excludeIncomplete));
+                if (studies == null || !studies.fingerprint.equals(aFingerprint)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Calculate and store the studies of all features of a layer for the given document.
+     *
+     * @param aFingerprint
+     *            the fingerprint the stored studies were checked against. It must have been
+     *            determined before reading the CASes.
+     * @return the studies by feature ID and exclusion setting.
+     */
+    private Map<Long, Map<Boolean, DocumentStudies>> updateLayer(SourceDocument aDocument,
+            AnnotationLayer aLayer, LinkCompareBehavior aBehavior, List<String> aUsers,
+            Map<String, AnnotationDocument> aFinished, Map<String, String> aFingerprint)
+        throws IOException, UIMAException
+    {
+        Map<String, List<JCas>> casMap = readCases(aUsers, aFinished);
+        List<DiffAdapter> adapters = CasDiff2.getAdapters(annotationService,
+                aDocument.getProject());
+        DiffResult diff = CasDiff2.doDiff(asList(aLayer.getName()), adapters, aBehavior,
+                casMap);
+
+        Map<Long, Map<Boolean, DocumentStudies>> result = new HashMap<>();
+        for (AnnotationFeature feature : listFeatures(aDocument.getProject()).get(aLayer)) {
+            result.put(feature.getId(), writeStudies(aDocument, feature, aBehavior, aUsers,
+                    aFingerprint, diff, casMap));
+        }
+        return result;
+    }
+
+    /**
+     * Store the studies of a feature with and without incomplete configurations. If a CAS has
+     * been written too recently to tell a later write apart by its timestamp, the studies are
+     * only returned, but not stored.
+     */
+    private Map<Boolean, DocumentStudies> writeStudies(SourceDocument aDocument,
+            AnnotationFeature aFeature, LinkCompareBehavior aBehavior, List<String> aUsers,
+            Map<String, String> aFingerprint, DiffResult aDiff, Map<String, List<JCas>> aCasMap)
+        throws IOException
+    {
+        Map<Boolean, DocumentStudies> result = new HashMap<>();
+        for (boolean excludeIncomplete : new boolean[] { false, true }) {
+            Map<List<String>, AgreementContribution> pairs = getContributions(excludeIncomplete,
+                    aDiff, aFeature.getLayer().getName(), aFeature.getName(), aUsers, aCasMap);
+            DocumentStudies documentStudies = new DocumentStudies(aFingerprint, pairs);
+            if (!aFingerprint.containsKey(UNSETTLED)) {
+                write(getStudiesFile(aDocument, aFeature, aBehavior, excludeIncomplete),
+                        documentStudies);
+            }
+            result.put(excludeIncomplete, documentStudies);
+        }
+        return result;
+    }
+
+    /**
+     * Get the contribution of a document to the studies of all pairs of users.
+     */
+    static Map<List<String>, AgreementContribution> getContributions(boolean aExcludeIncomplete,
+            DiffResult aDiff, String aType, String aFeature, List<String> aUsers,
+            Map<String, List<JCas>> aCasMap)
+    {
+        PairwiseAnnotationResult studies = AgreementUtils.getPairwiseStudies(aExcludeIncomplete,
+                aDiff, aType, aFeature, aCasMap);
+        Map<List<String>, AgreementContribution> pairs = new HashMap<>();
+        for (int m = 0; m < aUsers.size(); m++) {
+            for (int n = 0; n < m; n++) {
+                pairs.put(pairKey(aUsers.get(m), aUsers.get(n)), new AgreementContribution(
+                        studies.getStudy(aUsers.get(m), aUsers.get(n))));
+            }
+        }
+        return pairs;
+    }
+
+    /**
+     * Read the CASes of the users who have finished the document.
+     *
+     * @param aFinished
+     *            the finished annotation documents by user. May be {@code null} if nobody has
+     *            finished the document yet.
+     * @return the CASes by user. Users who did not finish the document get a {@code null} CAS.
+     */
+    Map<String, List<JCas>> readCases(List<String> aUsers,
+            Map<String, AnnotationDocument> aFinished)
+        throws IOException, UIMAException
+    {
+        Map<String, List<JCas>> casMap = new LinkedHashMap<>();
+        for (String user : aUsers) {
+            JCas jCas = null;
+            AnnotationDocument annotationDocument = aFinished != null ? aFinished.get(user)
+                    : null;
+            if (annotationDocument != null) {
+                jCas = repository.readAnnotationCas(annotationDocument);
+                repository.upgradeCas(jCas.getCas(), annotationDocument);
+
+                // Set the CAS name in the DocumentMetaData so that we can pick it up in the
+                // Diff position for the purpose of debugging / transparency.
+                DocumentMetaData documentMetadata = DocumentMetaData.get(jCas);
+                documentMetadata.setDocumentId(annotationDocument.getDocument().getName());
+                documentMetadata.setCollectionId(annotationDocument.getProject().getName());
+            }
+            // Users who did not finish the document get a null CAS
+            casMap.put(user, asList(jCas));
+        }
+        return casMap;
+    }
+
+    /**
+     * The fingerprint records which users have finished the document, the timestamps and sizes of
+     * their CAS files, the schema version of the project and the definition of the layer. If any
+     * of these change, the stored studies of the layer are no longer used.
+     */
+    private Map<String, String> getFingerprint(SourceDocument aDocument, AnnotationLayer aLayer,
+            List<String> aUsers, Map<String, AnnotationDocument> aFinished)
+    {
+        Map<String, String> fingerprint = new HashMap<>();
+        long now = System.currentTimeMillis();
+        for (String user : aUsers) {
+            if (aFinished.containsKey(user)) {
+                File casFile = repository.getCasFile(aDocument, user);
+                fingerprint.put(user, casFile.lastModified() + ":" + casFile.length());
+
+                // Some file systems only record the modification time in seconds
+                if (now - casFile.lastModified() < TIMESTAMP_RESOLUTION) {
+                    fingerprint.put(UNSETTLED, "true");
+                }
+            }
+            else {
+                fingerprint.put(user, "-");
+            }
+        }
+        fingerprint.put(SCHEMA, annotationService.getSchemaVersion(aDocument.getProject()) + ":"
+                + getDefinition(aLayer));
+        return fingerprint;
+    }
+
+    /**
+     * Describe everything about a layer and its features that affects the diff or the studies.
+     */
+    private String getDefinition(AnnotationLayer aLayer)
+    {
+        StringBuilder definition = new StringBuilder();
+        definition.append(aLayer.getName()).append('|').append(aLayer.getType()).append('|')
+                .append(aLayer.getAttachType() != null ? aLayer.getAttachType().getName() : "")
+                .append('|')
+                .append(aLayer.getAttachFeature() != null ? aLayer.getAttachFeature().getName()
+                        : "")
+                .append('|').append(aLayer.isEnabled()).append(aLayer.isAllowStacking())
+                .append(aLayer.isCrossSentence()).append(aLayer.isLockToTokenOffset())
+                .append(aLayer.isMultipleTokens()).append(aLayer.isLinkedListBehavior());
+        for (AnnotationFeature feature : annotationService.listAnnotationFeature(aLayer)) {
+            definition.append('|').append(feature.getId()).append(':').append(feature.getName())
+                    .append(':').append(feature.getType()).append(':')
+                    .append(feature.isEnabled()).append(':').append(feature.getMultiValueMode())
+                    .append(':').append(feature.getLinkMode()).append(':')
+                    .append(feature.getLinkTypeName()).append(':')
+                    .append(feature.getLinkTypeRoleFeatureName()).append(':')
+                    .append(feature.getLinkTypeTargetFeatureName()).append(':')
+                    .append(feature.getTagset() != null ? feature.getTagset().getId() : "");
+        }
+        return definition.toString();
+    }
+
+    private List<String> listUsers(Project aProject)
+    {
+        List<String> users = new ArrayList<>();
+        for (User user : repository.listProjectUsersWithPermissions(aProject,
+                PermissionLevel.USER)) {
+            users.add(user.getUsername());
+        }
+        return users;
+    }
+
+    /**
+     * @return the finished annotation documents by source document ID and user.
+     */
+    private Map<Long, Map<String, AnnotationDocument>> listFinished(Project aProject)
+    {
+        Map<Long, Map<String, AnnotationDocument>> finished = new HashMap<>();
+        for (AnnotationDocument annotationDocument : repository
+                .listFinishedAnnotationDocuments(aProject)) {
+            // Make sure we only get what the monitoring page considers as finished
+            if (!AnnotationDocumentState.FINISHED.equals(annotationDocument.getState())) {
+                continue;
+            }
+            Map<String, AnnotationDocument> byUser = finished.get(annotationDocument
+                    .getDocument().getId());
+            if (byUser == null) {
+                byUser = new HashMap<>();
+                finished.put(annotationDocument.getDocument().getId(), byUser);
+            }
+            byUser.put(annotationDocument.getUser(), annotationDocument);
+        }
+        return finished;
+    }
+
+    /**
+     * @return the finished annotation documents of the given document by user. The map is empty
+     *         if nobody has finished the document.
+     */
+    private static Map<String, AnnotationDocument> getFinished(
+            Map<Long, Map<String, AnnotationDocument>> aFinished, SourceDocument aDocument)
+    {
+        Map<String, AnnotationDocument> finished = aFinished.get(aDocument.getId());
+        return finished != null ? finished : Collections.<String, AnnotationDocument> emptyMap();
+    }
+
+    private List<SourceDocument> listDocuments(Project aProject)
+    {
+        // Training documents are not being annotated
+        List<SourceDocument> documents = new ArrayList<>();
+        for (SourceDocument document : repository.listSourceDocuments(aProject)) {
+            if (!document.isTrainingDocument()) {
+                documents.add(document);
+            }
+        }
+        return documents;
+    }
+
+    /**
+     * @return the features for which agreement can be calculated by their layer.
+     */
+    private Map<AnnotationLayer, List<AnnotationFeature>> listFeatures(Project aProject)
+    {
+        Map<AnnotationLayer, List<AnnotationFeature>> featuresByLayer = new LinkedHashMap<>();
+        for (AnnotationFeature feature : annotationService.listAnnotationFeature(aProject)) {
+            String layerName = feature.getLayer().getName();
+            if (layerName.equals(Token.class.getName())
+                    || layerName.equals(WebAnnoConst.COREFERENCE_LAYER)) {
+                continue;
+            }
+            List<AnnotationFeature> features = featuresByLayer.get(feature.getLayer());
+            if (features == null) {
+                features = new ArrayList<>();
+                featuresByLayer.put(feature.getLayer(), features);
+            }
+            features.add(feature);
+        }
+        return featuresByLayer;
+    }
+
+    /**
+     * The link compare behavior only makes a difference if the layer has link features.
+     */
+    private List<LinkCompareBehavior> getBehaviors(AnnotationLayer aLayer)
+    {
+        if (hasLinkFeatures(aLayer)) {
+            return asList(LinkCompareBehavior.values());
+        }
+        else {
+            return asList(LinkCompareBehavior.LINK_TARGET_AS_LABEL);
+        }
+    }
+
+    private LinkCompareBehavior getEffectiveBehavior(AnnotationLayer aLayer,
+            LinkCompareBehavior aBehavior)
+    {
+        return hasLinkFeatures(aLayer) ? aBehavior : LinkCompareBehavior.LINK_TARGET_AS_LABEL;
+    }
+
+    private boolean hasLinkFeatures(AnnotationLayer aLayer)
+    {
+        for (AnnotationFeature feature : annotationService.listAnnotationFeature(aLayer)) {
+            if (!LinkMode.NONE.equals(feature.getLinkMode())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static List<String> pairKey(String aUser1, String aUser2)
+    {
+        List<String> pair = new ArrayList<>(asList(aUser1, aUser2));
+        Collections.sort(pair);
+        return pair;
+    }
+
+    private File getStudiesFile(SourceDocument aDocument, AnnotationFeature aFeature,
+            LinkCompareBehavior aBehavior, boolean aExcludeIncomplete)
+    {
+        return new File(getStudiesFolder(aDocument), aFeature.getId() + "-" + aBehavior + "-"
+                + (aExcludeIncomplete ? "exclude" : "include") + ".ser");
+    }
+
+    private File getStudiesFolder(SourceDocument aDocument)
+    {
+        // The document folder contains the "source" and "annotation" folders
+        File documentFolder;
+        try {
+            documentFolder = repository.getDocumentFolder(aDocument).getParentFile();
+        }
+        catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return new File(documentFolder, AGREEMENT_FOLDER);
+    }
+
+    /**
+     * Delete the stored studies of features which no longer exist.
+     */
+    private void removeOrphanedStudies(SourceDocument aDocument,
+            Map<AnnotationLayer, List<AnnotationFeature>> aFeaturesByLayer)
+    {
+        Set<String> prefixes = new HashSet<>();
+        for (List<AnnotationFeature> features : aFeaturesByLayer.values()) {
+            for (AnnotationFeature feature : features) {
+                prefixes.add(feature.getId() + "-");
+            }
+        }
+
+        File[] files = getStudiesFolder(aDocument).listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(".ser") && !prefixes.contains(name.substring(0,
+                    name.indexOf('-') + 1))) {
+                FileUtils.deleteQuietly(file);
+            }
+        }
+    }
+
+    private DocumentStudies read(File aFile)
+    {
+        if (!aFile.exists()) {
+            return null;
+        }
+
+        try (InputStream is = new BufferedInputStream(new FileInputStream(aFile))) {
+            return (DocumentStudies) SerializationUtils.deserialize(is);
+        }
+        catch (IOException | SerializationException | ClassCastException e) {
+            // Unreadable studies are simply calculated again
+            LOG.warn("Unable to read agreement studies from [" + aFile + "]", e);
+            return null;
+        }
+    }
+
+    private void write(File aFile, DocumentStudies aStudies)
+        throws IOException
+    {
+        FileUtils.forceMkdir(aFile.getParentFile());
+
+        // Write to a temporary file first, so readers never see a partially written file. The
+        // background thread and a request may write the same studies at the same time.
+        File tmp = File.createTempFile(aFile.getName(), ".tmp", aFile.getParentFile());
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(tmp))) {
+            SerializationUtils.serialize(aStudies, os);
+        }
+        aFile.delete();
+        if (!tmp.renameTo(aFile)) {
+            tmp.delete();
+            throw new IOException("Cannot rename file [" + tmp + "] to [" + aFile + "]");
+        }
+    }
+
+    @Override
+    public void destroy()
+    {
+        executor.shutdownNow();
+        diffExecutor.shutdownNow();
+        calculationExecutor.shutdownNow();
+    }
+
+    /**
+     * Receives the progress of a long-running agreement calculation.
+     */
+    public static interface ProgressListener
+    {
+        void progress(int aDocumentsDone, int aDocumentCount);
+    }
+
+    /**
+     * The studies of all pairs of users for a single document.
+     */
+    private static class DocumentStudies
+        implements Serializable
+    {
+        private static final long serialVersionUID = 4517042139372518809L;
+
+        private final Map<String, String> fingerprint;
+        private final Map<List<String>, AgreementContribution> pairs;
+
+        public DocumentStudies(Map<String, String> aFingerprint,
+                Map<List<String>, AgreementContribution> aPairs)
+        {
+            fingerprint = aFingerprint;
+            pairs = aPairs;
+        }
+    }
+}
@@ -18,16 +18,20 @@
 package de.tudarmstadt.ukp.clarin.webanno.brat.curation;
 
 import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.getFeature;
+import static java.util.Arrays.asList;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.stream.Collectors;
 
 import org.apache.commons.csv.CSVPrinter;
 import org.apache.commons.lang.ObjectUtils;
@@ -118,7 +122,49 @@ public class AgreementUtils
             ConcreteAgreementMeasure aMeasure, boolean aExcludeIncomplete,
             DiffResult aDiff, String aType, String aFeature, Map<String, List<JCas>> aCasMap)
     {
+        List<String[]> pairs = new ArrayList<>();
+        List<StudyBuilder> builders = makePairwiseStudies(aExcludeIncomplete, aDiff, aType,
+                aFeature, aCasMap, pairs);
+        
+        // The pairs are independent of each other, so their agreement can be calculated in
+        // parallel
+        List<AgreementResult> results = builders.parallelStream()
+                .map(b -> calculateAgreement(aMeasure, b.toResult(aType, aFeature, aDiff)))
+                .collect(Collectors.toList());
+        
         PairwiseAnnotationResult result = new PairwiseAnnotationResult();
+        for (int i = 0; i < pairs.size(); i++) {
+            result.add(pairs.get(i)[0], pairs.get(i)[1], results.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Collect the studies of all pairs of users without calculating the agreement, e.g. to
+     * merge them with the studies of other documents first.
+     */
+    public static PairwiseAnnotationResult getPairwiseStudies(boolean aExcludeIncomplete,
+            DiffResult aDiff, String aType, String aFeature, Map<String, List<JCas>> aCasMap)
+    {
+        List<String[]> pairs = new ArrayList<>();
+        List<StudyBuilder> builders = makePairwiseStudies(aExcludeIncomplete, aDiff, aType,
+                aFeature, aCasMap, pairs);
+        
+        PairwiseAnnotationResult result = new PairwiseAnnotationResult();
+        for (int i = 0; i < pairs.size(); i++) {
+            result.add(pairs.get(i)[0], pairs.get(i)[1],
+                    builders.get(i).toResult(aType, aFeature, aDiff));
+        }
+        return result;
+    }
+    
+    private static List<StudyBuilder> makePairwiseStudies(boolean aExcludeIncomplete,
+            DiffResult aDiff, String aType, String aFeature, Map<String, List<JCas>> aCasMap,
+            List<String[]> aPairs)
+    {
+        // Set up the studies of all pairs first, so they can be filled in a single pass over the
+        // diff instead of one pass per pair
+        List<StudyBuilder> builders = new ArrayList<>();
         List<Entry<String, List<JCas>>> entryList = new ArrayList<>(aCasMap.entrySet());
         for (int m = 0; m < entryList.size(); m++) {
             for (int n = 0; n < entryList.size(); n++) {
@@ -127,13 +173,16 @@ public class AgreementUtils
                     Map<String, List<JCas>> pairwiseCasMap = new LinkedHashMap<>();
                     pairwiseCasMap.put(entryList.get(m).getKey(), entryList.get(m).getValue());
                     pairwiseCasMap.put(entryList.get(n).getKey(), entryList.get(n).getValue());
-                    AgreementResult res = getAgreement(aMeasure, aExcludeIncomplete, aDiff, aType,
-                            aFeature, pairwiseCasMap);
-                    result.add(entryList.get(m).getKey(), entryList.get(n).getKey(), res);
+                    aPairs.add(new String[] { entryList.get(m).getKey(),
+                            entryList.get(n).getKey() });
+                    builders.add(new StudyBuilder(pairwiseCasMap, aExcludeIncomplete));
                 }
             }
         }
-        return result;
+        
+        makeStudies(aDiff, aType, aFeature, true, aCasMap, builders);
+        
+        return builders;
     }
 
     public static AgreementResult getCohenKappaAgreement(DiffResult aDiff, String aType,
@@ -153,6 +202,12 @@ public class AgreementUtils
         
         AgreementResult agreementResult = AgreementUtils.makeStudy(aDiff, aType, aFeature,
                 aExcludeIncomplete, aCasMap);
+        return calculateAgreement(aMeasure, agreementResult);
+    }
+    
+    public static AgreementResult calculateAgreement(ConcreteAgreementMeasure aMeasure,
+            AgreementResult agreementResult)
+    {
         try {
             IAgreementMeasure agreement = aMeasure.make(agreementResult.study);
             
@@ -198,41 +253,56 @@ public class AgreementUtils
             String aType, String aFeature, boolean aExcludeIncomplete, boolean aNullLabelsAsEmpty,
             Map<String, List<JCas>> aCasMap)
     {
-        List<String> users = new ArrayList<>(aUsers);
-        Collections.sort(users);
-        
-        List<ConfigurationSet> completeSets = new ArrayList<>();
-        List<ConfigurationSet> setsWithDifferences = new ArrayList<>();
-        List<ConfigurationSet> incompleteSetsByPosition = new ArrayList<>();
-        List<ConfigurationSet> incompleteSetsByLabel = new ArrayList<>();
-        List<ConfigurationSet> pluralitySets = new ArrayList<>();
-        List<ConfigurationSet> irrelevantSets = new ArrayList<>();
-        CodingAnnotationStudy study = new CodingAnnotationStudy(users.size());
-        
-        // Check if the feature we are looking at is a primitive feature or a link feature
-        // We do this by looking it up in the first available CAS. Mind that at this point all
-        // CASes should have exactly the same typesystem.
-        JCas someCas = findSomeCas(aCasMap);
-        if (someCas == null) {
-            // Well... there is NOTHING here!
-            // All positions are irrelevant
-            aDiff.getPositions().forEach(p -> irrelevantSets.add(aDiff.getConfigurtionSet(p)));
-            
-            return new AgreementResult(aType, aFeature, aDiff, study, users, completeSets,
-                    irrelevantSets, setsWithDifferences, incompleteSetsByPosition,
-                    incompleteSetsByLabel, pluralitySets, aExcludeIncomplete);
+        Map<String, List<JCas>> casMap = new LinkedHashMap<>();
+        for (String user : aUsers) {
+            casMap.put(user, aCasMap.get(user));
         }
-        TypeSystem ts = someCas.getTypeSystem();
         
-        // This happens in our testcases when we feed the process with uninitialized CASes.
-        // We should just do the right thing here which is: do nothing
-        if (ts.getType(aType) == null) {
-            // All positions are irrelevant
-            aDiff.getPositions().forEach(p -> irrelevantSets.add(aDiff.getConfigurtionSet(p)));
+        StudyBuilder builder = new StudyBuilder(casMap, aExcludeIncomplete);
+        makeStudies(aDiff, aType, aFeature, aNullLabelsAsEmpty, aCasMap, asList(builder));
+        return builder.toResult(aType, aFeature, aDiff);
+    }
+    
+    /**
+     * Fill several studies in a single pass over the configuration sets of the diff.
+     * 
+     * @param aCasMap
+     *            the CASes of all users taking part in any of the studies.
+     */
+    private static void makeStudies(DiffResult aDiff, String aType, String aFeature,
+            boolean aNullLabelsAsEmpty, Map<String, List<JCas>> aCasMap,
+            List<StudyBuilder> aBuilders)
+    {
+        List<StudyBuilder> builders = new ArrayList<>();
+        TypeSystem ts = null;
+        for (StudyBuilder builder : aBuilders) {
+            // Check if the feature we are looking at is a primitive feature or a link feature
+            // We do this by looking it up in the first available CAS. Mind that at this point all
+            // CASes should have exactly the same typesystem.
+            JCas someCas = findSomeCas(builder.casMap);
+            if (someCas == null) {
+                // Well... there is NOTHING here!
+                // All positions are irrelevant
+                aDiff.getPositions().forEach(
+                        p -> builder.irrelevantSets.add(aDiff.getConfigurtionSet(p)));
+                continue;
+            }
             
-            return new AgreementResult(aType, aFeature, aDiff, study, users, completeSets,
-                    irrelevantSets, setsWithDifferences, incompleteSetsByPosition,
-                    incompleteSetsByLabel, pluralitySets, aExcludeIncomplete);
+            // This happens in our testcases when we feed the process with uninitialized CASes.
+            // We should just do the right thing here which is: do nothing
+            if (someCas.getTypeSystem().getType(aType) == null) {
+                // All positions are irrelevant
+                aDiff.getPositions().forEach(
+                        p -> builder.irrelevantSets.add(aDiff.getConfigurtionSet(p)));
+                continue;
+            }
+            
+            ts = someCas.getTypeSystem();
+            builders.add(builder);
+        }
+        
+        if (builders.isEmpty()) {
+            return;
         }
         
         // Check that the feature really exists instead of just getting a NPE later
@@ -244,7 +314,7 @@ public class AgreementUtils
         boolean isPrimitiveFeature = ts.getType(aType).getFeatureByBaseName(aFeature).getRange()
                 .isPrimitive();
         
-        nextPosition: for (Position p : aDiff.getPositions()) {
+        for (Position p : aDiff.getPositions()) {
             ConfigurationSet cfgSet = aDiff.getConfigurtionSet(p);
 
             // Only calculate agreement for the given layer
@@ -260,34 +330,228 @@ public class AgreementUtils
             // - if we are looking for a primitive type and encounter a subposition
             // - if we are looking for a non-primitive type and encounter a primary position
             // this is an inverted XOR!
-            if (!(isPrimitiveFeature ^ isSubPosition)) {
-                irrelevantSets.add(cfgSet);
+            // Also check if subposition is for the feature we are looking for or for a different
+            // feature
+            if (!(isPrimitiveFeature ^ isSubPosition)
+                    || (isSubPosition && !aFeature.equals(cfgSet.getPosition().getFeature()))) {
+                for (StudyBuilder builder : builders) {
+                    builder.irrelevantSets.add(cfgSet);
+                }
                 continue;
             }
             
-            // Check if subposition is for the feature we are looking for or for a different 
-            // feature
-            if (isSubPosition && !aFeature.equals(cfgSet.getPosition().getFeature())) {
-                irrelevantSets.add(cfgSet);
-                continue nextPosition;
+            // If the position feature is set (subposition), then it must match the feature we
+            // are calculating agreement over
+            assert !(cfgSet.getPosition().getFeature() != null)
+                    || cfgSet.getPosition().getFeature().equals(aFeature);
+            
+            Labels labels = new Labels(aDiff, cfgSet, aFeature, isPrimitiveFeature,
+                    aNullLabelsAsEmpty, aCasMap);
+            for (StudyBuilder builder : builders) {
+                builder.add(cfgSet, labels);
+            }
+        }
+    }
+    
+    /**
+     * Marks a user who has not annotated at a position.
+     */
+    private static final Object ABSENT = new Object();
+
+    /**
+     * Marks a user who has made multiple alternative annotations at a position.
+     */
+    private static final Object PLURAL = new Object();
+    
+    /**
+     * The labels of the users at a configuration set. Each label is obtained only once, no matter
+     * in how many studies the user takes part.
+     */
+    private static class Labels
+    {
+        private final DiffResult diff;
+        private final ConfigurationSet cfgSet;
+        private final String feature;
+        private final boolean isPrimitiveFeature;
+        private final boolean nullLabelsAsEmpty;
+        private final Map<String, List<JCas>> casMap;
+        private final Map<String, Object> labels = new HashMap<>();
+        
+        public Labels(DiffResult aDiff, ConfigurationSet aCfgSet, String aFeature,
+                boolean aIsPrimitiveFeature, boolean aNullLabelsAsEmpty,
+                Map<String, List<JCas>> aCasMap)
+        {
+            diff = aDiff;
+            cfgSet = aCfgSet;
+            feature = aFeature;
+            isPrimitiveFeature = aIsPrimitiveFeature;
+            nullLabelsAsEmpty = aNullLabelsAsEmpty;
+            casMap = aCasMap;
+        }
+        
+        /**
+         * @return the label of the given user, {@link #ABSENT} or {@link #PLURAL}.
+         */
+        public Object get(String aUser)
+        {
+            // The label may be null, so we cannot rely on get() returning null
+            if (!labels.containsKey(aUser)) {
+                labels.put(aUser, extract(aUser));
+            }
+            return labels.get(aUser);
+        }
+        
+        private Object extract(String aUser)
+        {
+            // Only sets matching the kind of the feature get here
+            boolean isSubPosition = !isPrimitiveFeature;
+            
+            if (!cfgSet.getCasGroupIds().contains(aUser)) {
+                return ABSENT;
+            }
+            
+            // Make sure a single user didn't do multiple alternative annotations at a single
+            // position. So there is currently no support for calculating agreement on stacking
+            // annotations.
+            List<Configuration> cfgs = cfgSet.getConfigurations(aUser);
+            if (cfgs.size() > 1) {
+                return PLURAL;
+            }
+            
+            Configuration cfg = cfgs.get(0);
+            
+            // Check if source and/or targets of a relation are stacked
+            if (cfg.getPosition() instanceof ArcPosition) {
+                ArcPosition pos = (ArcPosition) cfg.getPosition();
+                FeatureStructure arc = cfg.getFs(aUser, pos.getCasId(), casMap);
+
+                ArcDiffAdapter adapter = (ArcDiffAdapter) diff.getDiffAdapter(pos.getType());
+
+                // Check if the source of the relation is stacked
+                AnnotationFS source = FSUtil.getFeature(arc, adapter.getSourceFeature(),
+                        AnnotationFS.class);
+                List<AnnotationFS> sourceCandidates = CasUtil.selectAt(arc.getCAS(),
+                        source.getType(), source.getBegin(), source.getEnd());
+                if (sourceCandidates.size() > 1) {
+                    return PLURAL;
+                }
+                
+                // Check if the target of the relation is stacked
+                AnnotationFS target = FSUtil.getFeature(arc, adapter.getTargetFeature(),
+                        AnnotationFS.class);
+                List<AnnotationFS> targetCandidates = CasUtil.selectAt(arc.getCAS(),
+                        target.getType(), target.getBegin(), target.getEnd());
+                if (targetCandidates.size() > 1) {
+                    return PLURAL;
+                }
+            }
+            
+            // Only calculate agreement for the given feature
+            FeatureStructure fs = cfg.getFs(aUser, cfg.getPosition().getCasId(), casMap);
+
+            // BEGIN PARANOIA
+            assert fs.getType().getFeatureByBaseName(feature).getRange()
+                    .isPrimitive() == isPrimitiveFeature;
+            // END PARANOIA
+            
+            Object value;
+            if (isPrimitiveFeature && !isSubPosition) {
+                // Primitive feature / primary position
+                value = getFeature(fs, feature);
+            }
+            else if (!isPrimitiveFeature && isSubPosition) {
+                // Link feature / sub-position
+                ArrayFS links = (ArrayFS) fs.getFeatureValue(fs.getType().getFeatureByBaseName(
+                        feature));
+                FeatureStructure link = links.get(cfg.getAID(aUser).index);
+                
+                switch (cfg.getPosition().getLinkCompareBehavior()) {
+                case LINK_TARGET_AS_LABEL:
+                    // FIXME The target feature name should be obtained from the feature definition!
+                    AnnotationFS target = (AnnotationFS) link.getFeatureValue(link.getType()
+                            .getFeatureByBaseName("target"));
+                    
+                    value = target.getBegin() + "-" + target.getEnd() + " ["
+                            + target.getCoveredText() + "]";
+                    break;
+                case LINK_ROLE_AS_LABEL:
+                    // FIXME The role feature name should be obtained from the feature definition!
+                    String role = link.getStringValue(link.getType().getFeatureByBaseName(
+                            "role"));
+                    
+                    value = role;
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown link target comparison mode ["
+                            + cfg.getPosition().getLinkCompareBehavior() + "]");
+                }
+            }
+            else {
+                throw new IllegalStateException("Should never get here: primitive: "
+                        + fs.getType().getFeatureByBaseName(feature).getRange()
+                                .isPrimitive() + "; subpos: " + isSubPosition);
+            }
+
+            // Consider empty/null feature values to be the same and do not exclude them from
+            // agreement calculation. The empty label is still a valid label.
+            if (nullLabelsAsEmpty && value == null) {
+                value = "";
+            }
+            
+            return value;
+        }
+    }
+    
+    /**
+     * Collects the items of the study for a group of users.
+     */
+    private static class StudyBuilder
+    {
+        private final Map<String, List<JCas>> casMap;
+        private final List<String> users;
+        private final boolean excludeIncomplete;
+        private final List<ConfigurationSet> completeSets = new ArrayList<>();
+        private final List<ConfigurationSet> setsWithDifferences = new ArrayList<>();
+        private final List<ConfigurationSet> incompleteSetsByPosition = new ArrayList<>();
+        private final List<ConfigurationSet> incompleteSetsByLabel = new ArrayList<>();
+        private final List<ConfigurationSet> pluralitySets = new ArrayList<>();
+        private final List<ConfigurationSet> irrelevantSets = new ArrayList<>();
+        private final CodingAnnotationStudy study;
+        
+        public StudyBuilder(Map<String, List<JCas>> aCasMap, boolean aExcludeIncomplete)
+        {
+            casMap = aCasMap;
+            users = new ArrayList<>(aCasMap.keySet());
+            Collections.sort(users);
+            excludeIncomplete = aExcludeIncomplete;
+            study = new CodingAnnotationStudy(users.size());
+        }
+        
+        public void add(ConfigurationSet aCfgSet, Labels aLabels)
+        {
+            Object[] labels = new Object[users.size()];
+            boolean relevant = false;
+            for (int u = 0; u < labels.length; u++) {
+                labels[u] = aLabels.get(users.get(u));
+                relevant |= labels[u] != ABSENT;
             }
             
             // If non of the current users has made any annotation at this position, then skip it
-            if (users.stream().filter(u -> cfgSet.getCasGroupIds().contains(u)).count() == 0) {
-                irrelevantSets.add(cfgSet);
-                continue nextPosition;
+            if (!relevant) {
+                irrelevantSets.add(aCfgSet);
+                return;
             }
             
             Object[] values = new Object[users.size()];
             int i = 0;
-            for (String user : users) {
+            for (Object label : labels) {
                 // Set has to include all users, otherwise we cannot calculate the agreement for
                 // this configuration set.
-                if (!cfgSet.getCasGroupIds().contains(user)) {
-                    if (aExcludeIncomplete) {
+                if (label == ABSENT) {
+                    if (excludeIncomplete) {
                         // Record as incomplete
-                        incompleteSetsByPosition.add(cfgSet);
-                        continue nextPosition;
+                        incompleteSetsByPosition.add(aCfgSet);
+                        return;
                     }
                     else {
                         // Record as missing value
@@ -297,124 +561,36 @@ public class AgreementUtils
                     }
                 }
                 
-                // Make sure a single user didn't do multiple alternative annotations at a single
-                // position. So there is currently no support for calculating agreement on stacking
-                // annotations.
-                List<Configuration> cfgs = cfgSet.getConfigurations(user);
-                if (cfgs.size() > 1) {
-                    pluralitySets.add(cfgSet);
-                    continue nextPosition;
+                if (label == PLURAL) {
+                    pluralitySets.add(aCfgSet);
+                    return;
                 }
                 
-                Configuration cfg = cfgs.get(0);
-                
-                // Check if source and/or targets of a relation are stacked
-                if (cfg.getPosition() instanceof ArcPosition) {
-                    ArcPosition pos = (ArcPosition) cfg.getPosition();
-                    FeatureStructure arc = cfg.getFs(user, pos.getCasId(), aCasMap);
-
-                    ArcDiffAdapter adapter = (ArcDiffAdapter) aDiff.getDiffAdapter(pos.getType());
-
-                    // Check if the source of the relation is stacked
-                    AnnotationFS source = FSUtil.getFeature(arc, adapter.getSourceFeature(),
-                            AnnotationFS.class);
-                    List<AnnotationFS> sourceCandidates = CasUtil.selectAt(arc.getCAS(),
-                            source.getType(), source.getBegin(), source.getEnd());
-                    if (sourceCandidates.size() > 1) {
-                        pluralitySets.add(cfgSet);
-                        continue nextPosition;
-                    }
-                    
-                    // Check if the target of the relation is stacked
-                    AnnotationFS target = FSUtil.getFeature(arc, adapter.getTargetFeature(),
-                            AnnotationFS.class);
-                    List<AnnotationFS> targetCandidates = CasUtil.selectAt(arc.getCAS(),
-                            target.getType(), target.getBegin(), target.getEnd());
-                    if (targetCandidates.size() > 1) {
-                        pluralitySets.add(cfgSet);
-                        continue nextPosition;
-                    }
-                }
-                
-                // Only calculate agreement for the given feature
-                FeatureStructure fs = cfg.getFs(user, cfg.getPosition().getCasId(), aCasMap);
-
-                // BEGIN PARANOIA
-                assert fs.getType().getFeatureByBaseName(aFeature).getRange()
-                        .isPrimitive() == isPrimitiveFeature;
-                // primitive implies not subposition - if this is primitive and subposition, we
-                // should never have gotten here in the first place.
-                assert !isPrimitiveFeature || !isSubPosition; 
-                // END PARANOIA
-                
-                if (isPrimitiveFeature && !isSubPosition) {
-                    // Primitive feature / primary position
-                    values[i] = getFeature(fs, aFeature);
-                }
-                else if (!isPrimitiveFeature && isSubPosition) {
-                    // Link feature / sub-position
-                    ArrayFS links = (ArrayFS) fs.getFeatureValue(fs.getType().getFeatureByBaseName(
-                            aFeature));
-                    FeatureStructure link = links.get(cfg.getAID(user).index);
-                    
-                    switch (cfg.getPosition().getLinkCompareBehavior()) {
-                    case LINK_TARGET_AS_LABEL:
-                        // FIXME The target feature name should be obtained from the feature definition!
-                        AnnotationFS target = (AnnotationFS) link.getFeatureValue(link.getType()
-                                .getFeatureByBaseName("target"));
-                        
-                        values[i] = target.getBegin() + "-" + target.getEnd() + " ["
-                                + target.getCoveredText() + "]";
-                        break;
-                    case LINK_ROLE_AS_LABEL:
-                        // FIXME The role feature name should be obtained from the feature definition!
-                        String role = link.getStringValue(link.getType().getFeatureByBaseName(
-                                "role"));
-                        
-                        values[i] = role;
-                        break;
-                    default:
-                        throw new IllegalStateException("Unknown link target comparison mode ["
-                                + cfg.getPosition().getLinkCompareBehavior() + "]");
-                    }
-                }
-                else {
-                    throw new IllegalStateException("Should never get here: primitive: "
-                            + fs.getType().getFeatureByBaseName(aFeature).getRange()
-                                    .isPrimitive() + "; subpos: " + isSubPosition);
-                }
-
-                // Consider empty/null feature values to be the same and do not exclude them from
-                // agreement calculation. The empty label is still a valid label.
-                if (aNullLabelsAsEmpty && values[i] == null) {
-                    values[i] = "";
-                }
+                values[i] = label;
                 
                 // "null" cannot be used in agreement calculations. We treat these as incomplete
-                if (aExcludeIncomplete && values[i] == null) {
-                    incompleteSetsByLabel.add(cfgSet);
-                    continue nextPosition;
+                if (excludeIncomplete && values[i] == null) {
+                    incompleteSetsByLabel.add(aCfgSet);
+                    return;
                 }
 
                 i++;
             }
 
             if (ObjectUtils.notEqual(values[0], values[1])) {
-                setsWithDifferences.add(cfgSet);
+                setsWithDifferences.add(aCfgSet);
             }
             
-            // If the position feature is set (subposition), then it must match the feature we
-            // are calculating agreement over
-            assert !(cfgSet.getPosition().getFeature() != null)
-                    || cfgSet.getPosition().getFeature().equals(aFeature);
-            
-            completeSets.add(cfgSet);
+            completeSets.add(aCfgSet);
             study.addItemAsArray(values);
         }
         
-        return new AgreementResult(aType, aFeature, aDiff, study, users, completeSets,
-                irrelevantSets, setsWithDifferences, incompleteSetsByPosition,
-                incompleteSetsByLabel, pluralitySets, aExcludeIncomplete);
+        public AgreementResult toResult(String aType, String aFeature, DiffResult aDiff)
+        {
+            return new AgreementResult(aType, aFeature, aDiff, study, users, completeSets,
+                    irrelevantSets, setsWithDifferences, incompleteSetsByPosition,
+                    incompleteSetsByLabel, pluralitySets, excludeIncomplete);
+        }
     }
     
     public static void toCSV(CSVPrinter aOut, AgreementResult aAgreement) throws IOException
@@ -440,7 +616,7 @@ public class AgreementUtils
                 aAgreement.getRelevantSetCount()));
 
 //        aOut.printf("%n== Complete sets: %d ==%n", aAgreement.getCompleteSets().size());
-        configurationSetsWithItemsToCsv(aOut, aAgreement, aAgreement.getCompleteSets());
+        configurationSetsWithItemsToCsv(aOut, aAgreement);
 //        
 //        aOut.printf("%n== Incomplete sets (by position): %d == %n", aAgreement.getIncompleteSetsByPosition().size());
 //        dumpAgreementConfigurationSets(aOut, aAgreement, aAgreement.getIncompleteSetsByPosition());
@@ -469,21 +645,21 @@ public class AgreementUtils
 
         aOut.printf("Relevant position count: %d%n", aAgreement.getRelevantSetCount());
 
-        aOut.printf("%n== Complete sets: %d ==%n", aAgreement.getCompleteSets().size());
-        dumpAgreementConfigurationSetsWithItems(aOut, aAgreement, aAgreement.getCompleteSets());
+        aOut.printf("%n== Complete sets: %d ==%n", aAgreement.getCompleteSetCount());
+        dumpAgreementConfigurationSetsWithItems(aOut, aAgreement);
         
-        aOut.printf("%n== Incomplete sets (by position): %d == %n", aAgreement.getIncompleteSetsByPosition().size());
+        aOut.printf("%n== Incomplete sets (by position): %d == %n", aAgreement.getIncompleteSetByPositionCount());
         dumpAgreementConfigurationSets(aOut, aAgreement, aAgreement.getIncompleteSetsByPosition());
 
-        aOut.printf("%n== Incomplete sets (by label): %d ==%n", aAgreement.getIncompleteSetsByLabel().size());
+        aOut.printf("%n== Incomplete sets (by label): %d ==%n", aAgreement.getIncompleteSetByLabelCount());
         dumpAgreementConfigurationSets(aOut, aAgreement, aAgreement.getIncompleteSetsByLabel());
 
-        aOut.printf("%n== Plurality sets: %d ==%n", aAgreement.getPluralitySets().size());
+        aOut.printf("%n== Plurality sets: %d ==%n", aAgreement.getPluralitySetCount());
         dumpAgreementConfigurationSets(aOut, aAgreement, aAgreement.getPluralitySets());
     }
     
     private static void configurationSetsWithItemsToCsv(CSVPrinter aOut,
-            AgreementResult aAgreement, List<ConfigurationSet> aSets)
+            AgreementResult aAgreement)
         throws IOException
     {
         aOut.printRecord("Type", "Collection", "Document", "Layer", "Feature", "Position",
@@ -491,14 +667,14 @@ public class AgreementUtils
         
         int i = 0;
         for (ICodingAnnotationItem item : aAgreement.getStudy().getItems()) {
-            Position pos = aSets.get(i).getPosition();
+            Position pos = aAgreement.getCompletePositions().get(i);
             List<String> values = new ArrayList<>();
             values.add(pos.getClass().getSimpleName());
             values.add(pos.getCollectionId());
             values.add(pos.getDocumentId());
             values.add(pos.getType());
             values.add(aAgreement.getFeature());
-            values.add(aSets.get(i).getPosition().toMinimalString());
+            values.add(pos.toMinimalString());
             for (IAnnotationUnit unit : item.getUnits()) {
                 values.add(String.valueOf(unit.getCategory()));
             }
@@ -508,12 +684,12 @@ public class AgreementUtils
     }    
     
     private static void dumpAgreementConfigurationSetsWithItems(PrintStream aOut,
-            AgreementResult aAgreement, List<ConfigurationSet> aSets)
+            AgreementResult aAgreement)
     {
         int i = 0;
         for (ICodingAnnotationItem item : aAgreement.getStudy().getItems()) {
             StringBuilder sb = new StringBuilder();
-            sb.append(aSets.get(i).getPosition());
+            sb.append(aAgreement.getCompletePositions().get(i));
             for (IAnnotationUnit unit : item.getUnits()) {
                 if (sb.length() > 0) {
                     sb.append(" \t");
@@ -580,6 +756,13 @@ public class AgreementUtils
         private final List<ConfigurationSet> incompleteSetsByPosition;
         private final List<ConfigurationSet> incompleteSetsByLabel;
         private final List<ConfigurationSet> pluralitySets;
+        private final List<Position> completePositions;
+        private final int totalSetCount;
+        private final int irrelevantSetCount;
+        private final int diffSetCount;
+        private final int incompleteSetByPositionCount;
+        private final int incompleteSetByLabelCount;
+        private final int pluralitySetCount;
         private double agreement;
         private List<String> casGroupIds;
         private final boolean excludeIncomplete;
@@ -596,6 +779,13 @@ public class AgreementUtils
             incompleteSetsByPosition = null;
             incompleteSetsByLabel = null;
             pluralitySets = null;
+            completePositions = null;
+            totalSetCount = 0;
+            irrelevantSetCount = 0;
+            diffSetCount = 0;
+            incompleteSetByPositionCount = 0;
+            incompleteSetByLabelCount = 0;
+            pluralitySetCount = 0;
             excludeIncomplete = false;
         }
 
@@ -622,6 +812,51 @@ public class AgreementUtils
                     .unmodifiableList(new ArrayList<>(aIncompleteByLabel));
             pluralitySets = Collections
                     .unmodifiableList(new ArrayList<>(aPluralitySets));
+            List<Position> positions = new ArrayList<>();
+            for (ConfigurationSet cfgSet : aComplete) {
+                positions.add(cfgSet.getPosition());
+            }
+            completePositions = Collections.unmodifiableList(positions);
+            totalSetCount = aDiff.getPositions().size();
+            irrelevantSetCount = aIrrelevantSets.size();
+            diffSetCount = aSetsWithDifferences.size();
+            incompleteSetByPositionCount = aIncompleteByPosition.size();
+            incompleteSetByLabelCount = aIncompleteByLabel.size();
+            pluralitySetCount = aPluralitySets.size();
+            casGroupIds = Collections.unmodifiableList(new ArrayList<String>(aCasGroupIds));
+            excludeIncomplete = aExcludeIncomplete;
+        }
+        
+        /**
+         * Create a result from the aggregated contributions of several documents. Such a result
+         * does not have a diff, so the lists of configuration sets are empty - only their sizes
+         * are available.
+         */
+        public AgreementResult(String aType, String aFeature, List<String> aCasGroupIds,
+                AgreementContribution aContribution, boolean aExcludeIncomplete)
+        {
+            type = aType;
+            feature = aFeature;
+            diff = null;
+            CodingAnnotationStudy codingStudy = new CodingAnnotationStudy(aCasGroupIds.size());
+            for (Object[] item : aContribution.items) {
+                codingStudy.addItemAsArray(item);
+            }
+            study = codingStudy;
+            setsWithDifferences = Collections.emptyList();
+            completeSets = Collections.emptyList();
+            irrelevantSets = Collections.emptyList();
+            incompleteSetsByPosition = Collections.emptyList();
+            incompleteSetsByLabel = Collections.emptyList();
+            pluralitySets = Collections.emptyList();
+            completePositions = Collections.unmodifiableList(new ArrayList<>(
+                    aContribution.positions));
+            totalSetCount = aContribution.totalSetCount;
+            irrelevantSetCount = aContribution.irrelevantSetCount;
+            diffSetCount = aContribution.diffSetCount;
+            incompleteSetByPositionCount = aContribution.incompleteSetByPositionCount;
+            incompleteSetByLabelCount = aContribution.incompleteSetByLabelCount;
+            pluralitySetCount = aContribution.pluralitySetCount;
             casGroupIds = Collections.unmodifiableList(new ArrayList<String>(aCasGroupIds));
             excludeIncomplete = aExcludeIncomplete;
         }
@@ -691,35 +926,57 @@ public class AgreementUtils
             return completeSets;
         }
         
+        /**
+         * @return the positions of the complete sets in the order of the study items.
+         */
+        public List<Position> getCompletePositions()
+        {
+            return completePositions;
+        }
+        
         public List<ConfigurationSet> getIrrelevantSets()
         {
             return irrelevantSets;
         }
         
+        public int getIncompleteSetByPositionCount()
+        {
+            return incompleteSetByPositionCount;
+        }
+        
+        public int getIncompleteSetByLabelCount()
+        {
+            return incompleteSetByLabelCount;
+        }
+        
+        public int getPluralitySetCount()
+        {
+            return pluralitySetCount;
+        }
+        
         public int getDiffSetCount()
         {
-            return setsWithDifferences.size();
+            return diffSetCount;
         }
         
         public int getUnusableSetCount()
         {
-            return incompleteSetsByPosition.size() + incompleteSetsByLabel.size()
-                    + pluralitySets.size();
+            return incompleteSetByPositionCount + incompleteSetByLabelCount + pluralitySetCount;
         }
         
         public Object getCompleteSetCount()
         {
-            return completeSets.size();
+            return completePositions.size();
         }
 
         public int getTotalSetCount()
         {
-            return diff.getPositions().size();
+            return totalSetCount;
         }
         
         public int getRelevantSetCount()
         {
-            return diff.getPositions().size() - irrelevantSets.size();
+            return totalSetCount - irrelevantSetCount;
         }
         
         public double getAgreement()
@@ -732,6 +989,10 @@ public class AgreementUtils
             return study;
         }
         
+        /**
+         * @return the diff or {@code null} if the result has been aggregated from several
+         *         documents.
+         */
         public DiffResult getDiff()
         {
             return diff;
@@ -760,4 +1021,61 @@ public class AgreementUtils
                     + ", agreement=" + agreement + "]";
         }
     }
+    
+    /**
+     * The study items and set counts a single document contributes to the agreement of a pair
+     * of users. Contributions are stored on disk by the {@link AgreementService}. The
+     * contributions of all documents are merged using {@link #add(AgreementContribution)} in
+     * document order, which yields the same study as calculating the agreement over all
+     * documents at once.
+     */
+    public static class AgreementContribution
+        implements Serializable
+    {
+        private static final long serialVersionUID = 2286415283539286542L;
+
+        private final List<Object[]> items = new ArrayList<>();
+        private final List<Position> positions = new ArrayList<>();
+        private int totalSetCount;
+        private int irrelevantSetCount;
+        private int diffSetCount;
+        private int incompleteSetByPositionCount;
+        private int incompleteSetByLabelCount;
+        private int pluralitySetCount;
+        
+        public AgreementContribution()
+        {
+            // Nothing to do
+        }
+        
+        public AgreementContribution(AgreementResult aResult)
+        {
+            for (ICodingAnnotationItem item : aResult.getStudy().getItems()) {
+                List<Object> values = new ArrayList<>();
+                for (IAnnotationUnit unit : item.getUnits()) {
+                    values.add(unit.getCategory());
+                }
+                items.add(values.toArray());
+            }
+            positions.addAll(aResult.getCompletePositions());
+            totalSetCount = aResult.getTotalSetCount();
+            irrelevantSetCount = aResult.getTotalSetCount() - aResult.getRelevantSetCount();
+            diffSetCount = aResult.getDiffSetCount();
+            incompleteSetByPositionCount = aResult.getIncompleteSetByPositionCount();
+            incompleteSetByLabelCount = aResult.getIncompleteSetByLabelCount();
+            pluralitySetCount = aResult.getPluralitySetCount();
+        }
+        
+        public void add(AgreementContribution aOther)
+        {
+            items.addAll(aOther.items);
+            positions.addAll(aOther.positions);
+            totalSetCount += aOther.totalSetCount;
+            irrelevantSetCount += aOther.irrelevantSetCount;
+            diffSetCount += aOther.diffSetCount;
+            incompleteSetByPositionCount += aOther.incompleteSetByPositionCount;
+            incompleteSetByLabelCount += aOther.incompleteSetByLabelCount;
+            pluralitySetCount += aOther.pluralitySetCount;
+        }
+    }
 }
@@ -28,9 +28,13 @@ import static org.apache.uima.fit.util.CasUtil.select;
 import static org.apache.uima.fit.util.CasUtil.selectCovered;
 
 import java.io.PrintStream;
+import java.io.Serializable;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -39,6 +43,7 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.TreeMap;
 
@@ -76,9 +81,17 @@ public class CasDiff2
     
     private Map<String, List<CAS>> cases = new LinkedHashMap<>();
     
+    /**
+     * The CAS group IDs by their index. Configurations and configuration sets only store the
+     * indexes of the CAS groups they have been observed in.
+     */
+    private final List<String> casGroupIdList = new ArrayList<>();
+    
+    private final Map<String, Integer> casGroupIndexes = new HashMap<>();
+    
     private final Map<Position, ConfigurationSet> configSets = new TreeMap<>();
 
-    private final Map<String, String[]> sortedFeaturesCache = new HashMap<>();
+    private final Map<Type, ComparisonPlan> comparisonPlans = new HashMap<>();
 
     private int begin;
     
@@ -290,6 +303,45 @@ public class CasDiff2
         return adapter;
     }
     
+    private int getCasGroupIndex(String aCasGroupId)
+    {
+        Integer index = casGroupIndexes.get(aCasGroupId);
+        if (index == null) {
+            index = casGroupIdList.size();
+            casGroupIdList.add(aCasGroupId);
+            casGroupIndexes.put(aCasGroupId, index);
+        }
+        return index;
+    }
+    
+    /**
+     * Insert a value into the first {@code aSize} elements of an array. The array is only
+     * reallocated if it is full, doubling its capacity.
+     * 
+     * @return the array containing the value, which may be a new one.
+     */
+    private static int[] insert(int[] aArray, int aSize, int aIndex, int aValue)
+    {
+        int[] result = aArray;
+        if (aSize == aArray.length) {
+            result = new int[Math.max(2, aArray.length * 2)];
+            System.arraycopy(aArray, 0, result, 0, aIndex);
+        }
+        System.arraycopy(aArray, aIndex, result, aIndex + 1, aSize - aIndex);
+        result[aIndex] = aValue;
+        return result;
+    }
+    
+    private static int indexOf(int[] aArray, int aSize, int aValue)
+    {
+        for (int i = 0; i < aSize; i++) {
+            if (aArray[i] == aValue) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
     /**
      * CASes are added to the diff one after another, building the diff iteratively. A CAS can be
      * added multiple times for different types. Make sure a CAS is not added twice with the same
@@ -431,8 +483,9 @@ public class CasDiff2
      * Represents a logical position in the text. All annotations considered to be at the same logical
      * position in the document are collected under this. Within the position, there are groups
      * that represent the different configurations of the annotation made by different users.
+     * Positions are serializable so they can be stored along with agreement results.
      */
-    public static interface Position extends Comparable<Position>
+    public static interface Position extends Comparable<Position>, Serializable
     {
         /**
          * @return the CAS id.
@@ -468,6 +521,8 @@ public class CasDiff2
     
     public static abstract class Position_ImplBase implements Position
     {
+        private static final long serialVersionUID = -1237180459049032218L;
+
         private final String type;
         private final int casId;
         private final String feature;
@@ -655,6 +710,8 @@ public class CasDiff2
      */
     public static class SpanPosition extends Position_ImplBase
     {
+        private static final long serialVersionUID = 7672904919600263605L;
+
         private final int begin;
         private final int end;
         private final String text;
@@ -749,6 +806,8 @@ public class CasDiff2
      */
     public static class ArcPosition extends Position_ImplBase
     {
+        private static final long serialVersionUID = 2389265017140860483L;
+
         private final int sourceBegin;
         private final int sourceEnd;
         private final String sourceText;
@@ -863,8 +922,22 @@ public class CasDiff2
     public class ConfigurationSet
     {
         private final Position position;
-        private List<Configuration> configurations = new ArrayList<>();
-        private Set<String> casGroupIds = new LinkedHashSet<>();
+        // Most sets contain only one or two configurations
+        private List<Configuration> configurations = new ArrayList<>(2);
+        
+        /**
+         * The indexes of the CAS groups in which this set has been observed, in the order in
+         * which they have been observed.
+         */
+        private int[] casGroups = new int[2];
+        private int casGroupCount = 0;
+        
+        /**
+         * The configurations by their fingerprint. Configurations with different fingerprints
+         * can never be equal, so only configurations with the same fingerprint are compared.
+         * Created when the second configuration is added.
+         */
+        private Map<Integer, List<Configuration>> configurationsByFingerprint;
         
         public ConfigurationSet(Position aPosition)
         {
@@ -879,8 +952,9 @@ public class CasDiff2
             
             if (position.getFeature() == null) {
                 // Check if this configuration is already present
+                int fingerprint = fingerprintFS(aFS);
                 Configuration configuration = null;
-                for (Configuration cfg : configurations) {
+                for (Configuration cfg : getCandidates(fingerprint)) {
                     // Handle main positions
                     if (equalsFS(cfg.getRepresentative(), aFS)) {
                         configuration = cfg;
@@ -890,11 +964,11 @@ public class CasDiff2
     
                 // Not found, add new one
                 if (configuration == null) {
-                    configuration = new Configuration(position);
-                    configurations.add(configuration);
+                    configuration = new Configuration(position, fingerprint);
+                    addCandidate(configuration);
                 }
                 
-                configuration.add(aCasGroupId, aFS);
+                configuration.add(aCasGroupId, getAddr(aFS), -1);
             }
             else {
                 // For each slot at the given position in the FS-to-be-added, we need find a
@@ -908,6 +982,7 @@ public class CasDiff2
                     
                     // Check if this configuration is already present
                     Configuration configuration = null;
+                    int fingerprint;
                     switch (position.getLinkCompareBehavior()) {
                     case LINK_TARGET_AS_LABEL: {
                         String role = link.getStringValue(link.getType().getFeatureByBaseName(decl.roleFeature));
@@ -918,7 +993,8 @@ public class CasDiff2
                         AnnotationFS target = (AnnotationFS) link.getFeatureValue(link.getType()
                                 .getFeatureByBaseName(decl.targetFeature));
                         
-                        cfgLoop: for (Configuration cfg : configurations) {
+                        fingerprint = fingerprintAnnotationFS(target);
+                        cfgLoop: for (Configuration cfg : getCandidates(fingerprint)) {
                             FeatureStructure repFS = cfg.getRepresentative();
                             AID repAID = cfg.getRepresentativeAID();
                             FeatureStructure repLink = ((ArrayFS) repFS.getFeatureValue(repFS.getType()
@@ -945,7 +1021,8 @@ public class CasDiff2
                         String role = link.getStringValue(link.getType().getFeatureByBaseName(
                                 decl.roleFeature));
                         
-                        cfgLoop: for (Configuration cfg : configurations) {
+                        fingerprint = ObjectUtils.hashCode(role);
+                        cfgLoop: for (Configuration cfg : getCandidates(fingerprint)) {
                             FeatureStructure repFS = cfg.getRepresentative();
                             AID repAID = cfg.getRepresentativeAID();
                             FeatureStructure repLink = ((ArrayFS) repFS.getFeatureValue(repFS.getType()
@@ -968,15 +1045,60 @@ public class CasDiff2
                     
                     // Not found, add new one
                     if (configuration == null) {
-                        configuration = new Configuration(position);
-                        configurations.add(configuration);
+                        configuration = new Configuration(position, fingerprint);
+                        addCandidate(configuration);
                     }
                     
-                    configuration.add(aCasGroupId, aFS, position.getFeature(), i);
+                    configuration.add(aCasGroupId, getAddr(aFS), i);
                 }
             }
 
-            casGroupIds.add(aCasGroupId);
+            int casGroup = getCasGroupIndex(aCasGroupId);
+            if (indexOf(casGroups, casGroupCount, casGroup) == -1) {
+                casGroups = insert(casGroups, casGroupCount, casGroupCount, casGroup);
+                casGroupCount++;
+            }
+        }
+        
+        private List<Configuration> getCandidates(int aFingerprint)
+        {
+            if (configurationsByFingerprint == null) {
+                // With at most one configuration, there is no need for the map
+                return configurations.isEmpty() || configurations.get(0).fingerprint != aFingerprint
+                        ? Collections.<Configuration> emptyList() : configurations;
+            }
+            
+            List<Configuration> candidates = configurationsByFingerprint.get(aFingerprint);
+            return candidates != null ? candidates : Collections.<Configuration> emptyList();
+        }
+        
+        private void addCandidate(Configuration aConfiguration)
+        {
+            configurations.add(aConfiguration);
+            
+            if (configurationsByFingerprint == null) {
+                if (configurations.size() < 2) {
+                    return;
+                }
+                configurationsByFingerprint = new HashMap<>();
+                for (Configuration cfg : configurations) {
+                    index(cfg);
+                }
+            }
+            else {
+                index(aConfiguration);
+            }
+        }
+        
+        private void index(Configuration aConfiguration)
+        {
+            List<Configuration> candidates = configurationsByFingerprint
+                    .get(aConfiguration.fingerprint);
+            if (candidates == null) {
+                candidates = new ArrayList<>(1);
+                configurationsByFingerprint.put(aConfiguration.fingerprint, candidates);
+            }
+            candidates.add(aConfiguration);
         }
         
         /**
@@ -987,7 +1109,7 @@ public class CasDiff2
         {
             int i = 0;
             for (Configuration cfg : configurations) {
-                i += cfg.getAddressByCasId().size();
+                i += cfg.size;
             }
             return i;
         }
@@ -997,7 +1119,7 @@ public class CasDiff2
          */
         public Set<String> getCasGroupIds()
         {
-            return casGroupIds;
+            return new CasGroupIdSet(casGroups, casGroupCount);
         }
                 
         /**
@@ -1017,7 +1139,7 @@ public class CasDiff2
         {
             List<Configuration> configurationsForUser = new ArrayList<>();
             for (Configuration cfg : configurations) {
-                if (cfg.fsAddresses.keySet().contains(aCasGroupId)) {
+                if (cfg.getCasGroupIds().contains(aCasGroupId)) {
                     configurationsForUser.add(cfg);
                 }
             }
@@ -1072,19 +1194,6 @@ public class CasDiff2
 
         assert type1.getNumberOfFeatures() == type2.getNumberOfFeatures();
 
-        // Sort features by name to be independent over implementation details that may change the
-        // order of the features as returned from Type.getFeatures().
-        String[] cachedSortedFeatures = sortedFeaturesCache.get(type1.getName());
-        if (cachedSortedFeatures == null) {
-            cachedSortedFeatures = new String[type1.getNumberOfFeatures()];
-            int i = 0;
-            for (Feature f : aFS1.getType().getFeatures()) {
-                cachedSortedFeatures[i] = f.getShortName();
-                i++;
-            }
-            sortedFeaturesCache.put(type1.getName(), cachedSortedFeatures);
-        }
-        
         DiffAdapter adapter = typeAdapters.get(type1.getName());
 
         if (adapter == null) {
@@ -1092,61 +1201,50 @@ public class CasDiff2
             return true;
         }
 
-        // Only consider label features. In particular these must not include position features
-        // such as begin, end, etc.
-        List<String> sortedFeatures = new ArrayList<>(asList(cachedSortedFeatures));
-        Set<String> labelFeatures = adapter.getLabelFeatures();
-        sortedFeatures.removeIf(f -> !labelFeatures.contains(f));
-
-        if (!recurseIntoLinkFeatures ) {
-            // #1795 Chili REC: We can/should change CasDiff2 such that it does not recurse into
-            // link features (or rather into any features that are covered by their own
-            // sub-positions). So when when comparing two spans that differ only in their slots
-            // (sub-positions) the main position could still exhibit agreement.
-            sortedFeatures.removeIf(f -> adapter.getLinkFeature(f) != null);
-        }
+        ComparisonPlan plan1 = getComparisonPlan(aFS1, adapter);
+        ComparisonPlan plan2 = type1 == type2 ? plan1 : getComparisonPlan(aFS2, adapter);
         
-        for (String feature : sortedFeatures) {
-            Feature f1 = type1.getFeatureByBaseName(feature);
-            Feature f2 = type2.getFeatureByBaseName(feature);
+        for (int i = 0; i < plan1.features.length; i++) {
+            Feature f1 = plan1.features[i];
+            Feature f2 = plan2.features[i];
             
-            switch (f1.getRange().getName()) {
-            case CAS.TYPE_NAME_BOOLEAN:
+            switch (plan1.kinds[i]) {
+            case BOOLEAN:
                 if (aFS1.getBooleanValue(f1) != aFS2.getBooleanValue(f2)) {
                     return false;
                 }
                 break;
-            case CAS.TYPE_NAME_BYTE:
+            case BYTE:
                 if (aFS1.getByteValue(f1) != aFS2.getByteValue(f2)) {
                     return false;
                 }
                 break;
-            case CAS.TYPE_NAME_DOUBLE:
+            case DOUBLE:
                 if (aFS1.getDoubleValue(f1) != aFS2.getDoubleValue(f2)) {
                     return false;
                 }
                 break;
-            case CAS.TYPE_NAME_FLOAT:
+            case FLOAT:
                 if (aFS1.getFloatValue(f1) != aFS2.getFloatValue(f2)) {
                     return false;
                 }
                 break;
-            case CAS.TYPE_NAME_INTEGER:
+            case INTEGER:
                 if (aFS1.getIntValue(f1) != aFS2.getIntValue(f2)) {
                     return false;
                 }
                 break;
-            case CAS.TYPE_NAME_LONG:
+            case LONG:
                 if (aFS1.getLongValue(f1) != aFS2.getLongValue(f2)) {
                     return false;
                 }
                 break;
-            case CAS.TYPE_NAME_SHORT:
+            case SHORT:
                 if (aFS1.getShortValue(f1) != aFS2.getShortValue(f2)) {
                     return false;
                 }
                 break;
-            case CAS.TYPE_NAME_STRING:
+            case STRING:
                 if (!StringUtils.equals(aFS1.getStringValue(f1), aFS2.getStringValue(f2))) {
                     return false;
                 }
@@ -1171,8 +1269,7 @@ public class CasDiff2
                 // Q: Why do we not check recursively?
                 // A: Because e.g. for chains, this would mean we consider the whole chain as a 
                 //    single annotation, but we want to consider each link as an annotation
-                TypeSystem ts1 = aFS1.getCAS().getTypeSystem();
-                if (ts1.subsumes(ts1.getType(CAS.TYPE_NAME_ANNOTATION), type1)) {
+                if (plan1.annotation) {
                     if (!equalsAnnotationFS((AnnotationFS) aFS1, (AnnotationFS) aFS2)) {
                         return false;
                     }
@@ -1190,6 +1287,109 @@ public class CasDiff2
         return true;
     }
     
+    /**
+     * Calculate a fingerprint of the label of a feature structure. Feature structures which are
+     * equal according to {@link #equalsFS} always have the same fingerprint. Only the primitive
+     * label features are considered - feature structure values are left to {@link #equalsFS}.
+     * 
+     * @param aFS
+     *            a feature structure.
+     * @return the fingerprint.
+     */
+    private int fingerprintFS(FeatureStructure aFS)
+    {
+        Type type = aFS.getType();
+        int hash = type.getName().hashCode();
+        
+        DiffAdapter adapter = typeAdapters.get(type.getName());
+        if (adapter == null) {
+            return hash;
+        }
+        
+        ComparisonPlan plan = getComparisonPlan(aFS, adapter);
+        for (int i = 0; i < plan.features.length; i++) {
+            Feature f = plan.features[i];
+            
+            int valueHash;
+            switch (plan.kinds[i]) {
+            case BOOLEAN:
+                valueHash = aFS.getBooleanValue(f) ? 1231 : 1237;
+                break;
+            case BYTE:
+                valueHash = aFS.getByteValue(f);
+                break;
+            case DOUBLE: {
+                // 0.0 and -0.0 are equal
+                double value = aFS.getDoubleValue(f);
+                long bits = value == 0.0 ? 0 : Double.doubleToLongBits(value);
+                valueHash = (int) (bits ^ (bits >>> 32));
+                break;
+            }
+            case FLOAT: {
+                float value = aFS.getFloatValue(f);
+                valueHash = value == 0.0f ? 0 : Float.floatToIntBits(value);
+                break;
+            }
+            case INTEGER:
+                valueHash = aFS.getIntValue(f);
+                break;
+            case LONG: {
+                long value = aFS.getLongValue(f);
+                valueHash = (int) (value ^ (value >>> 32));
+                break;
+            }
+            case SHORT:
+                valueHash = aFS.getShortValue(f);
+                break;
+            case STRING:
+                valueHash = ObjectUtils.hashCode(aFS.getStringValue(f));
+                break;
+            default:
+                valueHash = 0;
+                break;
+            }
+            hash = 31 * hash + valueHash;
+        }
+        
+        return hash;
+    }
+    
+    /**
+     * Calculate a fingerprint of the position of an annotation. Annotations which are equal
+     * according to {@link #equalsAnnotationFS} always have the same fingerprint.
+     * 
+     * @param aFS
+     *            an annotation.
+     * @return the fingerprint.
+     */
+    private int fingerprintAnnotationFS(AnnotationFS aFS)
+    {
+        if (aFS == null) {
+            return 0;
+        }
+        
+        int hash = aFS.getType().getName().hashCode();
+        // Arc positions are not defined by the offsets of the arc annotation
+        if (!(typeAdapters.get(aFS.getType().getName()) instanceof ArcDiffAdapter)) {
+            hash = 31 * hash + aFS.getBegin();
+            hash = 31 * hash + aFS.getEnd();
+        }
+        return hash;
+    }
+    
+    private ComparisonPlan getComparisonPlan(FeatureStructure aFS, DiffAdapter aAdapter)
+    {
+        Type type = aFS.getType();
+        ComparisonPlan plan = comparisonPlans.get(type);
+        if (plan == null || plan.adapter != aAdapter
+                || plan.recurseIntoLinkFeatures != recurseIntoLinkFeatures) {
+            plan = new ComparisonPlan(aFS.getCAS().getTypeSystem(), type, aAdapter,
+                    recurseIntoLinkFeatures);
+            comparisonPlans.put(type, plan);
+        }
+        return plan;
+    }
+    
     private boolean equalsAnnotationFS(AnnotationFS aFS1, AnnotationFS aFS2)
     {
         // Null check
@@ -1205,6 +1405,96 @@ public class CasDiff2
         return pos1.compareTo(pos2) == 0;
     }
     
+    private static enum FeatureKind
+    {
+        BOOLEAN, BYTE, DOUBLE, FLOAT, INTEGER, LONG, SHORT, STRING, FEATURE_STRUCTURE;
+        
+        private static FeatureKind of(Feature aFeature)
+        {
+            switch (aFeature.getRange().getName()) {
+            case CAS.TYPE_NAME_BOOLEAN:
+                return BOOLEAN;
+            case CAS.TYPE_NAME_BYTE:
+                return BYTE;
+            case CAS.TYPE_NAME_DOUBLE:
+                return DOUBLE;
+            case CAS.TYPE_NAME_FLOAT:
+                return FLOAT;
+            case CAS.TYPE_NAME_INTEGER:
+                return INTEGER;
+            case CAS.TYPE_NAME_LONG:
+                return LONG;
+            case CAS.TYPE_NAME_SHORT:
+                return SHORT;
+            case CAS.TYPE_NAME_STRING:
+                return STRING;
+            default:
+                return FEATURE_STRUCTURE;
+            }
+        }
+    }
+    
+    /**
+     * The features of a type compared by {@link CasDiff2#equalsFS}. The features are resolved once
+     * per type so that comparing two FSes does not need to look them up again.
+     */
+    private static class ComparisonPlan
+    {
+        private final DiffAdapter adapter;
+        private final boolean recurseIntoLinkFeatures;
+        private final Feature[] features;
+        private final FeatureKind[] kinds;
+        private final boolean annotation;
+        
+        public ComparisonPlan(TypeSystem aTypeSystem, Type aType, DiffAdapter aAdapter,
+                boolean aRecurseIntoLinkFeatures)
+        {
+            adapter = aAdapter;
+            recurseIntoLinkFeatures = aRecurseIntoLinkFeatures;
+            
+            // Only consider label features. In particular these must not include position
+            // features such as begin, end, etc.
+            List<Feature> selected = new ArrayList<>();
+            for (Feature f : aType.getFeatures()) {
+                if (!aAdapter.getLabelFeatures().contains(f.getShortName())) {
+                    continue;
+                }
+                
+                // #1795 Chili REC: We can/should change CasDiff2 such that it does not recurse
+                // into link features (or rather into any features that are covered by their own
+                // sub-positions). So when when comparing two spans that differ only in their
+                // slots (sub-positions) the main position could still exhibit agreement.
+                if (!aRecurseIntoLinkFeatures
+                        && aAdapter.getLinkFeature(f.getShortName()) != null) {
+                    continue;
+                }
+                
+                selected.add(f);
+            }
+            
+            // Sort features by name to be independent over implementation details that may
+            // change the order of the features as returned from Type.getFeatures(). This way,
+            // the plans of the same type from different type systems line up.
+            Collections.sort(selected, new Comparator<Feature>()
+            {
+                @Override
+                public int compare(Feature aO1, Feature aO2)
+                {
+                    return aO1.getShortName().compareTo(aO2.getShortName());
+                }
+            });
+            
+            features = selected.toArray(new Feature[selected.size()]);
+            kinds = new FeatureKind[features.length];
+            for (int i = 0; i < features.length; i++) {
+                kinds[i] = FeatureKind.of(features[i]);
+            }
+            
+            annotation = aTypeSystem.subsumes(
+                    aTypeSystem.getType(CAS.TYPE_NAME_ANNOTATION), aType);
+        }
+    }
+    
     /**
      * A single configuration seen at a particular position. The configuration may have been
      * observed in multiple CASes. 
@@ -1212,16 +1502,40 @@ public class CasDiff2
     public class Configuration
     {
         private final Position position;
-        private final Map<String, AID> fsAddresses = new TreeMap<>();
+        
+        // The FSes of this configuration are stored column-wise. The CAS groups are kept sorted by
+        // their ID, so the representative is always taken from the same CAS group.
+        private int[] casGroups = new int[2];
+        private int[] addrs = new int[2];
+        private int size = 0;
+        
+        /**
+         * The link slots. Only used for sub-positions of link features.
+         */
+        private int[] slots;
+        
+        /**
+         * Fingerprint of the label shared by all FSes in this configuration.
+         */
+        private final int fingerprint;
 
         public Set<String> getCasGroupIds()
         {
-            return fsAddresses.keySet();
+            return new CasGroupIdSet(casGroups, size);
         } 
         
         public Configuration(Position aPosition)
+        {
+            this(aPosition, 0);
+        }
+        
+        private Configuration(Position aPosition, int aFingerprint)
         {
             position = aPosition;
+            fingerprint = aFingerprint;
+            if (aPosition.getFeature() != null) {
+                slots = new int[2];
+            }
         }
         
         public Position getPosition()
@@ -1229,40 +1543,63 @@ public class CasDiff2
             return position;
         }
 
-        private void add(String aCasGroupId, FeatureStructure aFS) {
-            fsAddresses.put(aCasGroupId, new AID(getAddr(aFS)));            
-        }
-
-        private void add(String aCasGroupId, FeatureStructure aFS, String aFeature, int aSlot) {
-            fsAddresses.put(aCasGroupId, new AID(getAddr(aFS), aFeature, aSlot));            
+        private void add(String aCasGroupId, int aAddr, int aSlot)
+        {
+            int casGroup = getCasGroupIndex(aCasGroupId);
+            int i = indexOf(casGroups, size, casGroup);
+            if (i == -1) {
+                i = 0;
+                while (i < size
+                        && casGroupIdList.get(casGroups[i]).compareTo(aCasGroupId) < 0) {
+                    i++;
+                }
+                casGroups = insert(casGroups, size, i, casGroup);
+                addrs = insert(addrs, size, i, aAddr);
+                if (slots != null) {
+                    slots = insert(slots, size, i, aSlot);
+                }
+                size++;
+            }
+            else {
+                addrs[i] = aAddr;
+                if (slots != null) {
+                    slots[i] = aSlot;
+                }
+            }
         }
 
         private FeatureStructure getRepresentative()
         {
-            Entry<String, AID> e = fsAddresses.entrySet().iterator().next();
-            return selectByAddr(cases.get(e.getKey()).get(position.getCasId()), e.getValue().addr);
+            return selectByAddr(cases.get(casGroupIdList.get(casGroups[0])).get(
+                    position.getCasId()), addrs[0]);
         }
 
         private AID getRepresentativeAID()
         {
-            Entry<String, AID> e = fsAddresses.entrySet().iterator().next();
-            return e.getValue();
+            return getAID(0);
         }
 
-        private Map<String, AID> getAddressByCasId()
+        private AID getAID(int aIndex)
         {
-            return fsAddresses;
+            if (slots == null) {
+                return new AID(addrs[aIndex]);
+            }
+            else {
+                return new AID(addrs[aIndex], position.getFeature(), slots[aIndex]);
+            }
         }
 
         public AID getAID(String aCasGroupId)
         {
-            return fsAddresses.get(aCasGroupId);
+            Integer casGroup = casGroupIndexes.get(aCasGroupId);
+            int i = casGroup != null ? indexOf(casGroups, size, casGroup) : -1;
+            return i != -1 ? getAID(i) : null;
         }
 
         public <T extends FeatureStructure> T getFs(String aCasGroupId, int aCasId,
                 Class<T> aClass, Map<String, List<JCas>> aCasMap)
         {
-            AID aid = fsAddresses.get(aCasGroupId);
+            AID aid = getAID(aCasGroupId);
             if (aid == null) {
                 return null;
             }
@@ -1301,13 +1638,13 @@ public class CasDiff2
         {
             StringBuilder sb = new StringBuilder();
             sb.append('[');
-            for (Entry<String, AID> e : fsAddresses.entrySet()) {
+            for (int i = 0; i < size; i++) {
                 if (sb.length() > 1) {
                     sb.append(", ");
                 }
-                sb.append(e.getKey());
+                sb.append(casGroupIdList.get(casGroups[i]));
                 sb.append(':');
-                sb.append(e.getValue());
+                sb.append(getAID(i));
             }
             sb.append("] -> ");
             sb.append(getRepresentative());
@@ -1315,6 +1652,60 @@ public class CasDiff2
         }
     }
     
+    /**
+     * Read-only view on CAS group indexes as CAS group IDs. The view covers the CAS groups added
+     * before it was created.
+     */
+    private class CasGroupIdSet
+        extends AbstractSet<String>
+    {
+        private final int[] casGroups;
+        private final int size;
+
+        public CasGroupIdSet(int[] aCasGroups, int aSize)
+        {
+            casGroups = aCasGroups;
+            size = aSize;
+        }
+
+        @Override
+        public Iterator<String> iterator()
+        {
+            return new Iterator<String>()
+            {
+                private int i = 0;
+
+                @Override
+                public boolean hasNext()
+                {
+                    return i < size;
+                }
+
+                @Override
+                public String next()
+                {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    return casGroupIdList.get(casGroups[i++]);
+                }
+            };
+        }
+
+        @Override
+        public boolean contains(Object aObject)
+        {
+            Integer casGroup = casGroupIndexes.get(aObject);
+            return casGroup != null && indexOf(casGroups, size, casGroup) != -1;
+        }
+
+        @Override
+        public int size()
+        {
+            return size;
+        }
+    }
+    
     /**
      * A description of the differences between CASes.
      */
@@ -1374,13 +1765,7 @@ public class CasDiff2
          */
         public boolean isAgreement(ConfigurationSet aConfigurationSet)
         {
-            if (!data.containsValue(aConfigurationSet)) {
-                throw new IllegalArgumentException("Configuration set does not belong to this diff");
-            }
-
-            if (data.get(aConfigurationSet.position) != aConfigurationSet) {
-                throw new IllegalArgumentException("Configuration set position mismatch");
-            }
+            checkConfigurationSet(aConfigurationSet);
             
             // If there is only a single configuration in the set, we call it an agreement
             if (aConfigurationSet.configurations.size() == 1) {
@@ -1410,19 +1795,13 @@ public class CasDiff2
          */
         public boolean isComplete(ConfigurationSet aConfigurationSet)
         {
-            if (!data.containsValue(aConfigurationSet)) {
-                throw new IllegalArgumentException("Configuration set does not belong to this diff");
-            }
-
-            if (data.get(aConfigurationSet.position) != aConfigurationSet) {
-                throw new IllegalArgumentException("Configuration set position mismatch");
-            }
+            checkConfigurationSet(aConfigurationSet);
 
             Boolean complete = completenessCache.get(aConfigurationSet);
             if (complete == null) {
                 HashSet<String> unseenGroupCasIDs = new HashSet<>(casGroupIds);
                 for (Configuration cfg : aConfigurationSet.configurations) {
-                    unseenGroupCasIDs.removeAll(cfg.fsAddresses.keySet());
+                    unseenGroupCasIDs.removeAll(cfg.getCasGroupIds());
                 }
                 complete = unseenGroupCasIDs.isEmpty();
                 completenessCache.put(aConfigurationSet, complete);
@@ -1431,6 +1810,18 @@ public class CasDiff2
             return complete;
         }
         
+        private void checkConfigurationSet(ConfigurationSet aConfigurationSet)
+        {
+            // Looking up the set by its position is cheap - only search all sets if that fails
+            if (data.get(aConfigurationSet.position) != aConfigurationSet) {
+                if (!data.containsValue(aConfigurationSet)) {
+                    throw new IllegalArgumentException(
+                            "Configuration set does not belong to this diff");
+                }
+                throw new IllegalArgumentException("Configuration set position mismatch");
+            }
+        }
+        
         public Map<Position, ConfigurationSet> getDifferingConfigurationSets()
         {
             Map<Position, ConfigurationSet> diffs = new LinkedHashMap<>();
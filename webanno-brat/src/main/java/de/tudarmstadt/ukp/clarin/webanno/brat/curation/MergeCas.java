@@ -19,6 +19,7 @@ package de.tudarmstadt.ukp.clarin.webanno.brat.curation;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -88,13 +89,14 @@ public class MergeCas
 
         Set<FeatureStructure> slotFeaturesToReset = new HashSet<>();
         Set<FeatureStructure> annotationsToDelete = new HashSet<>();
+        Set<FeatureStructure> processed = new HashSet<>();
 
-        Set<String> users = aJCases.keySet();
+        // Look up the annotations on a position by their fingerprint instead of comparing them
+        // pairwise - this keeps the merge linear in the number of annotations
+        AgreementIndex index = new AgreementIndex(aJCases);
 
         for (Position position : aDiff.getPositions()) {
 
-            Map<String, List<FeatureStructure>> annosPerUser = new HashMap<>();
-
             ConfigurationSet cfgs = aDiff.getConfigurtionSet(position);
 
             if (cfgs.getConfigurations(CurationPanel.CURATION_USER).size() == 0) { // incomplete
@@ -104,16 +106,15 @@ public class MergeCas
             FeatureStructure mergeAnno = cfgs.getConfigurations(CurationPanel.CURATION_USER).get(0)
                     .getFs(CurationPanel.CURATION_USER, aJCases);
 
-            // Get Annotations per user in this position
-            getAllAnnosOnPosition(aJCases, annosPerUser, users, mergeAnno);
-
-            for (FeatureStructure mergeFs : annosPerUser.get(CurationPanel.CURATION_USER)) {
-                // incomplete annotations
-                if (aJCases.size() != annosPerUser.size()) {
-                    annotationsToDelete.add(mergeFs);
+            for (FeatureStructure mergeFs : index.getAnnosOnPosition(CurationPanel.CURATION_USER,
+                    mergeAnno)) {
+                // stacked annotations share the position and have already been checked
+                if (!processed.add(mergeFs)) {
+                    continue;
                 }
+
                 // agreed and not stacked
-                else if (isAgree(mergeFs, annosPerUser)) {
+                if (index.isAgree(mergeFs)) {
 
                     Type t = mergeFs.getType();
                     Feature sourceFeat = t.getFeatureByBaseName(WebAnnoConst.FEAT_REL_SOURCE);
@@ -125,16 +126,7 @@ public class MergeCas
                         FeatureStructure source = mergeFs.getFeatureValue(sourceFeat);
                         FeatureStructure target = mergeFs.getFeatureValue(targetFeat);
 
-                        // all span anno on this source positions
-                        Map<String, List<FeatureStructure>> sourceAnnosPerUser = new HashMap<>();
-                        // all span anno on this target positions
-                        Map<String, List<FeatureStructure>> targetAnnosPerUser = new HashMap<>();
-
-                        getAllAnnosOnPosition(aJCases, sourceAnnosPerUser, users, source);
-                        getAllAnnosOnPosition(aJCases, targetAnnosPerUser, users, target);
-
-                        if (isAgree(source, sourceAnnosPerUser) && isAgree(target,
-                                targetAnnosPerUser)) {
+                        if (index.isAgree(source) && index.isAgree(target)) {
                             slotFeaturesToReset.add(mergeFs);
                         }
                         else {
@@ -184,6 +176,10 @@ public class MergeCas
             	megerCas.removeFsFromIndexes(fs);
             }
         }
+
+        // The merge CAS has changed - the slots are checked against the remaining annotations
+        index.invalidate(CurationPanel.CURATION_USER);
+
         // if slot bearing annotation, clean
         for (FeatureStructure baseFs : slotFeaturesToReset) {
             for (Feature roleFeature : baseFs.getType().getFeatures()) {
@@ -194,9 +190,7 @@ public class MergeCas
                     if (roleFss == null) {
                         continue;
                     }
-                    Map<String, ArrayFS> roleAnnosPerUser = new HashMap<>();
-
-                    setAllRoleAnnosOnPosition(aJCases, roleAnnosPerUser, users, baseFs,
+                    Map<String, ArrayFS> roleAnnosPerUser = index.getRoleAnnosPerUser(baseFs,
                             roleFeature);
                     List<FeatureStructure> linkFSes = new LinkedList<>(
                             Arrays.asList(roleFss.toArray()));
@@ -214,11 +208,9 @@ public class MergeCas
                                 if (targetFs == null) {
                                     continue;
                                 }
-                                Map<String, List<FeatureStructure>> targetAnnosPerUser = new HashMap<>();
-                                getAllAnnosOnPosition(aJCases, targetAnnosPerUser, users, targetFs);
 
                                 // do not agree on targets
-                                if (!isAgree(targetFs, targetAnnosPerUser)) {
+                                if (!index.isAgree(targetFs)) {
                                     linkFSes.remove(roleFs);
                                 }
                             }
@@ -249,65 +241,19 @@ public class MergeCas
                 .equals("uima.cas.AnnotationBase:sofa");
     }
 
-    private static void getAllAnnosOnPosition(Map<String, JCas> aJCases,
-            Map<String, List<FeatureStructure>> aAnnosPerUser, Set<String> aUsers,
-            FeatureStructure aMergeAnno)
-    {
-        for (String usr : aUsers) {
-            if (!aAnnosPerUser.containsKey(usr)) {
-                List<FeatureStructure> fssAtThisPosition = getFSAtPosition(aJCases, aMergeAnno,
-                        usr);
-                aAnnosPerUser.put(usr, fssAtThisPosition);
-            }
-            else {
-                List<FeatureStructure> fssAtThisPosition = getFSAtPosition(aJCases, aMergeAnno,
-                        usr);
-                aAnnosPerUser.get(usr).addAll(fssAtThisPosition);
-            }
-        }
-    }
-
-    private static void setAllRoleAnnosOnPosition(Map<String, JCas> aJCases,
-            Map<String, ArrayFS> slotAnnosPerUser, Set<String> aUsers, FeatureStructure aBaseAnno,
-            Feature aFeature)
-    {
-        Type t = aBaseAnno.getType();
-        int begin = ((AnnotationFS) aBaseAnno).getBegin();
-        int end = ((AnnotationFS) aBaseAnno).getEnd();
-
-        for (String usr : aUsers) {
-            for (FeatureStructure baseFS : CasUtil
-                    .selectCovered(aJCases.get(usr).getCas(), t, begin, end)) {
-                // if non eqal stacked annotations with slot feature exists, get
-                // the right one
-                if (isSameAnno(aBaseAnno, baseFS)) {
-                    ArrayFS roleFs = (ArrayFS) BratAjaxCasUtil
-                            .getFeatureFS(baseFS, aFeature.getShortName());
-                    slotAnnosPerUser.put(usr, roleFs);
-                    break;
-                }
-            }
-        }
-    }
-
     /**
-     * Returns list of Annotations on this particular position (basically when
-     * stacking is allowed)
-     *
-     * @return
+     * The values of all features of the given type which {@link #isSameAnno} compares by value,
+     * including the offsets. Two annotations can only be the same if their fingerprints are equal.
      */
-    private static List<FeatureStructure> getFSAtPosition(Map<String, JCas> aJCases,
-            FeatureStructure fs, String aUser)
+    private static List<Object> getFingerprint(FeatureStructure aFS, Type aType)
     {
-        Type t = fs.getType();
-        int begin = ((AnnotationFS) fs).getBegin();
-        int end = ((AnnotationFS) fs).getEnd();
-
-        List<FeatureStructure> fssAtThisPosition = new ArrayList<>();
-        CasUtil.selectCovered(aJCases.get(aUser).getCas(), t, begin, end)
-                .forEach(fss -> fssAtThisPosition.add(fss));
-
-        return fssAtThisPosition;
+        List<Object> fingerprint = new ArrayList<>();
+        for (Feature f : aType.getFeatures()) {
+            if (!isBasicFeature(f)) {
+                fingerprint.add(getFeatureValue(aFS, f));
+            }
+        }
+        return fingerprint;
     }
 
     /**
@@ -826,4 +772,157 @@ public class MergeCas
         }
         return targets;
     }
+
+    /**
+     * Index of the annotations of all users by position and by fingerprint. The index for a type
+     * is built with a single pass over the annotations of that type when it is first needed.
+     * Annotations are looked up by exact offsets - annotations which only cover a position can
+     * never be the same as the annotation on that position, since {@link #isSameAnno} compares the
+     * offsets as well.
+     */
+    private static class AgreementIndex
+    {
+        private final Map<String, JCas> jcases;
+
+        private final Map<String, Map<Type, Map<Long, List<FeatureStructure>>>> byOffsets =
+                new HashMap<>();
+        private final Map<String, Map<Type, Map<List<Object>, List<FeatureStructure>>>>
+                byFingerprint = new HashMap<>();
+
+        private final Map<FeatureStructure, Boolean> agreement = new HashMap<>();
+
+        public AgreementIndex(Map<String, JCas> aJCases)
+        {
+            jcases = aJCases;
+        }
+
+        /**
+         * Drop the index of a user whose CAS has changed. Agreement results are dropped as well,
+         * since they depend on the annotations of all users.
+         */
+        public void invalidate(String aUser)
+        {
+            byOffsets.remove(aUser);
+            byFingerprint.remove(aUser);
+            agreement.clear();
+        }
+
+        /**
+         * @return the annotations of the user having the same type and offsets as the given
+         *         annotation, including stacked ones.
+         */
+        public List<FeatureStructure> getAnnosOnPosition(String aUser, FeatureStructure aFs)
+        {
+            AnnotationFS fs = (AnnotationFS) aFs;
+            index(aUser, aFs.getType());
+            List<FeatureStructure> result = byOffsets.get(aUser).get(aFs.getType())
+                    .get(offsets(fs.getBegin(), fs.getEnd()));
+            return result != null ? result : Collections.<FeatureStructure> emptyList();
+        }
+
+        /**
+         * Returns true if every user has exactly one annotation which is the same as the given
+         * annotation, i.e. the users agree and there is no stacking in this position.
+         */
+        public boolean isAgree(FeatureStructure aFs)
+        {
+            Boolean result = agreement.get(aFs);
+            if (result == null) {
+                result = true;
+                List<Object> fingerprint = getFingerprint(aFs, aFs.getType());
+                for (String usr : jcases.keySet()) {
+                    if (count(getCandidates(usr, aFs, fingerprint), aFs) != 1) {
+                        result = false;
+                        break;
+                    }
+                }
+                agreement.put(aFs, result);
+            }
+            return result;
+        }
+
+        /**
+         * @return the values of the given link feature on the first annotation of each user
+         *         which is the same as the given one.
+         */
+        public Map<String, ArrayFS> getRoleAnnosPerUser(FeatureStructure aBaseFs,
+                Feature aFeature)
+        {
+            List<Object> fingerprint = getFingerprint(aBaseFs, aBaseFs.getType());
+            Map<String, ArrayFS> slotAnnosPerUser = new HashMap<>();
+            for (String usr : jcases.keySet()) {
+                for (FeatureStructure baseFS : getCandidates(usr, aBaseFs, fingerprint)) {
+                    // if non eqal stacked annotations with slot feature exists, get
+                    // the right one
+                    if (isSameAnno(aBaseFs, baseFS)) {
+                        ArrayFS roleFs = (ArrayFS) BratAjaxCasUtil
+                                .getFeatureFS(baseFS, aFeature.getShortName());
+                        slotAnnosPerUser.put(usr, roleFs);
+                        break;
+                    }
+                }
+            }
+            return slotAnnosPerUser;
+        }
+
+        private List<FeatureStructure> getCandidates(String aUser, FeatureStructure aFs,
+                List<Object> aFingerprint)
+        {
+            index(aUser, aFs.getType());
+            List<FeatureStructure> result = byFingerprint.get(aUser).get(aFs.getType())
+                    .get(aFingerprint);
+            return result != null ? result : Collections.<FeatureStructure> emptyList();
+        }
+
+        private static int count(List<FeatureStructure> aCandidates, FeatureStructure aFs)
+        {
+            int count = 0;
+            for (FeatureStructure candidate : aCandidates) {
+                // The fingerprint does not cover attached annotations
+                if (isSameAnno(aFs, candidate)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        private void index(String aUser, Type aType)
+        {
+            Map<Type, Map<Long, List<FeatureStructure>>> userByOffsets = byOffsets.get(aUser);
+            if (userByOffsets == null) {
+                userByOffsets = new HashMap<>();
+                byOffsets.put(aUser, userByOffsets);
+                byFingerprint.put(aUser,
+                        new HashMap<Type, Map<List<Object>, List<FeatureStructure>>>());
+            }
+            if (userByOffsets.containsKey(aType)) {
+                return;
+            }
+
+            Map<Long, List<FeatureStructure>> typeByOffsets = new HashMap<>();
+            Map<List<Object>, List<FeatureStructure>> typeByFingerprint = new HashMap<>();
+            for (AnnotationFS fs : CasUtil.select(jcases.get(aUser).getCas(), aType)) {
+                add(typeByOffsets, offsets(fs.getBegin(), fs.getEnd()), fs);
+                add(typeByFingerprint, getFingerprint(fs, aType), fs);
+            }
+            userByOffsets.put(aType, typeByOffsets);
+            byFingerprint.get(aUser).put(aType, typeByFingerprint);
+        }
+
+        private static long offsets(int aBegin, int aEnd)
+        {
+            return ((long) aBegin << 32) | (aEnd & 0xFFFFFFFFL);
+        }
+
+        private static <K> void add(Map<K, List<FeatureStructure>> aIndex, K aKey,
+                FeatureStructure aFs)
+        {
+            List<FeatureStructure> fss = aIndex.get(aKey);
+            if (fss == null) {
+                fss = new ArrayList<>();
+                aIndex.put(aKey, fss);
+            }
+            fss.add(aFs);
+        }
+    }
 }
\ No newline at end of file
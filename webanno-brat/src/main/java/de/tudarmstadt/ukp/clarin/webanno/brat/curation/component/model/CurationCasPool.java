@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Copyright 2016
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.brat.curation.component.model;
+
+import static de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst.CURATION_USER;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.uima.UIMAException;
+import org.apache.uima.jcas.JCas;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.RepositoryService;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocument;
+import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
+
+/**
+ * Keeps the annotator CASes and the curation CAS of the document currently being curated, so
+ * that they do not have to be read from disk again on every action of the curator.
+ * <p>
+ * Every CAS is pooled under the CAS version it was read at (see
+ * {@link RepositoryService#getCasVersion}). If a CAS has been written since, e.g. because an
+ * annotator re-opened and changed their document or because the curation CAS was edited or
+ * re-merged, it is read again. The pool only holds the CASes of one document - asking for a CAS
+ * of a different document empties it.
+ * <p>
+ * The CASes handed out are shared and must only be read. Code that changes a CAS must read its
+ * own copy from the repository and write it back, which in turn invalidates the pooled copy.
+ */
+public class CurationCasPool
+{
+    private final RepositoryService repository;
+
+    private long documentId = -1;
+    private PooledCas curationCas;
+    private final Map<String, PooledCas> annotationCases = new HashMap<String, PooledCas>();
+
+    public CurationCasPool(RepositoryService aRepository)
+    {
+        repository = aRepository;
+    }
+
+    /**
+     * Get the CAS of the given annotation document.
+     *
+     * @param aAnnotationDocument
+     *            the annotation document.
+     * @return the CAS.
+     * @throws IOException
+     *             if the CAS cannot be read.
+     */
+    public synchronized JCas getAnnotationCas(AnnotationDocument aAnnotationDocument)
+        throws IOException
+    {
+        switchDocument(aAnnotationDocument.getDocument());
+
+        String username = aAnnotationDocument.getUser();
+        long version = repository.getCasVersion(aAnnotationDocument.getDocument(), username);
+        PooledCas pooled = annotationCases.get(username);
+        if (pooled == null || pooled.version != version) {
+            pooled = new PooledCas(version, repository.readAnnotationCas(aAnnotationDocument));
+            annotationCases.put(username, pooled);
+        }
+        return pooled.jCas;
+    }
+
+    /**
+     * Get the curation CAS of the given document.
+     *
+     * @param aDocument
+     *            the source document.
+     * @return the CAS.
+     * @throws UIMAException
+     *             hum?
+     * @throws IOException
+     *             if the CAS cannot be read.
+     * @throws ClassNotFoundException
+     *             hum?
+     */
+    public synchronized JCas getCurationCas(SourceDocument aDocument)
+        throws UIMAException, IOException, ClassNotFoundException
+    {
+        switchDocument(aDocument);
+
+        long version = repository.getCasVersion(aDocument, CURATION_USER);
+        if (curationCas == null || curationCas.version != version) {
+            curationCas = new PooledCas(version, repository.readCurationCas(aDocument));
+        }
+        return curationCas.jCas;
+    }
+
+    /**
+     * Drop the CASes of all annotators except the given ones, e.g. because their documents are no
+     * longer finished and thus no longer take part in the curation.
+     *
+     * @param aUsernames
+     *            the users whose CASes are kept.
+     */
+    public synchronized void retainAnnotators(Collection<String> aUsernames)
+    {
+        annotationCases.keySet().retainAll(aUsernames);
+    }
+
+    /**
+     * Drop all pooled CASes.
+     */
+    public synchronized void clear()
+    {
+        documentId = -1;
+        curationCas = null;
+        annotationCases.clear();
+    }
+
+    private void switchDocument(SourceDocument aDocument)
+    {
+        if (documentId != aDocument.getId()) {
+            clear();
+            documentId = aDocument.getId();
+        }
+    }
+
+    private static class PooledCas
+    {
+        final long version;
+        final JCas jCas;
+
+        public PooledCas(long aVersion, JCas aJCas)
+        {
+            version = aVersion;
+            jCas = aJCas;
+        }
+    }
+}
@@ -42,6 +42,12 @@ public class CurationContainer
 
     private BratAnnotatorModel bratAnnotatorModel;
 
+    /**
+     * The CASes of the curation session. Not serialized - if the container is restored from the
+     * page store, the CASes are read from the repository again.
+     */
+    private transient CurationCasPool casPool;
+
     public List<SourceListView> getCurationViews()
     {
         LinkedList<Integer> viewsBegin = new LinkedList<Integer>(curationViewByBegin.keySet());
@@ -81,4 +87,13 @@ public class CurationContainer
         this.bratAnnotatorModel = bratAnnotatorModel;
     }
 
+    public CurationCasPool getCasPool()
+    {
+        return casPool;
+    }
+
+    public void setCasPool(CurationCasPool aCasPool)
+    {
+        casPool = aCasPool;
+    }
 }
@@ -24,16 +24,22 @@ import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.
 import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.selectSentenceAt;
 import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.TypeUtil.getAdapter;
 import static org.apache.uima.fit.util.CasUtil.selectCovered;
+import static org.apache.uima.fit.util.JCasUtil.select;
 import static org.apache.uima.fit.util.JCasUtil.selectCovered;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TreeMap;
 
 import org.apache.uima.UIMAException;
 import org.apache.uima.cas.Type;
@@ -80,6 +86,7 @@ public class SuggestionBuilder
     private final AnnotationService annotationService;
     private final RepositoryService repository;
     private final UserDao userRepository;
+    private final CurationCasPool casPool;
 
     int sentenceNumber;
     int begin, end;
@@ -90,16 +97,29 @@ public class SuggestionBuilder
 
     public SuggestionBuilder(RepositoryService repository, AnnotationService aAnnotationService,
             UserDao aUserDao)
+    {
+        this(repository, aAnnotationService, aUserDao, null);
+    }
+
+    /**
+     * @param aCasPool
+     *            the pool to take the annotator and curation CASes from in CURATION mode. May be
+     *            {@code null}, in which case the CASes are read from the repository every time.
+     */
+    public SuggestionBuilder(RepositoryService repository, AnnotationService aAnnotationService,
+            UserDao aUserDao, CurationCasPool aCasPool)
     {
         this.repository = repository;
         this.annotationService = aAnnotationService;
         userRepository = aUserDao;
+        casPool = aCasPool;
     }
 
     public CurationContainer buildCurationContainer(BratAnnotatorModel aBModel)
         throws UIMAException, ClassNotFoundException, IOException, BratAnnotationException
     {
         CurationContainer curationContainer = new CurationContainer();
+        curationContainer.setCasPool(casPool);
         // initialize Variables
         SourceDocument sourceDocument = aBModel.getDocument();
         Map<Integer, Integer> segmentBeginEnd = new HashMap<Integer, Integer>();
@@ -159,39 +179,22 @@ public class SuggestionBuilder
             firstload = false;
         }
 
+        // Diff all segments at once and find out which segments contain disagreements
+        Set<Integer> disagreeingSegments = getDisagreeingSegments(aBModel.getProject(),
+                segmentBeginEnd, jCases, entryTypes);
+
         for (Integer begin : segmentBeginEnd.keySet()) {
             Integer end = segmentBeginEnd.get(begin);
 
-            DiffResult diff = CasDiff2.doDiffSingle(annotationService, aBModel.getProject(),
-                    entryTypes, LinkCompareBehavior.LINK_ROLE_AS_LABEL, jCases, begin, end);
             SourceListView curationSegment = new SourceListView();
             curationSegment.setBegin(begin);
-			curationSegment.setEnd(end);
-			if (diff.hasDifferences() || !diff.getIncompleteConfigurationSets().isEmpty()) {
-				// Is this confSet a diff due to stacked annotations (with same configuration)?
-				boolean stackedDiff = false;
-
-				stackedDiffSet: for (ConfigurationSet d : diff.getDifferingConfigurationSets().values()) {
-					for (Configuration c : d.getConfigurations()) {
-						if (c.getCasGroupIds().size() != d.getCasGroupIds().size()) {
-							stackedDiff = true;
-							break stackedDiffSet;
-						}
-					}
-				}
-
-				if (stackedDiff) {
-					curationSegment.setSentenceState(SentenceState.DISAGREE);
-				}
-
-				else if (!diff.getIncompleteConfigurationSets().isEmpty()) {
-					curationSegment.setSentenceState(SentenceState.DISAGREE);
-				} else {
-					curationSegment.setSentenceState(SentenceState.AGREE);
-				}
-			} else {
-				curationSegment.setSentenceState(SentenceState.AGREE);
-			}
+            curationSegment.setEnd(end);
+            if (disagreeingSegments.contains(begin)) {
+                curationSegment.setSentenceState(SentenceState.DISAGREE);
+            }
+            else {
+                curationSegment.setSentenceState(SentenceState.AGREE);
+            }
 			curationSegment.setSentenceNumber(segmentNumber.get(begin));
 
 			for (String username : segmentAdress.keySet()) {
@@ -203,47 +206,299 @@ public class SuggestionBuilder
         return curationContainer;
     }
 
-    private void updateCrossSentAnnoList(Map<Integer, Integer> segmentBeginEnd,
+    /**
+     * Calculate the differences over all segments in a single pass and determine the segments
+     * which contain a disagreement.
+     *
+     * @return the begin offsets of the disagreeing segments.
+     */
+    private Set<Integer> getDisagreeingSegments(Project aProject,
+            Map<Integer, Integer> segmentBeginEnd, Map<String, JCas> jCases, List<Type> entryTypes)
+    {
+        if (segmentBeginEnd.isEmpty()) {
+            return new HashSet<Integer>();
+        }
+
+        // Segments may have been extended beyond the window by cross-sentence annotations
+        int diffBegin = Collections.min(segmentBeginEnd.keySet());
+        int diffEnd = Collections.max(segmentBeginEnd.values());
+
+        DiffResult diff = CasDiff2.doDiffSingle(annotationService, aProject, entryTypes,
+                LinkCompareBehavior.LINK_ROLE_AS_LABEL, jCases, diffBegin, diffEnd);
+
+        return getDisagreeingSegments(diff, segmentBeginEnd, jCases);
+    }
+
+    /**
+     * Determine the segments which contain a disagreement. A segment contains the configuration
+     * sets of the annotations it covers. It disagrees if one of these sets is incomplete or
+     * contains stacked annotations with different configurations.
+     *
+     * @return the begin offsets of the disagreeing segments.
+     */
+    static Set<Integer> getDisagreeingSegments(DiffResult aDiff,
+            Map<Integer, Integer> aSegmentBeginEnd, Map<String, JCas> aJCases)
+    {
+        Set<Integer> disagreeingSegments = new HashSet<Integer>();
+        TreeMap<Integer, Integer> segments = new TreeMap<Integer, Integer>(aSegmentBeginEnd);
+
+        Map<String, List<JCas>> casMap = new HashMap<String, List<JCas>>();
+        for (Entry<String, JCas> e : aJCases.entrySet()) {
+            casMap.put(e.getKey(), Collections.singletonList(e.getValue()));
+        }
+
+        for (ConfigurationSet cfgSet : aDiff.getConfigurationSets()) {
+            if (!isDisagreement(aDiff, cfgSet)) {
+                continue;
+            }
+
+            // All annotations in a set are at the same position, so any of them tells us which
+            // segments cover the set
+            Configuration cfg = cfgSet.getConfigurations().get(0);
+            AnnotationFS fs = cfg.getFs(cfg.getCasGroupIds().iterator().next(), 0,
+                    AnnotationFS.class, casMap);
+            for (Entry<Integer, Integer> segment : segments.headMap(fs.getBegin(), true)
+                    .entrySet()) {
+                if (fs.getEnd() <= segment.getValue()) {
+                    disagreeingSegments.add(segment.getKey());
+                }
+            }
+        }
+
+        return disagreeingSegments;
+    }
+
+    /**
+     * A configuration set is a disagreement if it has not been seen in all CASes or if it
+     * differs due to stacked annotations (with the same configuration).
+     */
+    private static boolean isDisagreement(DiffResult aDiff, ConfigurationSet aCfgSet)
+    {
+        if (!aDiff.isComplete(aCfgSet)) {
+            return true;
+        }
+
+        if (!aDiff.isAgreement(aCfgSet)) {
+            for (Configuration c : aCfgSet.getConfigurations()) {
+                if (c.getCasGroupIds().size() != aCfgSet.getCasGroupIds().size()) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Extend the segments to cover annotations crossing sentence boundaries and record which
+     * sentences are connected by such annotations.
+     * <p>
+     * The annotations of each CAS are collected once for the whole window and sorted by their
+     * begin offset. Sentences are looked up in a {@link SentenceIndex}, so the cost is linear in
+     * the number of annotations instead of scanning the window and the sentences per segment.
+     */
+    void updateCrossSentAnnoList(Map<Integer, Integer> segmentBeginEnd,
             Map<String, JCas> jCases, List<Type> entryTypes)
     {
         crossSentenceLists = new HashMap<>();
-        for (Integer begin : segmentBeginEnd.keySet()) {
-            int thisSent = -1;
-            Set<Integer> crossSents = new HashSet<>();
-            for (Type t : entryTypes) {
-                for (JCas c : jCases.values()) {
-                    if (thisSent == -1) {
-                        thisSent = BratAjaxCasUtil.getSentenceNumber(c, begin);
+
+        // The segments as they are before extending them, i.e. single sentences
+        TreeMap<Integer, Integer> sentences = new TreeMap<Integer, Integer>(segmentBeginEnd);
+
+        List<SentenceIndex> sentenceIndexes = new ArrayList<SentenceIndex>();
+        List<int[][]> annotations = new ArrayList<int[][]>();
+        if (!entryTypes.isEmpty()) {
+            for (JCas c : jCases.values()) {
+                sentenceIndexes.add(new SentenceIndex(c));
+                annotations.add(selectSortedOffsets(c, entryTypes));
+            }
+        }
+
+        Map<Integer, Set<Integer>> crossSents = new HashMap<Integer, Set<Integer>>();
+        for (Integer begin : sentences.keySet()) {
+            crossSents.put(begin, new HashSet<Integer>());
+        }
+
+        // Sweep over the annotations and record the sentences at the other end of annotations
+        // crossing the boundaries of a sentence
+        for (int n = 0; n < annotations.size(); n++) {
+            SentenceIndex index = sentenceIndexes.get(n);
+            int[] begins = annotations.get(n)[0];
+            int[] ends = annotations.get(n)[1];
+            for (int i = 0; i < begins.length; i++) {
+                int fsBegin = begins[i];
+                int fsEnd = ends[i];
+                // CASE 1. annotation begins here
+                for (Entry<Integer, Integer> s : containing(sentences, fsBegin)) {
+                    if (fsEnd > s.getValue() || fsEnd < s.getKey()) {
+                        int thatSent = index.getSentenceNumber(index.getBegin(index
+                                .getSentenceEndingAt(fsEnd)));
+                        crossSents.get(s.getKey()).add(thatSent);
                     }
-                    // update cross-sentence annotation lists
-                    for (AnnotationFS fs : selectCovered(c.getCas(), t, this.begin, end)) {
-                        // CASE 1. annotation begins here
-                        if (fs.getBegin() >= begin && fs.getBegin() <= segmentBeginEnd.get(begin)) {
-                            if (fs.getEnd() > segmentBeginEnd.get(begin) || fs.getEnd() < begin) {
-                                Sentence s = BratAjaxCasUtil.getSentenceByAnnoEnd(c, fs.getEnd());
-                                int thatSent = BratAjaxCasUtil.getSentenceNumber(c, s.getBegin());
-                                crossSents.add(thatSent);
-                            }
-                        }
-                        // CASE 2. Annotation ends here
-                        else if (fs.getEnd() >= begin && fs.getEnd() <= segmentBeginEnd.get(begin)) {
-                            if (fs.getBegin() > segmentBeginEnd.get(begin) || fs.getBegin() < begin) {
-                                int thatSent = BratAjaxCasUtil.getSentenceNumber(c, fs.getBegin());
-                                crossSents.add(thatSent);
-                            }
-                        }
+                }
+                // CASE 2. Annotation ends here
+                for (Entry<Integer, Integer> s : containing(sentences, fsEnd)) {
+                    if (fsBegin >= s.getKey() && fsBegin <= s.getValue()) {
+                        // Already handled as CASE 1
+                        continue;
                     }
+                    crossSents.get(s.getKey()).add(index.getSentenceNumber(fsBegin));
+                }
+            }
+        }
 
-                    for (AnnotationFS fs : selectCovered(c.getCas(), t, begin, end)) {
-                        if (fs.getBegin() <= segmentBeginEnd.get(begin)
-                                && fs.getEnd() > segmentBeginEnd.get(begin)) {
-                            Sentence s = BratAjaxCasUtil.getSentenceByAnnoEnd(c, fs.getEnd());
-                            segmentBeginEnd.put(begin, s.getEnd());
+        for (Entry<Integer, Integer> segment : sentences.entrySet()) {
+            int begin = segment.getKey();
+
+            // Extend the segment until no annotation starting in the segment ends after it.
+            // Extending the segment with the annotations of one CAS may make annotations of
+            // another CAS start in the segment, so repeat until the end does not change anymore.
+            int segmentEnd = segment.getValue();
+            boolean extended = true;
+            while (extended) {
+                extended = false;
+                for (int n = 0; n < annotations.size(); n++) {
+                    SentenceIndex index = sentenceIndexes.get(n);
+                    int[] begins = annotations.get(n)[0];
+                    int[] ends = annotations.get(n)[1];
+                    for (int i = lowerBound(begins, begin); i < begins.length
+                            && begins[i] <= segmentEnd; i++) {
+                        if (ends[i] > segmentEnd) {
+                            int sentenceEnd = index.getEnd(index.getSentenceEndingAt(ends[i]));
+                            if (sentenceEnd > segmentEnd) {
+                                segmentEnd = sentenceEnd;
+                                extended = true;
+                            }
                         }
                     }
                 }
             }
-            crossSentenceLists.put(thisSent, crossSents);
+            segmentBeginEnd.put(begin, segmentEnd);
+
+            int thisSent = sentenceIndexes.isEmpty() ? -1 : sentenceIndexes.get(0)
+                    .getSentenceNumber(begin);
+            crossSentenceLists.put(thisSent, crossSents.get(begin));
+        }
+    }
+
+    /**
+     * Get the offsets of the annotations of the given types within the window, sorted by begin.
+     *
+     * @return the begin offsets at index 0 and the end offsets at index 1.
+     */
+    private int[][] selectSortedOffsets(JCas aJCas, List<Type> aTypes)
+    {
+        List<AnnotationFS> all = new ArrayList<AnnotationFS>();
+        for (Type t : aTypes) {
+            all.addAll(selectCovered(aJCas.getCas(), t, begin, end));
+        }
+        Collections.sort(all, new Comparator<AnnotationFS>()
+        {
+            @Override
+            public int compare(AnnotationFS aO1, AnnotationFS aO2)
+            {
+                return Integer.compare(aO1.getBegin(), aO2.getBegin());
+            }
+        });
+
+        int[][] offsets = new int[2][all.size()];
+        for (int i = 0; i < all.size(); i++) {
+            offsets[0][i] = all.get(i).getBegin();
+            offsets[1][i] = all.get(i).getEnd();
+        }
+        return offsets;
+    }
+
+    /**
+     * Get the sentences whose bounds include the given offset. Sentences do not overlap, but
+     * adjacent sentences may share their boundary offset.
+     */
+    private static List<Entry<Integer, Integer>> containing(TreeMap<Integer, Integer> aSentences,
+            int aOffset)
+    {
+        List<Entry<Integer, Integer>> result = new ArrayList<Entry<Integer, Integer>>(1);
+        for (Entry<Integer, Integer> s : aSentences.headMap(aOffset, true).descendingMap()
+                .entrySet()) {
+            if (s.getValue() < aOffset) {
+                break;
+            }
+            result.add(s);
+        }
+        return result;
+    }
+
+    /**
+     * @return the index of the first value not less than the given key.
+     */
+    private static int lowerBound(int[] aValues, int aKey)
+    {
+        int low = 0;
+        int high = aValues.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (aValues[mid] < aKey) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Sentence bounds of a CAS in index order, looked up by binary search. Answers the same as
+     * {@link BratAjaxCasUtil#getSentenceNumber} and {@link BratAjaxCasUtil#getSentenceByAnnoEnd}
+     * assuming that sentences do not overlap.
+     */
+    private static class SentenceIndex
+    {
+        private final int[] begins;
+        private final int[] ends;
+
+        public SentenceIndex(JCas aJCas)
+        {
+            Collection<Sentence> sentences = select(aJCas, Sentence.class);
+            begins = new int[sentences.size()];
+            ends = new int[sentences.size()];
+            int i = 0;
+            for (Sentence sentence : sentences) {
+                begins[i] = sentence.getBegin();
+                ends[i] = sentence.getEnd();
+                i++;
+            }
+        }
+
+        /**
+         * @return the index of the first sentence ending at or after the given offset or the last
+         *         sentence if there is none.
+         */
+        public int getSentenceEndingAt(int aOffset)
+        {
+            return Math.min(lowerBound(ends, aOffset), ends.length - 1);
+        }
+
+        public int getBegin(int aSentence)
+        {
+            return begins[aSentence];
+        }
+
+        public int getEnd(int aSentence)
+        {
+            return ends[aSentence];
+        }
+
+        /**
+         * @return the number (starting at 1) of the first sentence containing the offset or the
+         *         number of sentences if there is none.
+         */
+        public int getSentenceNumber(int aOffset)
+        {
+            int i = lowerBound(ends, aOffset);
+            if (i < ends.length && begins[i] <= aOffset) {
+                return i + 1;
+            }
+            return ends.length;
         }
     }
 
@@ -285,9 +540,15 @@ public class SuggestionBuilder
             // of the open dialog - it must not happen during editing because the CAS addresses
             // are used as IDs in the UI
             // repository.upgradeCasAndSave(annotationDocument.getDocument(), aMode, username);
-            JCas jCas = repository.readAnnotationCas(annotationDocument);
+            JCas jCas = casPool != null ? casPool.getAnnotationCas(annotationDocument)
+                    : repository.readAnnotationCas(annotationDocument);
             jCases.put(username, jCas);
         }
+
+        // Annotators who are no longer finished do not take part in the curation anymore
+        if (casPool != null) {
+            casPool.retainAnnotators(jCases.keySet());
+        }
         return jCases;
     }
 
@@ -336,7 +597,8 @@ public class SuggestionBuilder
                 // are used as IDs in the UI
                 // repository.upgradeCasAndSave(aDocument, aBratAnnotatorModel.getMode(),
                 // aBratAnnotatorModel.getUser().getUsername());
-                mergeJCas = repository.readCurationCas(aDocument);
+                mergeJCas = casPool != null ? casPool.getCurationCas(aDocument)
+                        : repository.readCurationCas(aDocument);
             }
         }
         // Create jcas, if it could not be loaded from the file system
@@ -173,4 +173,33 @@ public class VID
 
         return sb.toString();
     }
+
+    @Override
+    public int hashCode()
+    {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + annotationId;
+        result = prime * result + subAnnotationId;
+        result = prime * result + attribute;
+        result = prime * result + slot;
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        VID other = (VID) obj;
+        return annotationId == other.annotationId && subAnnotationId == other.subAnnotationId
+                && attribute == other.attribute && slot == other.slot;
+    }
 }
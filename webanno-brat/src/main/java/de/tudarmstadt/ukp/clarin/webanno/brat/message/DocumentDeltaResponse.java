@@ -0,0 +1,191 @@
+/*******************************************************************************
+ * Copyright 2016
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.brat.message;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import de.tudarmstadt.ukp.clarin.webanno.brat.display.model.Comment;
+import de.tudarmstadt.ukp.clarin.webanno.brat.display.model.Entity;
+import de.tudarmstadt.ukp.clarin.webanno.brat.display.model.Relation;
+import de.tudarmstadt.ukp.clarin.webanno.brat.display.model.VID;
+
+/**
+ * Changes between two renderings of the same display window. Sent to the brat client using the
+ * {@code applyDelta} command which patches the data of the last {@link GetDocumentResponse}
+ * instead of replacing it.
+ * <p>
+ * Entities, relations and comments contained in the delta replace any existing items with the same
+ * ID on the client. Items listed in the {@code removed_*} lists are dropped. Comments are handled
+ * per annotation, i.e. if any comment of an annotation changes, all comments of that annotation are
+ * re-sent.
+ */
+public class DocumentDeltaResponse
+    extends AjaxResponse
+{
+    public static final String COMMAND = "applyDelta";
+
+    private List<Entity> entities = new ArrayList<Entity>();
+
+    @JsonProperty("removed_entities")
+    private List<VID> removedEntities = new ArrayList<VID>();
+
+    private List<Relation> relations = new ArrayList<Relation>();
+
+    @JsonProperty("removed_relations")
+    private List<VID> removedRelations = new ArrayList<VID>();
+
+    private List<Comment> comments = new ArrayList<Comment>();
+
+    @JsonProperty("removed_comments")
+    private List<VID> removedComments = new ArrayList<VID>();
+
+    public DocumentDeltaResponse()
+    {
+        super(COMMAND);
+    }
+
+    public List<Entity> getEntities()
+    {
+        return entities;
+    }
+
+    public List<VID> getRemovedEntities()
+    {
+        return removedEntities;
+    }
+
+    public List<Relation> getRelations()
+    {
+        return relations;
+    }
+
+    public List<VID> getRemovedRelations()
+    {
+        return removedRelations;
+    }
+
+    public List<Comment> getComments()
+    {
+        return comments;
+    }
+
+    public List<VID> getRemovedComments()
+    {
+        return removedComments;
+    }
+
+    /**
+     * Compute the changes between two renderings.
+     *
+     * @param aPrevious
+     *            the rendering last sent to the client.
+     * @param aCurrent
+     *            the new rendering.
+     * @return the delta or {@code null} if the two renderings do not show the same text window and
+     *         a full render is required.
+     */
+    public static DocumentDeltaResponse diff(GetDocumentResponse aPrevious,
+            GetDocumentResponse aCurrent)
+    {
+        if (!isSameWindow(aPrevious, aCurrent)) {
+            return null;
+        }
+
+        DocumentDeltaResponse delta = new DocumentDeltaResponse();
+
+        // Entities
+        Map<VID, Entity> previousEntities = new LinkedHashMap<VID, Entity>();
+        for (Entity entity : aPrevious.getEntities()) {
+            previousEntities.put(entity.getVid(), entity);
+        }
+        for (Entity entity : aCurrent.getEntities()) {
+            Entity previous = previousEntities.remove(entity.getVid());
+            if (!entity.equals(previous)) {
+                delta.entities.add(entity);
+            }
+        }
+        delta.removedEntities.addAll(previousEntities.keySet());
+
+        // Relations
+        Map<VID, Relation> previousRelations = new LinkedHashMap<VID, Relation>();
+        for (Relation relation : aPrevious.getRelations()) {
+            previousRelations.put(relation.getVid(), relation);
+        }
+        for (Relation relation : aCurrent.getRelations()) {
+            Relation previous = previousRelations.remove(relation.getVid());
+            if (!relation.equals(previous)) {
+                delta.relations.add(relation);
+            }
+        }
+        delta.removedRelations.addAll(previousRelations.keySet());
+
+        // Comments - there may be several comments per annotation, so we compare them in groups
+        Map<VID, Set<Comment>> previousComments = groupComments(aPrevious.getComments());
+        Map<VID, Set<Comment>> currentComments = groupComments(aCurrent.getComments());
+        Set<VID> changedComments = new HashSet<VID>();
+        for (Map.Entry<VID, Set<Comment>> e : currentComments.entrySet()) {
+            Set<Comment> previous = previousComments.remove(e.getKey());
+            if (!e.getValue().equals(previous)) {
+                changedComments.add(e.getKey());
+                if (previous != null) {
+                    delta.removedComments.add(e.getKey());
+                }
+            }
+        }
+        delta.removedComments.addAll(previousComments.keySet());
+        for (Comment comment : aCurrent.getComments()) {
+            if (changedComments.contains(comment.getVid())) {
+                delta.comments.add(comment);
+            }
+        }
+
+        return delta;
+    }
+
+    private static boolean isSameWindow(GetDocumentResponse aPrevious,
+            GetDocumentResponse aCurrent)
+    {
+        return aPrevious.isRtlMode() == aCurrent.isRtlMode()
+                && aPrevious.getSentenceNumberOffset() == aCurrent.getSentenceNumberOffset()
+                && aPrevious.getSentenceOffsets().equals(aCurrent.getSentenceOffsets())
+                && aPrevious.getTokenOffsets().equals(aCurrent.getTokenOffsets())
+                && aPrevious.getText() != null && aPrevious.getText().equals(aCurrent.getText());
+    }
+
+    private static Map<VID, Set<Comment>> groupComments(List<Comment> aComments)
+    {
+        Map<VID, Set<Comment>> comments = new LinkedHashMap<VID, Set<Comment>>();
+        for (Comment comment : aComments) {
+            Set<Comment> group = comments.get(comment.getVid());
+            if (group == null) {
+                group = new LinkedHashSet<Comment>();
+                comments.put(comment.getVid(), group);
+            }
+            group.add(comment);
+        }
+        return comments;
+    }
+}
@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * Copyright 2016
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.brat.resource;
+
+import org.apache.wicket.Application;
+
+/**
+ * Bundles the brat client scripts into a single resource. Once the bundle is registered, Wicket
+ * serves the bundle in place of any of the individual resource references, so components can
+ * keep rendering the references they need.
+ */
+public final class BratResourceBundle
+{
+    public static final String NAME = "brat.js";
+
+    private BratResourceBundle()
+    {
+        // No instances
+    }
+
+    /**
+     * Register the bundle with the given application. The order of the scripts in the bundle is
+     * the order in which the visualizers render them.
+     *
+     * @param aApplication
+     *            the application.
+     */
+    public static void register(Application aApplication)
+    {
+        aApplication.getResourceBundles().addJavaScriptBundle(BratResourceBundle.class, NAME,
+                // Libraries
+                JQuerySvgResourceReference.get(),
+                JQuerySvgDomResourceReference.get(),
+                JQueryJsonResourceReference.get(),
+                WebfontResourceReference.get(),
+                // BRAT helpers
+                BratConfigurationResourceReference.get(),
+                BratUtilResourceReference.get(),
+                BratAnnotationLogResourceReference.get(),
+                // BRAT modules
+                BratDispatcherResourceReference.get(),
+                BratUrlMonitorResourceReference.get(),
+                BratAjaxResourceReference.get(),
+                BratVisualizerResourceReference.get(),
+                BratVisualizerUiResourceReference.get(),
+                BratAnnotatorUiResourceReference.get(),
+                BratSpinnerResourceReference.get(),
+                BratCurationUiResourceReference.get());
+    }
+}
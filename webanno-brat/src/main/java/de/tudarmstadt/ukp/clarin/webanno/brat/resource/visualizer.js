@@ -3551,6 +3551,46 @@ Util.profileStart('before render');
         }
       };
 
+// WEBANNO EXTENSION BEGIN - Incremental rendering
+      // Patch the data of the last rendering with the changes sent by the server and render again.
+      // Items in the delta replace existing items with the same ID, items listed in the
+      // removed_* lists are dropped.
+      var applyDelta = function(delta) {
+        if (!sourceData) {
+          // Nothing to patch (e.g. the visualizer was re-created), fetch the whole document
+          dispatcher.post('current', [coll, doc, args || {}, true]);
+          return;
+        }
+
+        var patch = function(items, changed, removed) {
+          changed = changed || [];
+          removed = removed || [];
+          if (!changed.length && !removed.length) {
+            return items;
+          }
+          var dropped = {};
+          $.each(removed, function(idNo, id) {
+            dropped[id] = true;
+          });
+          $.each(changed, function(itemNo, item) {
+            dropped[item[0]] = true;
+          });
+          return $.grep(items, function(item) {
+            return !dropped[item[0]];
+          }).concat(changed);
+        };
+
+        sourceData.entities = patch(sourceData.entities, delta.entities,
+            delta.removed_entities);
+        sourceData.relations = patch(sourceData.relations, delta.relations,
+            delta.removed_relations);
+        sourceData.comments = patch(sourceData.comments, delta.comments,
+            delta.removed_comments);
+
+        renderData(sourceData);
+      };
+// WEBANNO EXTENSION END
+
       var requestRenderData = function(sourceData) {
         requestedData = sourceData;
         triggerRender();
@@ -3957,6 +3997,7 @@ Util.profileStart('before render');
           on('collectionChanged', collectionChanged).
           on('collectionLoaded', collectionLoaded).
           on('renderData', renderData).
+          on('applyDelta', applyDelta).
           on('triggerRender', triggerRender).
           on('requestRenderData', requestRenderData).
           on('isReloadOkay', isReloadOkay).
@@ -37,6 +37,7 @@ import org.apache.uima.jcas.JCas;
 import org.apache.uima.jcas.tcas.Annotation;
 
 import de.tudarmstadt.ukp.clarin.webanno.api.RepositoryService;
+import de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst;
 import de.tudarmstadt.ukp.clarin.webanno.brat.annotation.BratAnnotator;
 import de.tudarmstadt.ukp.clarin.webanno.brat.annotation.BratAnnotatorModel;
 import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocumentState;
@@ -82,6 +83,27 @@ public class BratAnnotatorUtility
         return finished;
     }
 
+    /**
+     * @return whether the given model shows the CAS of its user, i.e. not the curation CAS.
+     */
+    public static boolean isUserCas(BratAnnotatorModel aBModel)
+    {
+        return aBModel.getMode().equals(Mode.ANNOTATION)
+                || aBModel.getMode().equals(Mode.AUTOMATION)
+                || aBModel.getMode().equals(Mode.CORRECTION)
+                || aBModel.getMode().equals(Mode.CORRECTION_MERGE);
+    }
+
+    /**
+     * @return the name of the user whose CAS the given model shows, i.e.
+     *         {@link WebAnnoConst#CURATION_USER} for the curation CAS.
+     */
+    public static String getCasUsername(BratAnnotatorModel aBModel)
+    {
+        return isUserCas(aBModel) ? aBModel.getUser().getUsername()
+                : WebAnnoConst.CURATION_USER;
+    }
+
     public static JCas clearJcasAnnotations(JCas aJCas, SourceDocument aSourceDocument, User aUser,
             RepositoryService repository)
         throws IOException
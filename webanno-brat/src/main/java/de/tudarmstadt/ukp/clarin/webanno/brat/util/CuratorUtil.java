@@ -51,6 +51,7 @@ import de.tudarmstadt.ukp.clarin.webanno.brat.annotation.BratAnnotatorModel;
 import de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasController;
 import de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAnnotationException;
 import de.tudarmstadt.ukp.clarin.webanno.brat.controller.ColoringStrategy;
+import de.tudarmstadt.ukp.clarin.webanno.brat.controller.RenderCache;
 import de.tudarmstadt.ukp.clarin.webanno.brat.controller.SpanAdapter;
 import de.tudarmstadt.ukp.clarin.webanno.brat.controller.TypeAdapter;
 import de.tudarmstadt.ukp.clarin.webanno.brat.curation.AnnotationOption;
@@ -62,6 +63,7 @@ import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.DiffResult;
 import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.LinkCompareBehavior;
 import de.tudarmstadt.ukp.clarin.webanno.brat.curation.component.SuggestionViewPanel;
 import de.tudarmstadt.ukp.clarin.webanno.brat.curation.component.model.AnnotationState;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.component.model.CurationCasPool;
 import de.tudarmstadt.ukp.clarin.webanno.brat.curation.component.model.CurationContainer;
 import de.tudarmstadt.ukp.clarin.webanno.brat.curation.component.model.CurationUserSegmentForAnnotationDocument;
 import de.tudarmstadt.ukp.clarin.webanno.brat.curation.component.model.SourceListView;
@@ -76,6 +78,7 @@ import de.tudarmstadt.ukp.clarin.webanno.model.Mode;
 import de.tudarmstadt.ukp.clarin.webanno.model.ScriptDirection;
 import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
 import de.tudarmstadt.ukp.clarin.webanno.model.User;
+import de.tudarmstadt.ukp.clarin.webanno.model.support.spring.ApplicationContextProvider;
 import de.tudarmstadt.ukp.clarin.webanno.support.JSONUtil;
 import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Sentence;
 import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
@@ -134,16 +137,13 @@ public class CuratorUtil
             final List<AnnotationOption> aAnnotationOptions,
             Map<String, Map<Integer, AnnotationSelection>> aAnnotationSelectionByUsernameAndAddress,
             AnnotationService aAnnotationService, CurationContainer aCurationContainer,
-            final Map<String, AnnotationState> aStates)
+            final Map<String, AnnotationState> aStates, String aRenderCacheKey)
         throws IOException
     {
         List<String> usernamesSorted = new ArrayList<String>(aJCases.keySet());
         Collections.sort(usernamesSorted);
 
         final Mode mode = aBratAnnotatorModel.getMode();
-        boolean isAutomationMode = mode.equals(Mode.AUTOMATION);
-        boolean isCorrectionMode = mode.equals(Mode.CORRECTION);
-        boolean isCurationMode = mode.equals(Mode.CURATION);
 
         String annotatorCasUser;
         switch (mode) {
@@ -162,9 +162,12 @@ public class CuratorUtil
         LOG.debug("all users is  " + usernamesSorted);
         LOG.debug("annotator CAS is for user [" + annotatorCasUser + "]");
 
+        RenderCache renderCache = getRenderCache();
+        String collectionData = getCollectionInformation(aAnnotationService, aCurationContainer,
+                renderCache);
+
         for (String username : usernamesSorted) {
-            if ((!username.equals(CURATION_USER) && isCurationMode)
-                    || (username.equals(CURATION_USER) && (isAutomationMode || isCorrectionMode))) {
+            if (isShownInCuration(username, mode)) {
 
                 JCas jCas = aJCases.get(username);
                 // Set up coloring strategy
@@ -182,10 +185,15 @@ public class CuratorUtil
 
                 // Create curation view for the current user
                 CurationUserSegmentForAnnotationDocument curationUserSegment2 = new CurationUserSegmentForAnnotationDocument();
-                curationUserSegment2.setCollectionData(getCollectionInformation(aAnnotationService,
-                        aCurationContainer));
-                curationUserSegment2.setDocumentResponse(render(jCas, aAnnotationService,
-                        aBratAnnotatorModel, curationColoringStrategy));
+                curationUserSegment2.setCollectionData(collectionData);
+                String cacheKey = aRenderCacheKey + "|" + username;
+                String documentResponse = renderCache.get(cacheKey);
+                if (documentResponse == null) {
+                    documentResponse = render(jCas, aAnnotationService, aBratAnnotatorModel,
+                            curationColoringStrategy);
+                    renderCache.put(cacheKey, documentResponse);
+                }
+                curationUserSegment2.setDocumentResponse(documentResponse);
                 curationUserSegment2.setUsername(username);
                 curationUserSegment2.setBratAnnotatorModel(aBratAnnotatorModel);
                 curationUserSegment2
@@ -195,6 +203,67 @@ public class CuratorUtil
         }
     }
 
+    /**
+     * In curation mode, the annotations of all users are shown, but not the curation CAS. In
+     * correction and automation mode, only the correction CAS is shown.
+     */
+    private static boolean isShownInCuration(String aUsername, Mode aMode)
+    {
+        if (aMode.equals(Mode.CURATION)) {
+            return !aUsername.equals(CURATION_USER);
+        }
+        else {
+            return aUsername.equals(CURATION_USER)
+                    && (aMode.equals(Mode.AUTOMATION) || aMode.equals(Mode.CORRECTION));
+        }
+    }
+
+    private static RenderCache getRenderCache()
+    {
+        return ApplicationContextProvider.getApplicationContext().getBean("renderCache",
+                RenderCache.class);
+    }
+
+    /**
+     * Build the render cache key for the curation views of a segment. Since the colors of the
+     * views depend on the differences between all the CASes, the versions of all CASes are part
+     * of the key.
+     */
+    private static String getRenderCacheKey(BratAnnotatorModel aBModel,
+            RepositoryService aRepository, AnnotationService aAnnotationService,
+            Map<String, JCas> aJCases, int aBegin, int aEnd)
+    {
+        StringBuilder key = RenderCache.windowKey(aBModel, aAnnotationService);
+        key.append('|').append(aBegin).append('-').append(aEnd);
+
+        List<String> usernamesSorted = new ArrayList<String>(aJCases.keySet());
+        Collections.sort(usernamesSorted);
+        for (String username : usernamesSorted) {
+            // The CAS the user can edit is stored as the "CURATION USER" in the CAS map, but
+            // comes from the CORRECTION USER in correction and automation mode
+            String casUser = username;
+            if (username.equals(CURATION_USER) && !aBModel.getMode().equals(Mode.CURATION)) {
+                casUser = WebAnnoConst.CORRECTION_USER;
+            }
+            key.append('|').append(username).append('@')
+                    .append(aRepository.getCasVersion(aBModel.getDocument(), casUser));
+        }
+        return key.toString();
+    }
+
+    private static boolean isRenderCached(String aRenderCacheKey, Map<String, JCas> aJCases,
+            Mode aMode)
+    {
+        RenderCache renderCache = getRenderCache();
+        for (String username : aJCases.keySet()) {
+            if (isShownInCuration(username, aMode)
+                    && renderCache.get(aRenderCacheKey + "|" + username) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private static String render(JCas aJcas, AnnotationService aAnnotationService,
             BratAnnotatorModel aBratAnnotatorModel, ColoringStrategy aCurationColoringStrategy)
         throws IOException
@@ -234,18 +303,28 @@ public class CuratorUtil
     }
 
     private static String getCollectionInformation(AnnotationService aAnnotationService,
-            CurationContainer aCurationContainer)
+            CurationContainer aCurationContainer, RenderCache aRenderCache)
         throws IOException
     {
+        BratAnnotatorModel bModel = aCurationContainer.getBratAnnotatorModel();
+        String key = RenderCache.collectionKey(bModel.getProject(), bModel.getAnnotationLayers(),
+                aAnnotationService);
+        String json = aRenderCache.get(key);
+        if (json != null) {
+            return json;
+        }
+
         GetCollectionInformationResponse info = new GetCollectionInformationResponse();
-        info.setEntityTypes(BratAjaxCasController.buildEntityTypes(aCurationContainer
-                .getBratAnnotatorModel().getAnnotationLayers(), aAnnotationService));
+        info.setEntityTypes(BratAjaxCasController.buildEntityTypes(bModel.getAnnotationLayers(),
+                aAnnotationService));
 
         StringWriter out = new StringWriter();
         JsonGenerator jsonGenerator = JSONUtil.getJsonConverter().getObjectMapper()
                 .getFactory().createGenerator(out);
         jsonGenerator.writeObject(info);
-        return out.toString();
+        json = out.toString();
+        aRenderCache.put(key, json);
+        return json;
     }
 
     /**
@@ -290,31 +369,58 @@ public class CuratorUtil
 
         // This is the CAS that the user can actively edit
         JCas annotatorCas = getAnnotatorCase(bModel, aRepository, aUserDao,
-                aAnnotationSelectionByUsernameAndAddress, sourceDocument, jCases);
+                aAnnotationSelectionByUsernameAndAddress, sourceDocument, jCases,
+                aCurationContainer.getCasPool());
 
         // We store the CAS that the user will edit as the "CURATION USER"
         jCases.put(CURATION_USER, annotatorCas);
 
-        // get differing feature structures
-        List<Type> entryTypes = SuggestionBuilder.getEntryTypes(annotatorCas,
-                bModel.getAnnotationLayers(), aAnnotationService);
+        int diffRangeBegin, diffRangeEnd;
+        if (bModel.getMode().equals(Mode.CURATION)) {
+            diffRangeBegin = aCurationSegment.getCurationBegin();
+            diffRangeEnd = aCurationSegment.getCurationEnd();
+        }
+        else {
+            diffRangeBegin = aCurationSegment.getBegin();
+            diffRangeEnd = aCurationSegment.getEnd();
+        }
+
         List<AnnotationOption> annotationOptions = null;
 
         Map<String, AnnotationState> annoStates = new HashMap<>();
 
-        DiffResult diff;
+        String renderCacheKey = getRenderCacheKey(bModel, aRepository, aAnnotationService,
+                jCases, diffRangeBegin, diffRangeEnd);
 
-        if (bModel.getMode().equals(Mode.CURATION)) {
-            diff = CasDiff2.doDiffSingle(aAnnotationService, bModel.getProject(), entryTypes,
-                    LinkCompareBehavior.LINK_ROLE_AS_LABEL, jCases,
-                    aCurationSegment.getCurationBegin(), aCurationSegment.getCurationEnd());
-        }
-        else {
-            diff = CasDiff2.doDiffSingle(aAnnotationService, bModel.getProject(), entryTypes,
-                    LinkCompareBehavior.LINK_ROLE_AS_LABEL, jCases, aCurationSegment.getBegin(),
-                    aCurationSegment.getEnd());
+        // If all views of this segment are already rendered, the diff is not needed
+        if (!isRenderCached(renderCacheKey, jCases, bModel.getMode())) {
+            addSuggestionColors(aAnnotationService, bModel, annotatorCas, jCases, annoStates,
+                    diffRangeBegin, diffRangeEnd);
         }
 
+        LinkedList<CurationUserSegmentForAnnotationDocument> sentences = new LinkedList<CurationUserSegmentForAnnotationDocument>();
+
+        CuratorUtil.populateCurationSentences(jCases, sentences, bModel, annotationOptions,
+                aAnnotationSelectionByUsernameAndAddress, aAnnotationService, aCurationContainer,
+                annoStates, renderCacheKey);
+
+        // update sentence list on the right side
+        aParent.setModelObject(sentences);
+
+        aTarget.add(aParent);
+    }
+
+    private static void addSuggestionColors(AnnotationService aAnnotationService,
+            BratAnnotatorModel aBModel, JCas aAnnotatorCas, Map<String, JCas> aJCases,
+            Map<String, AnnotationState> aStates, int aBegin, int aEnd)
+    {
+        // get differing feature structures
+        List<Type> entryTypes = SuggestionBuilder.getEntryTypes(aAnnotatorCas,
+                aBModel.getAnnotationLayers(), aAnnotationService);
+
+        DiffResult diff = CasDiff2.doDiffSingle(aAnnotationService, aBModel.getProject(),
+                entryTypes, LinkCompareBehavior.LINK_ROLE_AS_LABEL, aJCases, aBegin, aEnd);
+
         Collection<ConfigurationSet> d = diff.getDifferingConfigurationSets().values();
 
         Collection<ConfigurationSet> i = diff.getIncompleteConfigurationSets().values();
@@ -324,9 +430,10 @@ public class CuratorUtil
             }
         }
 
-        addSuggestionColor(aAnnotationService, bModel.getMode(), jCases, annoStates, d, false,
+        addSuggestionColor(aAnnotationService, aBModel.getMode(), aJCases, aStates, d, false,
+                false);
+        addSuggestionColor(aAnnotationService, aBModel.getMode(), aJCases, aStates, i, true,
                 false);
-        addSuggestionColor(aAnnotationService, bModel.getMode(), jCases, annoStates, i, true, false);
 
         List<ConfigurationSet> all = new ArrayList<>();
 
@@ -340,19 +447,8 @@ public class CuratorUtil
             all.remove(cfgSet);
         }
 
-        addSuggestionColor(aAnnotationService, bModel.getMode(), jCases, annoStates, all, false,
+        addSuggestionColor(aAnnotationService, aBModel.getMode(), aJCases, aStates, all, false,
                 true);
-
-        LinkedList<CurationUserSegmentForAnnotationDocument> sentences = new LinkedList<CurationUserSegmentForAnnotationDocument>();
-
-        CuratorUtil.populateCurationSentences(jCases, sentences, bModel, annotationOptions,
-                aAnnotationSelectionByUsernameAndAddress, aAnnotationService, aCurationContainer,
-                annoStates);
-
-        // update sentence list on the right side
-        aParent.setModelObject(sentences);
-
-        aTarget.add(aParent);
     }
 
     /**
@@ -437,7 +533,7 @@ public class CuratorUtil
             RepositoryService aRepository,
             UserDao aUserDao,
             Map<String, Map<Integer, AnnotationSelection>> aAnnotationSelectionByUsernameAndAddress,
-            SourceDocument sourceDocument, Map<String, JCas> jCases)
+            SourceDocument sourceDocument, Map<String, JCas> jCases, CurationCasPool aCasPool)
         throws UIMAException, IOException, ClassNotFoundException
     {
 
@@ -464,16 +560,28 @@ public class CuratorUtil
             // active users.
 
             // The CAS the user can edit is the one from the virtual CURATION USER
-            annotatorCas = aRepository.readCurationCas(sourceDocument);
+            annotatorCas = aCasPool != null ? aCasPool.getCurationCas(sourceDocument)
+                    : aRepository.readCurationCas(sourceDocument);
 
-            // Now we get all the other CASes from the repository
+            // Now we get all the other CASes from the repository (or the pool of the curation
+            // session if there is one)
             List<AnnotationDocument> annotationDocuments = aRepository
                     .listAnnotationDocuments(sourceDocument);
             for (AnnotationDocument annotationDocument : annotationDocuments) {
                 String username = annotationDocument.getUser();
                 if (annotationDocument.getState().equals(AnnotationDocumentState.FINISHED)
                         || username.equals(CuratorUtil.CURATION_USER)) {
-                    JCas jCas = aRepository.readAnnotationCas(annotationDocument);
+                    // The curation CAS has just been read above
+                    JCas jCas;
+                    if (username.equals(CuratorUtil.CURATION_USER)) {
+                        jCas = annotatorCas;
+                    }
+                    else if (aCasPool != null) {
+                        jCas = aCasPool.getAnnotationCas(annotationDocument);
+                    }
+                    else {
+                        jCas = aRepository.readAnnotationCas(annotationDocument);
+                    }
                     jCases.put(username, jCas);
 
                     // cleanup annotationSelections
@@ -481,6 +589,10 @@ public class CuratorUtil
                             new HashMap<Integer, AnnotationSelection>());
                 }
             }
+
+            if (aCasPool != null) {
+                aCasPool.retainAnnotators(jCases.keySet());
+            }
         }
         return annotatorCas;
     }
@@ -0,0 +1,277 @@
+/*******************************************************************************
+ * Copyright 2016
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.brat.curation;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.uima.fit.factory.JCasFactory;
+import org.apache.uima.jcas.JCas;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.AgreementUtils.AgreementContribution;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.AgreementUtils.AgreementResult;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.AgreementUtils.ConcreteAgreementMeasure;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.DiffResult;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.LinkCompareBehavior;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.SpanDiffAdapter;
+import de.tudarmstadt.ukp.dkpro.core.api.ner.type.NamedEntity;
+import de.tudarmstadt.ukp.dkpro.core.testing.DkproTestContext;
+import de.tudarmstadt.ukp.dkpro.statistics.agreement.coding.ICodingAnnotationItem;
+
+public class AgreementServiceTest
+{
+    private final AgreementService service = new AgreementService();
+
+    @After
+    public void tearDown()
+    {
+        service.destroy();
+    }
+
+    @Test
+    public void unfinishedDocumentTest()
+        throws Exception
+    {
+        List<String> users = asList("user1", "user2");
+        String type = NamedEntity.class.getName();
+
+        // Nobody has finished the document, so there are no finished annotation documents
+        Map<String, List<JCas>> casMap = service.readCases(users, null);
+
+        assertEquals(users, new ArrayList<>(casMap.keySet()));
+        assertNull(casMap.get("user1").get(0));
+        assertNull(casMap.get("user2").get(0));
+
+        DiffResult diff = CasDiff2.doDiff(asList(type),
+                asList(new SpanDiffAdapter(type, "value")),
+                LinkCompareBehavior.LINK_TARGET_AS_LABEL, casMap);
+
+        Map<List<String>, AgreementContribution> pairs = AgreementService.getContributions(true,
+                diff, type, "value", users, casMap);
+
+        List<String> pair = AgreementService.pairKey("user1", "user2");
+        assertEquals(asList(pair), new ArrayList<>(pairs.keySet()));
+
+        AgreementResult result = AgreementUtils.calculateAgreement(
+                ConcreteAgreementMeasure.COHEN_KAPPA_AGREEMENT,
+                new AgreementResult(type, "value", pair, pairs.get(pair), true));
+        assertEquals(0, result.getStudy().getItemCount());
+        assertEquals(Double.NaN, result.getAgreement(), 0.000001d);
+    }
+
+    @Test
+    public void foldedDocumentsTest()
+        throws Exception
+    {
+        List<String> users = asList("user1", "user2");
+        String type = NamedEntity.class.getName();
+        List<String> pair = AgreementService.pairKey("user1", "user2");
+
+        List<Map<String, List<JCas>>> documents = new ArrayList<>();
+        documents.add(makeDocument(users, new String[] { "PER", "PER" },
+                new String[] { "LOC", "ORG" }));
+        documents.add(makeDocument(users, new String[] { "ORG", null },
+                new String[] { "LOC", "LOC" }));
+
+        // All CASes of a user in document order
+        Map<String, List<JCas>> allCases = new LinkedHashMap<>();
+        for (String user : users) {
+            List<JCas> cases = new ArrayList<>();
+            for (Map<String, List<JCas>> casMap : documents) {
+                cases.addAll(casMap.get(user));
+            }
+            allCases.put(user, cases);
+        }
+        DiffResult allDiff = CasDiff2.doDiff(asList(type),
+                asList(new SpanDiffAdapter(type, "value")),
+                LinkCompareBehavior.LINK_TARGET_AS_LABEL, allCases);
+
+        for (boolean excludeIncomplete : new boolean[] { true, false }) {
+            // Merge the contributions of the documents in document order
+            AgreementContribution folded = new AgreementContribution();
+            for (Map<String, List<JCas>> casMap : documents) {
+                DiffResult diff = CasDiff2.doDiff(asList(type),
+                        asList(new SpanDiffAdapter(type, "value")),
+                        LinkCompareBehavior.LINK_TARGET_AS_LABEL, casMap);
+                folded.add(AgreementService.getContributions(excludeIncomplete, diff, type,
+                        "value", users, casMap).get(pair));
+            }
+
+            AgreementResult expected = AgreementUtils.getPairwiseAgreement(
+                    ConcreteAgreementMeasure.COHEN_KAPPA_AGREEMENT, excludeIncomplete, allDiff,
+                    type, "value", allCases).getStudy("user1", "user2");
+            AgreementResult actual = AgreementUtils.calculateAgreement(
+                    ConcreteAgreementMeasure.COHEN_KAPPA_AGREEMENT,
+                    new AgreementResult(type, "value", pair, folded, excludeIncomplete));
+
+            assertEquals(4, expected.getTotalSetCount());
+            assertSameStudy(expected, actual);
+        }
+    }
+
+    @Test
+    public void parallelFoldTest()
+        throws Exception
+    {
+        final List<String> users = asList("user1", "user2", "user3");
+        final String type = NamedEntity.class.getName();
+
+        List<Map<String, List<JCas>>> documents = new ArrayList<>();
+        documents.add(makeDocument(users, new String[] { "PER", "PER", "ORG" },
+                new String[] { "LOC", "LOC", "LOC" }));
+        documents.add(makeDocument(users, new String[] { "ORG", "PER", null },
+                new String[] { "LOC", null, "PER" }));
+        documents.add(makeDocument(users, new String[] { "PER", "PER", "PER" },
+                new String[] { "ORG", "LOC", "LOC" }));
+
+        List<Callable<Map<String, Map<List<String>, AgreementContribution>>>> tasks =
+                new ArrayList<>();
+        for (int i = 0; i < documents.size(); i++) {
+            final Map<String, List<JCas>> casMap = documents.get(i);
+            // Let the first document take longest, so the documents finish out of order
+            final long delay = i == 0 ? 200 : 0;
+            tasks.add(new Callable<Map<String, Map<List<String>, AgreementContribution>>>()
+            {
+                @Override
+                public Map<String, Map<List<String>, AgreementContribution>> call()
+                    throws Exception
+                {
+                    Thread.sleep(delay);
+                    DiffResult diff = CasDiff2.doDiff(asList(type),
+                            asList(new SpanDiffAdapter(type, "value")),
+                            LinkCompareBehavior.LINK_TARGET_AS_LABEL, casMap);
+                    Map<String, Map<List<String>, AgreementContribution>> result =
+                            new HashMap<>();
+                    result.put("value", AgreementService.getContributions(true, diff, type,
+                            "value", users, casMap));
+                    return result;
+                }
+            });
+        }
+
+        // Merge the documents one after another
+        Map<List<String>, AgreementContribution> sequential = new HashMap<>();
+        for (Callable<Map<String, Map<List<String>, AgreementContribution>>> task : tasks) {
+            for (Map.Entry<List<String>, AgreementContribution> e : task.call().get("value")
+                    .entrySet()) {
+                if (!sequential.containsKey(e.getKey())) {
+                    sequential.put(e.getKey(), new AgreementContribution());
+                }
+                sequential.get(e.getKey()).add(e.getValue());
+            }
+        }
+
+        final List<Integer> progress = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(documents.size());
+        Map<List<String>, AgreementContribution> parallel;
+        try {
+            parallel = AgreementService.foldInOrder(executor, tasks,
+                    new AgreementService.ProgressListener()
+                    {
+                        @Override
+                        public void progress(int aDocumentsDone, int aDocumentCount)
+                        {
+                            progress.add(aDocumentsDone);
+                        }
+                    }).get("value");
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(asList(1, 2, 3), progress);
+        assertEquals(sequential.keySet(), parallel.keySet());
+        for (List<String> pair : sequential.keySet()) {
+            assertSameStudy(toResult(type, pair, sequential.get(pair)),
+                    toResult(type, pair, parallel.get(pair)));
+        }
+    }
+
+    private static AgreementResult toResult(String aType, List<String> aPair,
+            AgreementContribution aContribution)
+    {
+        return AgreementUtils.calculateAgreement(ConcreteAgreementMeasure.COHEN_KAPPA_AGREEMENT,
+                new AgreementResult(aType, "value", aPair, aContribution, true));
+    }
+
+    private static void assertSameStudy(AgreementResult aExpected, AgreementResult aActual)
+    {
+        assertEquals(aExpected.getStudy().getRaterCount(), aActual.getStudy().getRaterCount());
+        assertEquals(aExpected.getStudy().getItemCount(), aActual.getStudy().getItemCount());
+        for (int i = 0; i < aExpected.getStudy().getItemCount(); i++) {
+            ICodingAnnotationItem expected = aExpected.getStudy().getItem(i);
+            ICodingAnnotationItem actual = aActual.getStudy().getItem(i);
+            for (int r = 0; r < aExpected.getStudy().getRaterCount(); r++) {
+                assertEquals(expected.getUnit(r).getCategory(), actual.getUnit(r).getCategory());
+            }
+        }
+        assertEquals(aExpected.getTotalSetCount(), aActual.getTotalSetCount());
+        assertEquals(aExpected.getRelevantSetCount(), aActual.getRelevantSetCount());
+        assertEquals(aExpected.getDiffSetCount(), aActual.getDiffSetCount());
+        assertEquals(aExpected.getIncompleteSetByPositionCount(),
+                aActual.getIncompleteSetByPositionCount());
+        assertEquals(aExpected.getIncompleteSetByLabelCount(),
+                aActual.getIncompleteSetByLabelCount());
+        assertEquals(aExpected.getPluralitySetCount(), aActual.getPluralitySetCount());
+        assertEquals(aExpected.getAgreement(), aActual.getAgreement(), 0.000001d);
+    }
+
+    /**
+     * Create one CAS per user for the text "John loves Mary". Each user labels "John" and "Mary"
+     * with the given named entity values. A {@code null} value leaves the word unannotated.
+     */
+    private static Map<String, List<JCas>> makeDocument(List<String> aUsers, String[] aJohn,
+            String[] aMary)
+        throws Exception
+    {
+        Map<String, List<JCas>> casMap = new LinkedHashMap<>();
+        for (int i = 0; i < aUsers.size(); i++) {
+            JCas jcas = JCasFactory.createJCas();
+            jcas.setDocumentText("John loves Mary");
+            makeNamedEntity(jcas, 0, 4, aJohn[i]);
+            makeNamedEntity(jcas, 11, 15, aMary[i]);
+            casMap.put(aUsers.get(i), asList(jcas));
+        }
+        return casMap;
+    }
+
+    private static void makeNamedEntity(JCas aJCas, int aBegin, int aEnd, String aValue)
+    {
+        if (aValue != null) {
+            NamedEntity ne = new NamedEntity(aJCas, aBegin, aEnd);
+            ne.setValue(aValue);
+            ne.addToIndexes();
+        }
+    }
+
+    @Rule
+    public DkproTestContext testContext = new DkproTestContext();
+}
@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * Copyright 2016
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.brat.curation;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.uima.fit.factory.JCasFactory;
+import org.apache.uima.jcas.JCas;
+import org.junit.Rule;
+import org.junit.Test;
+
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.AgreementUtils.AgreementResult;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.AgreementUtils.ConcreteAgreementMeasure;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.DiffResult;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.LinkCompareBehavior;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.SpanDiffAdapter;
+import de.tudarmstadt.ukp.dkpro.core.api.ner.type.NamedEntity;
+import de.tudarmstadt.ukp.dkpro.core.testing.DkproTestContext;
+
+public class AgreementUtilsTest
+{
+    @Test
+    public void pairwiseAgreementTest()
+        throws Exception
+    {
+        JCas jcasA = JCasFactory.createJCas();
+        jcasA.setDocumentText("John loves Mary");
+        makeNamedEntity(jcasA, 0, 4, "PER");
+        makeNamedEntity(jcasA, 11, 15, "LOC");
+
+        // Stacked annotations at the last position
+        JCas jcasB = JCasFactory.createJCas();
+        jcasB.setDocumentText("John loves Mary");
+        makeNamedEntity(jcasB, 0, 4, "PER");
+        makeNamedEntity(jcasB, 11, 15, "LOC");
+        makeNamedEntity(jcasB, 11, 15, "ORG");
+
+        // Position which only this user has annotated
+        JCas jcasC = JCasFactory.createJCas();
+        jcasC.setDocumentText("John loves Mary");
+        makeNamedEntity(jcasC, 0, 4, "ORG");
+        makeNamedEntity(jcasC, 5, 10, "PER");
+        makeNamedEntity(jcasC, 11, 15, "LOC");
+
+        Map<String, List<JCas>> casByUser = new LinkedHashMap<>();
+        casByUser.put("user1", asList(jcasA));
+        casByUser.put("user2", asList(jcasB));
+        casByUser.put("user3", asList(jcasC));
+
+        String type = NamedEntity.class.getName();
+
+        DiffResult diff = CasDiff2.doDiff(asList(type), asList(SpanDiffAdapter.NER),
+                LinkCompareBehavior.LINK_TARGET_AS_LABEL, casByUser);
+
+        diff.print(System.out);
+
+        for (boolean excludeIncomplete : new boolean[] { true, false }) {
+            PairwiseAnnotationResult pairwise = AgreementUtils.getPairwiseAgreement(
+                    ConcreteAgreementMeasure.COHEN_KAPPA_AGREEMENT, excludeIncomplete, diff,
+                    type, "value", casByUser);
+
+            assertEquals(casByUser.keySet(), pairwise.getRaters());
+
+            // The studies filled in a single pass must be the same as studying each pair on its
+            // own
+            for (String[] pair : asList(new String[] { "user1", "user2" },
+                    new String[] { "user1", "user3" }, new String[] { "user2", "user3" })) {
+                Map<String, List<JCas>> pairCasMap = new LinkedHashMap<>();
+                pairCasMap.put(pair[0], casByUser.get(pair[0]));
+                pairCasMap.put(pair[1], casByUser.get(pair[1]));
+
+                AgreementResult expected = AgreementUtils.getAgreement(
+                        ConcreteAgreementMeasure.COHEN_KAPPA_AGREEMENT, excludeIncomplete, diff,
+                        type, "value", pairCasMap);
+                AgreementResult actual = pairwise.getStudy(pair[0], pair[1]);
+
+                AgreementUtils.dumpAgreementStudy(System.out, actual);
+
+                assertEquals(expected.getStudy().getItemCount(),
+                        actual.getStudy().getItemCount());
+                assertEquals(expected.getCompleteSets(), actual.getCompleteSets());
+                assertEquals(expected.getIrrelevantSets(), actual.getIrrelevantSets());
+                assertEquals(expected.getSetsWithDifferences(), actual.getSetsWithDifferences());
+                assertEquals(expected.getIncompleteSetsByPosition(),
+                        actual.getIncompleteSetsByPosition());
+                assertEquals(expected.getIncompleteSetsByLabel(),
+                        actual.getIncompleteSetsByLabel());
+                assertEquals(expected.getPluralitySets(), actual.getPluralitySets());
+                assertEquals(expected.getAgreement(), actual.getAgreement(), 0.000001d);
+            }
+        }
+
+        // The first and third user disagree at the first position, the position only annotated
+        // by the third user is irrelevant for the others
+        PairwiseAnnotationResult pairwise = AgreementUtils.getPairwiseCohenKappaAgreement(diff,
+                type, "value", casByUser);
+        assertEquals(1, pairwise.getStudy("user1", "user2").getPluralitySetCount());
+        assertEquals(1, pairwise.getStudy("user1", "user2").getIrrelevantSets().size());
+        assertEquals(1, pairwise.getStudy("user1", "user3").getIncompleteSetByPositionCount());
+        assertEquals(1, pairwise.getStudy("user1", "user3").getSetsWithDifferences().size());
+    }
+
+    private static void makeNamedEntity(JCas aJCas, int aBegin, int aEnd, String aValue)
+    {
+        NamedEntity ne = new NamedEntity(aJCas, aBegin, aEnd);
+        ne.setValue(aValue);
+        ne.addToIndexes();
+    }
+
+    @Rule
+    public DkproTestContext testContext = new DkproTestContext();
+}
@@ -43,6 +43,8 @@ import de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst;
 import de.tudarmstadt.ukp.clarin.webanno.brat.curation.AgreementUtils.AgreementResult;
 import de.tudarmstadt.ukp.clarin.webanno.brat.curation.AgreementUtils.ConcreteAgreementMeasure;
 import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.ArcDiffAdapter;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.Configuration;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.ConfigurationSet;
 import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.DiffAdapter;
 import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.DiffResult;
 import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.LinkCompareBehavior;
@@ -271,6 +273,108 @@ public class CasDiff2Test
         assertEquals(0, agreement.getIncompleteSetsByPosition().size());
     }
 
+    @Test
+    public void multipleUsersSpanLabelTest()
+        throws Exception
+    {
+        String[] labels = { "PER", "LOC", "PER", "ORG", "LOC" };
+        
+        Map<String, List<JCas>> casByUser = new LinkedHashMap<>();
+        for (int i = 0; i < labels.length; i++) {
+            JCas jcas = JCasFactory.createJCas();
+            jcas.setDocumentText("John loves Mary");
+            NamedEntity ne = new NamedEntity(jcas, 0, 4);
+            ne.setValue(labels[i]);
+            ne.addToIndexes();
+            casByUser.put("user" + (i + 1), asList(jcas));
+        }
+
+        List<String> entryTypes = asList(NamedEntity.class.getName());
+
+        List<SpanDiffAdapter> diffAdapters = asList(SpanDiffAdapter.NER);
+
+        DiffResult result = CasDiff2.doDiff(entryTypes, diffAdapters,
+                LinkCompareBehavior.LINK_TARGET_AS_LABEL, casByUser);
+
+        result.print(System.out);
+        
+        assertEquals(1, result.size());
+        assertEquals(1, result.getDifferingConfigurationSets().size());
+        assertEquals(0, result.getIncompleteConfigurationSets().size());
+        
+        // Users with the same label share a configuration
+        ConfigurationSet cfgSet = result.getConfigurationSets().iterator().next();
+        assertEquals(3, cfgSet.getConfigurations().size());
+        assertEquals(5, cfgSet.getRecordedConfigurationCount());
+        assertEquals(asList("user1", "user3"),
+                new ArrayList<>(cfgSet.getConfigurations("user1").get(0).getCasGroupIds()));
+        assertEquals(asList("user2", "user5"),
+                new ArrayList<>(cfgSet.getConfigurations("user5").get(0).getCasGroupIds()));
+        assertEquals(asList("user4"),
+                new ArrayList<>(cfgSet.getConfigurations("user4").get(0).getCasGroupIds()));
+    }
+
+    @Test
+    public void multiFeatureSpanTest()
+        throws Exception
+    {
+        String typeName = "webanno.custom.Multivalspan";
+        TypeSystemDescription types = DiffUtils.createCustomTypeSystem(WebAnnoConst.SPAN_TYPE,
+                typeName, asList("f1", "f2"), null);
+        
+        JCas jcasA = JCasFactory.createJCas(types);
+        jcasA.setDocumentText("John loves Mary");
+        makeMultivalSpan(jcasA, typeName, 0, 4, "A", "B");
+        makeMultivalSpan(jcasA, typeName, 11, 15, "A", null);
+
+        JCas jcasB = JCasFactory.createJCas(types);
+        jcasB.setDocumentText("John loves Mary");
+        makeMultivalSpan(jcasB, typeName, 0, 4, "A", "B");
+        makeMultivalSpan(jcasB, typeName, 11, 15, "A", null);
+
+        JCas jcasC = JCasFactory.createJCas(types);
+        jcasC.setDocumentText("John loves Mary");
+        makeMultivalSpan(jcasC, typeName, 0, 4, "A", "C");
+        makeMultivalSpan(jcasC, typeName, 11, 15, "A", null);
+
+        Map<String, List<JCas>> casByUser = new LinkedHashMap<>();
+        casByUser.put("user1", asList(jcasA));
+        casByUser.put("user2", asList(jcasB));
+        casByUser.put("user3", asList(jcasC));
+
+        List<String> entryTypes = asList(typeName);
+
+        List<SpanDiffAdapter> diffAdapters = asList(new SpanDiffAdapter(typeName, "f1", "f2"));
+
+        DiffResult result = CasDiff2.doDiff(entryTypes, diffAdapters,
+                LinkCompareBehavior.LINK_TARGET_AS_LABEL, casByUser);
+
+        result.print(System.out);
+        
+        // The annotations at the first position only differ in the second feature
+        assertEquals(2, result.size());
+        assertEquals(1, result.getDifferingConfigurationSets().size());
+        assertEquals(0, result.getIncompleteConfigurationSets().size());
+        
+        ConfigurationSet cfgSet = result.getDifferingConfigurationSets().values().iterator()
+                .next();
+        assertEquals(2, cfgSet.getConfigurations().size());
+        assertEquals(asList("user1", "user2"),
+                new ArrayList<>(cfgSet.getConfigurations("user1").get(0).getCasGroupIds()));
+    }
+
+    private static void makeMultivalSpan(JCas aJCas, String aType, int aBegin, int aEnd,
+            String aF1, String aF2)
+    {
+        CAS cas = aJCas.getCas();
+        AnnotationFS fs = cas.createAnnotation(cas.getTypeSystem().getType(aType), aBegin, aEnd);
+        FSUtil.setFeature(fs, "f1", aF1);
+        if (aF2 != null) {
+            FSUtil.setFeature(fs, "f2", aF2);
+        }
+        cas.addFsToIndexes(fs);
+    }
+
     @Test
     public void singleDifferencesTest()
         throws Exception
@@ -708,6 +812,63 @@ public class CasDiff2Test
         assertEquals(1.0d, agreement.getAgreement(), 0.00001d);
     }
 
+    @Test
+    public void multiLinkSlotIndexTest()
+        throws Exception
+    {
+        JCas jcasA = JCasFactory.createJCas(DiffUtils.createMultiLinkWithRoleTestTypeSytem());
+        DiffUtils.makeLinkHostFS(jcasA, 0, 0, DiffUtils.makeLinkFS(jcasA, "slot1", 0, 0));
+
+        JCas jcasB = JCasFactory.createJCas(DiffUtils.createMultiLinkWithRoleTestTypeSytem());
+        DiffUtils.makeLinkHostFS(jcasB, 0, 0, 
+                DiffUtils.makeLinkFS(jcasB, "slot2", 10, 10),
+                DiffUtils.makeLinkFS(jcasB, "slot1", 0, 0));
+
+        JCas jcasC = JCasFactory.createJCas(DiffUtils.createMultiLinkWithRoleTestTypeSytem());
+        DiffUtils.makeLinkHostFS(jcasC, 0, 0, DiffUtils.makeLinkFS(jcasC, "slot1", 0, 0));
+
+        // Users are not added in order, the configurations keep them sorted nevertheless
+        Map<String, List<JCas>> casByUser = new LinkedHashMap<>();
+        casByUser.put("user3", asList(jcasC));
+        casByUser.put("user1", asList(jcasA));
+        casByUser.put("user2", asList(jcasB));
+
+        List<String> entryTypes = asList(DiffUtils.HOST_TYPE);
+
+        SpanDiffAdapter adapter = new SpanDiffAdapter(DiffUtils.HOST_TYPE);
+        adapter.addLinkFeature("links", "role", "target");
+        List<? extends DiffAdapter> diffAdapters = asList(adapter);
+
+        DiffResult diff = CasDiff2.doDiff(entryTypes, diffAdapters,
+                LinkCompareBehavior.LINK_TARGET_AS_LABEL, casByUser);
+        
+        diff.print(System.out);
+        
+        assertEquals(3, diff.size());
+        assertEquals(0, diff.getDifferingConfigurationSets().size());
+        assertEquals(1, diff.getIncompleteConfigurationSets().size());
+        
+        ConfigurationSet slot1 = null;
+        for (ConfigurationSet cfgSet : diff.getConfigurationSets()) {
+            if ("slot1".equals(cfgSet.getPosition().getRole())) {
+                slot1 = cfgSet;
+            }
+        }
+        
+        assertEquals(1, slot1.getConfigurations().size());
+        assertEquals(3, slot1.getRecordedConfigurationCount());
+        
+        Configuration cfg = slot1.getConfigurations().get(0);
+        assertEquals(asList("user1", "user2", "user3"), new ArrayList<>(cfg.getCasGroupIds()));
+        
+        // The slot index refers to the position of the link in the link feature of each user
+        assertEquals("links", cfg.getAID("user1").feature);
+        assertEquals(0, cfg.getAID("user1").index);
+        assertEquals(1, cfg.getAID("user2").index);
+        assertEquals(0, cfg.getAID("user3").index);
+        assertEquals(null, cfg.getAID("user4"));
+    }
+
     @Test
     public void multiLinkWithRoleLabelDifferenceTest()
         throws Exception
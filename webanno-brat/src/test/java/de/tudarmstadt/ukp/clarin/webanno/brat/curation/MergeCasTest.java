@@ -18,6 +18,7 @@
 package de.tudarmstadt.ukp.clarin.webanno.brat.curation;
 
 import static java.util.Arrays.asList;
+import static org.apache.uima.fit.util.JCasUtil.select;
 import static org.junit.Assert.assertEquals;
 import static de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst.RELATION_TYPE;
 import static de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst.SPAN_TYPE;
@@ -50,6 +51,7 @@ import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.SpanDiffAdapter;
 import de.tudarmstadt.ukp.clarin.webanno.brat.curation.component.CurationPanel;
 import de.tudarmstadt.ukp.dkpro.core.api.lexmorph.type.pos.POS;
 import de.tudarmstadt.ukp.dkpro.core.api.ner.type.NamedEntity;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
 import de.tudarmstadt.ukp.dkpro.core.api.syntax.type.dependency.Dependency;
 import de.tudarmstadt.ukp.dkpro.core.testing.DkproTestContext;
 
@@ -739,6 +741,108 @@ public class MergeCasTest {
 		assertEquals(1, numHost);
 	}
 
+	@Test
+	public void stackedSpanDifferentLabelsTest() throws Exception {
+		JCas jcasA = JCasFactory.createJCas();
+		jcasA.setDocumentText("Mourinho admitted it.");
+		makeNamedEntity(jcasA, 0, 8, "PER");
+		makeNamedEntity(jcasA, 0, 8, "LOC");
+
+		JCas jcasB = JCasFactory.createJCas();
+		jcasB.setDocumentText("Mourinho admitted it.");
+		makeNamedEntity(jcasB, 0, 8, "LOC");
+		makeNamedEntity(jcasB, 0, 8, "PER");
+
+		Map<String, List<JCas>> casByUser = new LinkedHashMap<>();
+		casByUser.put("user1", asList(jcasA));
+		casByUser.put("user2", asList(jcasB));
+
+		List<String> entryTypes = asList(NamedEntity.class.getName());
+
+		List<SpanDiffAdapter> diffAdapters = asList(SpanDiffAdapter.NER);
+
+		addRandomMergeCas(casByUser);
+
+		DiffResult result = CasDiff2.doDiff(entryTypes, diffAdapters, LinkCompareBehavior.LINK_TARGET_AS_LABEL,
+				casByUser);
+
+		JCas mergeCas = MergeCas.geMergeCas(result, getSingleCasByUser(casByUser));
+
+		// Each of the stacked annotations has exactly one counterpart per user
+		assertEquals(2, select(mergeCas, NamedEntity.class).size());
+	}
+
+	@Test
+	public void stackedSpanSameLabelTest() throws Exception {
+		JCas jcasA = JCasFactory.createJCas();
+		jcasA.setDocumentText("Mourinho admitted it.");
+		makeNamedEntity(jcasA, 0, 8, "PER");
+		makeNamedEntity(jcasA, 0, 8, "PER");
+
+		JCas jcasB = JCasFactory.createJCas();
+		jcasB.setDocumentText("Mourinho admitted it.");
+		makeNamedEntity(jcasB, 0, 8, "PER");
+
+		Map<String, List<JCas>> casByUser = new LinkedHashMap<>();
+		casByUser.put("user1", asList(jcasA));
+		casByUser.put("user2", asList(jcasB));
+
+		List<String> entryTypes = asList(NamedEntity.class.getName());
+
+		List<SpanDiffAdapter> diffAdapters = asList(SpanDiffAdapter.NER);
+
+		addRandomMergeCas(casByUser);
+
+		DiffResult result = CasDiff2.doDiff(entryTypes, diffAdapters, LinkCompareBehavior.LINK_TARGET_AS_LABEL,
+				casByUser);
+
+		JCas mergeCas = MergeCas.geMergeCas(result, getSingleCasByUser(casByUser));
+
+		// The first user has stacked the same annotation, so there is no agreement
+		assertEquals(0, select(mergeCas, NamedEntity.class).size());
+	}
+
+	@Test
+	public void relationSharedGovernorTest() throws Exception {
+		JCas jcasA = JCasFactory.createJCas();
+		jcasA.setDocumentText("John loves Mary");
+		Token johnA = makeToken(jcasA, 0, 4);
+		Token lovesA = makeToken(jcasA, 5, 10);
+		Token maryA = makeToken(jcasA, 11, 15);
+		makeDependency(jcasA, lovesA, johnA, "nsubj");
+		makeDependency(jcasA, lovesA, maryA, "dobj");
+
+		JCas jcasB = JCasFactory.createJCas();
+		jcasB.setDocumentText("John loves Mary");
+		Token johnB = makeToken(jcasB, 0, 4);
+		Token lovesB = makeToken(jcasB, 5, 10);
+		Token maryB = makeToken(jcasB, 11, 15);
+		makeDependency(jcasB, lovesB, johnB, "nsubj");
+		makeDependency(jcasB, lovesB, maryB, "iobj");
+
+		Map<String, List<JCas>> casByUser = new LinkedHashMap<>();
+		casByUser.put("user1", asList(jcasA));
+		casByUser.put("user2", asList(jcasB));
+
+		List<String> entryTypes = asList(Dependency.class.getName());
+
+		List<? extends DiffAdapter> diffAdapters = asList(
+				new ArcDiffAdapter(Dependency.class.getName(), "Dependent", "Governor", "DependencyType"));
+
+		addRandomMergeCas(casByUser);
+
+		DiffResult result = CasDiff2.doDiff(entryTypes, diffAdapters, LinkCompareBehavior.LINK_TARGET_AS_LABEL,
+				casByUser);
+
+		JCas mergeCas = MergeCas.geMergeCas(result, getSingleCasByUser(casByUser));
+
+		// Both relations share the governor, only the one the users agree on is kept
+		List<Dependency> deps = new ArrayList<>(select(mergeCas, Dependency.class));
+		assertEquals(1, deps.size());
+		assertEquals("nsubj", deps.get(0).getDependencyType());
+		assertEquals(3, select(mergeCas, Token.class).size());
+	}
+
 	private Map<String, JCas> getSingleCasByUser(Map<String, List<JCas>> aCasByUserSingle) {
 
 		Map<String, JCas> casByUserSingle = new HashMap<>();
@@ -756,6 +860,26 @@ public class MergeCasTest {
 		casByUser.put(CurationPanel.CURATION_USER, asList(randomCas));
 	}
 
+	private static void makeNamedEntity(JCas aJCas, int aBegin, int aEnd, String aValue) {
+		NamedEntity ne = new NamedEntity(aJCas, aBegin, aEnd);
+		ne.setValue(aValue);
+		ne.addToIndexes();
+	}
+
+	private static Token makeToken(JCas aJCas, int aBegin, int aEnd) {
+		Token token = new Token(aJCas, aBegin, aEnd);
+		token.addToIndexes();
+		return token;
+	}
+
+	private static void makeDependency(JCas aJCas, Token aGovernor, Token aDependent, String aType) {
+		Dependency dep = new Dependency(aJCas, aDependent.getBegin(), aDependent.getEnd());
+		dep.setGovernor(aGovernor);
+		dep.setDependent(aDependent);
+		dep.setDependencyType(aType);
+		dep.addToIndexes();
+	}
+
 	@Rule
 	public DkproTestContext testContext = new DkproTestContext();
 }
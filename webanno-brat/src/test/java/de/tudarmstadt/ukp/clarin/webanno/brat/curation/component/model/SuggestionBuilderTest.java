@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * Copyright 2016
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.brat.curation.component.model;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.uima.cas.Type;
+import org.apache.uima.fit.factory.JCasFactory;
+import org.apache.uima.jcas.JCas;
+import org.junit.Rule;
+import org.junit.Test;
+
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.DiffResult;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.LinkCompareBehavior;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.SpanDiffAdapter;
+import de.tudarmstadt.ukp.dkpro.core.api.ner.type.NamedEntity;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Sentence;
+import de.tudarmstadt.ukp.dkpro.core.testing.DkproTestContext;
+
+public class SuggestionBuilderTest
+{
+    private static final String TEXT = "A b. C d. E f.";
+
+    @Test
+    public void crossSentenceSegmentTest()
+        throws Exception
+    {
+        // The first user annotates across the boundary of the first and second sentence, the
+        // second user across the boundary of the second and third sentence. Both agree on an
+        // annotation in the third sentence.
+        JCas jcas1 = makeCas();
+        makeNamedEntity(jcas1, 2, 7, "PER");
+        makeNamedEntity(jcas1, 11, 13, "LOC");
+
+        JCas jcas2 = makeCas();
+        makeNamedEntity(jcas2, 7, 12, "ORG");
+        makeNamedEntity(jcas2, 11, 13, "LOC");
+
+        Map<String, JCas> jCases = new LinkedHashMap<>();
+        jCases.put("user1", jcas1);
+        jCases.put("user2", jcas2);
+
+        // Initially, each segment is a single sentence
+        Map<Integer, Integer> segmentBeginEnd = new HashMap<>();
+        segmentBeginEnd.put(0, 4);
+        segmentBeginEnd.put(5, 9);
+        segmentBeginEnd.put(10, 14);
+
+        SuggestionBuilder builder = new SuggestionBuilder(null, null, null);
+        builder.begin = 0;
+        builder.end = TEXT.length();
+        List<Type> entryTypes = asList(jcas1.getTypeSystem().getType(
+                NamedEntity.class.getName()));
+        builder.updateCrossSentAnnoList(segmentBeginEnd, jCases, entryTypes);
+
+        // The first segment is extended to the second sentence by the annotation of the first
+        // user. This pulls in the annotation of the second user, so it is extended to the third
+        // sentence as well.
+        Map<Integer, Integer> expectedSegments = new HashMap<>();
+        expectedSegments.put(0, 14);
+        expectedSegments.put(5, 14);
+        expectedSegments.put(10, 14);
+        assertEquals(expectedSegments, segmentBeginEnd);
+
+        // The connected sentences are determined from the sentences, not the extended segments
+        Map<Integer, Set<Integer>> expectedCrossSentences = new HashMap<>();
+        expectedCrossSentences.put(1, new HashSet<>(asList(2)));
+        expectedCrossSentences.put(2, new HashSet<>(asList(1, 3)));
+        expectedCrossSentences.put(3, new HashSet<>(asList(2)));
+        assertEquals(expectedCrossSentences, SuggestionBuilder.crossSentenceLists);
+
+        // The annotation of the first user is only covered by the first segment, the one of the
+        // second user by the first and the second segment. The third segment only contains the
+        // agreeing annotation.
+        Map<String, List<JCas>> casMap = new LinkedHashMap<>();
+        casMap.put("user1", asList(jcas1));
+        casMap.put("user2", asList(jcas2));
+        DiffResult diff = CasDiff2.doDiff(asList(NamedEntity.class.getName()),
+                asList(SpanDiffAdapter.NER), LinkCompareBehavior.LINK_ROLE_AS_LABEL, casMap);
+
+        assertEquals(new HashSet<>(asList(0, 5)),
+                SuggestionBuilder.getDisagreeingSegments(diff, segmentBeginEnd, jCases));
+    }
+
+    private static JCas makeCas()
+        throws Exception
+    {
+        JCas jcas = JCasFactory.createJCas();
+        jcas.setDocumentText(TEXT);
+        new Sentence(jcas, 0, 4).addToIndexes();
+        new Sentence(jcas, 5, 9).addToIndexes();
+        new Sentence(jcas, 10, 14).addToIndexes();
+        return jcas;
+    }
+
+    private static void makeNamedEntity(JCas aJCas, int aBegin, int aEnd, String aValue)
+    {
+        NamedEntity ne = new NamedEntity(aJCas, aBegin, aEnd);
+        ne.setValue(aValue);
+        ne.addToIndexes();
+    }
+
+    @Rule
+    public DkproTestContext testContext = new DkproTestContext();
+}
@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * Copyright 2016
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.brat.message;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import de.tudarmstadt.ukp.clarin.webanno.brat.display.model.Argument;
+import de.tudarmstadt.ukp.clarin.webanno.brat.display.model.Comment;
+import de.tudarmstadt.ukp.clarin.webanno.brat.display.model.Entity;
+import de.tudarmstadt.ukp.clarin.webanno.brat.display.model.Offsets;
+import de.tudarmstadt.ukp.clarin.webanno.brat.display.model.Relation;
+import de.tudarmstadt.ukp.clarin.webanno.brat.display.model.VID;
+
+public class DocumentDeltaResponseTest
+{
+    @Test
+    public void thatUnchangedWindowProducesEmptyDelta()
+    {
+        DocumentDeltaResponse delta = DocumentDeltaResponse.diff(createWindow(), createWindow());
+
+        assertEquals(0, delta.getEntities().size());
+        assertEquals(0, delta.getRemovedEntities().size());
+        assertEquals(0, delta.getRelations().size());
+        assertEquals(0, delta.getRemovedRelations().size());
+        assertEquals(0, delta.getComments().size());
+        assertEquals(0, delta.getRemovedComments().size());
+    }
+
+    @Test
+    public void thatChangesAreDetected()
+    {
+        GetDocumentResponse current = createWindow();
+        // Changed label
+        current.getEntities().get(0).setLabelText("changed");
+        // Removed entity and the relation attached to it
+        current.getEntities().remove(1);
+        current.getRelations().clear();
+        // Added entity with a comment
+        current.addEntity(new Entity(4, "type", new Offsets(6, 9), "new", "red"));
+        current.addComments(new Comment(4, "AnnotatorNotes", "note"));
+
+        DocumentDeltaResponse delta = DocumentDeltaResponse.diff(createWindow(), current);
+
+        assertEquals(asList(new VID(1), new VID(4)), vids(delta.getEntities()));
+        assertEquals(asList(new VID(2)), delta.getRemovedEntities());
+        assertEquals(0, delta.getRelations().size());
+        assertEquals(asList(new VID(3)), delta.getRemovedRelations());
+        assertEquals(asList(new Comment(4, "AnnotatorNotes", "note")), delta.getComments());
+        assertEquals(0, delta.getRemovedComments().size());
+    }
+
+    @Test
+    public void thatDifferentWindowRequiresFullRender()
+    {
+        GetDocumentResponse current = createWindow();
+        current.setText("Other text");
+
+        assertNull(DocumentDeltaResponse.diff(createWindow(), current));
+    }
+
+    private static List<VID> vids(List<Entity> aEntities)
+    {
+        List<VID> vids = new ArrayList<>();
+        for (Entity entity : aEntities) {
+            vids.add(entity.getVid());
+        }
+        return vids;
+    }
+
+    private static GetDocumentResponse createWindow()
+    {
+        GetDocumentResponse response = new GetDocumentResponse();
+        response.setText("This is a test .");
+        response.addSentence(0, 16);
+        response.addToken(0, 4);
+        response.addToken(5, 7);
+        response.addToken(8, 9);
+        response.addToken(10, 14);
+        response.addToken(15, 16);
+        response.addEntity(new Entity(1, "type", new Offsets(0, 4), "label", "red"));
+        response.addEntity(new Entity(2, "type", new Offsets(10, 14), "label", "red"));
+        response.addRelation(new Relation(3, "rel",
+                asList(new Argument("Arg1", 1), new Argument("Arg2", 2)), "dep", "blue"));
+        return response;
+    }
+}
@@ -18,11 +18,11 @@
 package de.tudarmstadt.ukp.clarin.webanno.constraints.evaluator;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
-import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.uima.UIMAException;
@@ -37,11 +37,14 @@ import de.tudarmstadt.ukp.clarin.webanno.constraints.model.Condition;
 import de.tudarmstadt.ukp.clarin.webanno.constraints.model.ParsedConstraints;
 import de.tudarmstadt.ukp.clarin.webanno.constraints.model.Restriction;
 import de.tudarmstadt.ukp.clarin.webanno.constraints.model.Rule;
-import de.tudarmstadt.ukp.clarin.webanno.constraints.model.Scope;
 
 /**
  * Class for getting list of PossibleValues after evaluating context and applicable rules.
- * 
+ * <p>
+ * Only the rules restricting the requested feature are evaluated (see
+ * {@link ParsedConstraints#getRules(String, String)}). The values of the condition paths are
+ * memorized per context, so a generator should only be used while the CAS does not change, e.g.
+ * for rendering the feature editors of an annotation once.
  *
  */
 public class ValuesGenerator
@@ -49,8 +52,15 @@ public class ValuesGenerator
 {
     private final Log log = LogFactory.getLog(getClass());
     Map<String, String> imports = null;
-    private Scope scope;
-    private String shortTypeName;
+
+    // Values of the condition paths per context
+    private final Map<FeatureStructure, Map<String, List<String>>> valueCache = new HashMap<>();
+
+    // Features resolved by their base name per type
+    private final Map<Type, Map<String, Feature>> featureCache = new HashMap<>();
+
+    // Annotations found at the offsets of a context for an imported type, e.g. for "@Lemma"
+    private final Map<String, List<AnnotationFS>> selectAtCache = new HashMap<>();
 
     @Override
     public List<PossibleValue> generatePossibleValues(FeatureStructure aContext, String aFeature,
@@ -59,28 +69,8 @@ public class ValuesGenerator
     {
         imports = parsedConstraints.getImports();
         List<PossibleValue> possibleValues = new ArrayList<PossibleValue>();
-        //If there are no rules for the FS, don't execute further
-        //Enabling the second option might take too much time for rules to execute.
-//        if(!areThereRulesFor(aContext, parsedConstraints)){
-//        if(!isThisAffectedByConstraintRules(aContext, aFeature, parsedConstraints)){
-        if(!parsedConstraints.areThereRules(aContext.getType().getName(), aFeature)) {
-            return possibleValues;
-        }
-       
-//        String shortTypeName = parsedConstraints.getShortName(aContext.getType().getName());
-//        if (shortTypeName == null) {
-//            //If no relevant rules are there for a particular type, just return empty list
-//            log.error("No import for [" + aContext.getType().getName()
-//                    + "] - Imports are: [" + parsedConstraints.getImports() + "]");
-//            return possibleValues;
-////            throw new IllegalStateException("No import for [" + aContext.getType().getName()
-////                    + "] - Imports are: [" + parsedConstraints.getImports() + "]");
-//        }
-        shortTypeName = parsedConstraints.getShortName(aContext.getType().getName());
-        scope = parsedConstraints.getScopeByName(shortTypeName);
 
-      
-        for (Rule rule : scope.getRules()) {
+        for (Rule rule : parsedConstraints.getRules(aContext.getType().getName(), aFeature)) {
             // Check if conditions apply
             if (!ruleTriggers(aContext, rule)) {
                 continue;
@@ -118,86 +108,96 @@ public class ValuesGenerator
     private boolean conditionMatches(FeatureStructure aContext, Condition aCondition)
         throws UIMAException
     {
-        ArrayList<String> value = getValue(aContext, aCondition.getPath());
+        Map<String, List<String>> contextValues = valueCache.get(aContext);
+        if (contextValues == null) {
+            contextValues = new HashMap<>();
+            valueCache.put(aContext, contextValues);
+        }
+        List<String> value = contextValues.get(aCondition.getPath());
+        if (value == null) {
+            value = new ArrayList<>();
+            getValue(aContext, aCondition.getPathSteps(), 0, value);
+            contextValues.put(aCondition.getPath(), value);
+        }
         if (log.isTraceEnabled()) {
             log.trace("comparing [" + aCondition.getValue() + "] to [" + value + "]");
         }
         return aCondition.matches(value);
     }
 
-    private ArrayList<String> getValue(FeatureStructure aContext, String aPath)
+    /**
+     * Collect the values at the end of the path starting at the given step.
+     */
+    private void getValue(FeatureStructure aContext, String[] aSteps, int aStep,
+            List<String> aValues)
         throws UIMAException
     {
-        String head, tail;
-        if (aPath.contains(".")) {
-            head = aPath.substring(0, aPath.indexOf(".")); // Separate first part of path to be
-                                                           // processed.
-            tail = aPath.substring(aPath.indexOf(".") + 1); // The remaining part
-        }
-        else {
-            head = aPath;
-            tail = "";
-        }
-
-        List<String> values = new ArrayList<>();
+        String head = aStep < aSteps.length ? aSteps[aStep] : "";
+        boolean hasTail = aStep + 1 < aSteps.length;
 
         if (head.startsWith("@")) {
             String typename = imports.get(head.substring(1));
             Type type = aContext.getCAS().getTypeSystem().getType(typename);
             AnnotationFS ctxAnnFs = (AnnotationFS) aContext;
-            // List<String> values = new ArrayList<>();
-            for (AnnotationFS fs : selectAt(aContext.getCAS(), type, ctxAnnFs.getBegin(),
-                    ctxAnnFs.getEnd())) {
-                values.addAll(getValue(fs, tail));
-
+            String key = typename + "@" + ctxAnnFs.getBegin() + "-" + ctxAnnFs.getEnd();
+            List<AnnotationFS> annotations = selectAtCache.get(key);
+            if (annotations == null) {
+                annotations = selectAt(aContext.getCAS(), type, ctxAnnFs.getBegin(),
+                        ctxAnnFs.getEnd());
+                selectAtCache.put(key, annotations);
+            }
+            for (AnnotationFS fs : annotations) {
+                getValue(fs, aSteps, aStep + 1, aValues);
             }
-            return (ArrayList<String>) values;
         }
         else if (head.endsWith("()")) {
-            if (StringUtils.isNotEmpty(tail)) {
+            if (hasTail) {
                 throw new IllegalStateException("No additional steps possible after function");
             }
 
             if ("text()".equals(head)) {
                 if (aContext instanceof AnnotationFS) {
-                    values.add(((AnnotationFS) aContext).getCoveredText());
-                    return (ArrayList<String>) values;
+                    aValues.add(((AnnotationFS) aContext).getCoveredText());
                 }
                 else {
                     throw new IllegalStateException("Cannot use [text()] on non-annotations");
                 }
             }
             else {
-                throw new IllegalStateException("Unknown path function [" + aPath + "]");
+                throw new IllegalStateException("Unknown path function [" + head + "]");
             }
         }
-        else if (StringUtils.isNotEmpty(tail)) {
-
+        else if (hasTail) {
             /*
-             * Extracting feature and passing FeatureStructure based on that. Shortening the path
-             * variable by removing first element in the aPath separated by "." (dot)
+             * Extracting feature and passing FeatureStructure based on that. Continuing with the
+             * next element in the path.
              */
-            Feature feature = aContext.getType().getFeatureByBaseName(
-                    aPath.substring(0, aPath.indexOf(".")));
-            if (feature == null) {
-                throw new IllegalStateException("Feature [" + aPath + "] does not exist on type ["
-                        + aContext.getType().getName() + "]");
-            }
-            return getValue(aContext.getFeatureValue(feature),
-                    aPath.substring(aPath.indexOf(".") + 1));
-
-            // throw new UnsupportedOperationException("Error in rule");
+            Feature feature = getFeature(aContext.getType(), head);
+            getValue(aContext.getFeatureValue(feature), aSteps, aStep + 1, aValues);
         }
         else {
-            Feature feature = aContext.getType().getFeatureByBaseName(aPath);
+            Feature feature = getFeature(aContext.getType(), head);
+            aValues.add(aContext.getFeatureValueAsString(feature));
+        }
+    }
+
+    private Feature getFeature(Type aType, String aName)
+    {
+        Map<String, Feature> features = featureCache.get(aType);
+        if (features == null) {
+            features = new HashMap<>();
+            featureCache.put(aType, features);
+        }
+        Feature feature = features.get(aName);
+        if (feature == null) {
+            feature = aType.getFeatureByBaseName(aName);
             if (feature == null) {
-                throw new IllegalStateException("Feature [" + aPath + "] does not exist on type ["
-                        + aContext.getType().getName() + "]");
+                throw new IllegalStateException("Feature [" + aName + "] does not exist on type ["
+                        + aType.getName() + "]");
             }
-            values.add(aContext.getFeatureValueAsString(feature));
-            return (ArrayList<String>) values;
+            features.put(aName, feature);
         }
-
+        return feature;
     }
 
     public static List<AnnotationFS> selectAt(CAS aJcas, final Type type, int aBegin, int aEnd)
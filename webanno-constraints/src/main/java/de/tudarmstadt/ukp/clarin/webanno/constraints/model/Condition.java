@@ -19,7 +19,7 @@
 package de.tudarmstadt.ukp.clarin.webanno.constraints.model;
 
 import java.io.Serializable;
-import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Class containing object representation for Condition in a rule.
@@ -34,6 +34,7 @@ public class Condition
     private static final long serialVersionUID = 5229065580264733470L;
     private final String path;
     private final String value;
+    private transient String[] pathSteps;
 
     public Condition(String aPath, String aValue)
     {
@@ -46,6 +47,20 @@ public class Condition
         return path;
     }
 
+    /**
+     * @return the steps of the path, i.e. the path split at the dots. The path is only split once.
+     */
+    public String[] getPathSteps()
+    {
+        // Splitting the path twice in concurrent calls does no harm
+        String[] steps = pathSteps;
+        if (steps == null) {
+            steps = path.split("\\.");
+            pathSteps = steps;
+        }
+        return steps;
+    }
+
     public String getValue()
     {
         return value;
@@ -57,7 +72,7 @@ public class Condition
         return "Condition [[" + path + "] = [" + value + "]]";
     }
 
-    public boolean matches(ArrayList<String> listOfValues)
+    public boolean matches(List<String> listOfValues)
     {
         boolean doesItMatch = false;
         for (String input : listOfValues) {
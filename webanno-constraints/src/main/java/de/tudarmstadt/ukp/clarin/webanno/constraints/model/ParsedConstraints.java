@@ -18,12 +18,12 @@
 package de.tudarmstadt.ukp.clarin.webanno.constraints.model;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Set;
 
 /***
  * Serialized Class containing objects after parsing and creating objects based on rules file
@@ -41,8 +41,11 @@ public class ParsedConstraints
     private final Map<String, String> imports;
     private final List<Scope> scopes;
     private Map<String, Scope> scopeMap = null;
-    //Contains possible scenarios for which rules are available.
-    private Set<FSFPair> rulesSet = null;
+    // Maps the full type names to the short names declared by the imports.
+    private transient Map<String, String> shortNames = null;
+    // Rules for which there are restrictions affecting a feature, in the order they were declared
+    // in the scope.
+    private transient Map<FSFPair, List<Rule>> rulesIndex = null;
 
     /**
      * @param imports
@@ -80,12 +83,21 @@ public class ParsedConstraints
 
     public String getShortName(String aLongName)
     {
-        for (Entry<String, String> e : imports.entrySet()) {
-            if (e.getValue().equals(aLongName)) {
-                return e.getKey();
+        return getShortNames().get(aLongName);
+    }
+
+    private synchronized Map<String, String> getShortNames()
+    {
+        if (shortNames == null) {
+            shortNames = new HashMap<String, String>();
+            for (Entry<String, String> e : imports.entrySet()) {
+                // Like a linear scan over the imports, the first import of a type wins
+                if (!shortNames.containsKey(e.getValue())) {
+                    shortNames.put(e.getValue(), e.getKey());
+                }
             }
         }
-        return null;
+        return shortNames;
     }
 
     public List<Scope> getScopes()
@@ -93,7 +105,7 @@ public class ParsedConstraints
         return scopes;
     }
 
-    public Scope getScopeByName(String scopeName)
+    public synchronized Scope getScopeByName(String scopeName)
     {
 
         if (scopeMap == null) { // initialize map if not set already
@@ -107,41 +119,56 @@ public class ParsedConstraints
     
     //Checks if rules exists or not
     public boolean areThereRules(String featureStructure, String feature){
-        if(rulesSet==null){
-            buildRulesSet();
-        }
-        
-        if(getShortName(featureStructure)==null){
-            return false;
-        }
-        if(getScopeByName(getShortName(featureStructure))==null){
-            return false;
+        return !getRules(featureStructure, feature).isEmpty();
+    }
+
+    /**
+     * Get the rules of the scope of the given type which have a restriction on the given
+     * feature. Only these rules can contribute possible values for the feature.
+     * 
+     * @param aTypeName
+     *            the full name of the type.
+     * @param aFeature
+     *            the affected feature.
+     * @return the rules in the order in which they were declared.
+     */
+    public List<Rule> getRules(String aTypeName, String aFeature)
+    {
+        String shortName = getShortName(aTypeName);
+        if (shortName == null) {
+            return Collections.emptyList();
         }
-        FSFPair _tempFsfPair = new FSFPair(getShortName(featureStructure), feature);
-        if(rulesSet.contains(_tempFsfPair)){
-            //If it has rules satisfying with proper input FS and affecting feature
-            return true;
+        List<Rule> rules = getRulesIndex().get(new FSFPair(shortName, aFeature));
+        if (rules == null) {
+            return Collections.emptyList();
         }
-        return false;
+        return rules;
     }
-/**
- * Fill Set with values of different conditions for which rules are available.
- */
-    private void buildRulesSet()
+
+    /**
+     * Index the rules by scope and by the features affected by their restrictions.
+     */
+    private synchronized Map<FSFPair, List<Rule>> getRulesIndex()
     {
-        rulesSet = new HashSet<>();
-        FSFPair _temp;
-        for (Scope scope : scopes) {
-            for (Rule rule : scope.getRules()) {
-                for (Restriction restriction : rule.getRestrictions()) {
-                    _temp = new FSFPair(scope.getScopeName(), restriction.getPath());
-                    if (!rulesSet.contains(_temp)) {
-                        rulesSet.add(_temp);
+        if (rulesIndex == null) {
+            rulesIndex = new HashMap<>();
+            for (Scope scope : scopes) {
+                for (Rule rule : scope.getRules()) {
+                    for (Restriction restriction : rule.getRestrictions()) {
+                        FSFPair key = new FSFPair(scope.getScopeName(), restriction.getPath());
+                        List<Rule> rules = rulesIndex.get(key);
+                        if (rules == null) {
+                            rules = new ArrayList<>();
+                            rulesIndex.put(key, rules);
+                        }
+                        // A rule may restrict the same feature more than once
+                        if (rules.isEmpty() || rules.get(rules.size() - 1) != rule) {
+                            rules.add(rule);
+                        }
                     }
                 }
             }
         }
-        
+        return rulesIndex;
     }
-
 }
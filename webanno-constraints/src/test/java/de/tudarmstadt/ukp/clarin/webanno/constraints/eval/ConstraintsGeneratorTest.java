@@ -84,6 +84,34 @@ public class ConstraintsGeneratorTest
         assertEquals(expectedOutput, possibleValues);
     }
 
+    @Test
+    public void testGeneratorReusedForSeveralContexts()
+        throws Exception
+    {
+        ConstraintsGrammar parser = new ConstraintsGrammar(new FileInputStream(
+                "src/test/resources/rules/multipleRules.rules"));
+        Parse p = parser.Parse();
+
+        ParsedConstraints constraints = p.accept(new ParserVisitor());
+
+        JCas jcas = JCasFactory.createJCas();
+        jcas.setDocumentText("is was");
+
+        Lemma is = new Lemma(jcas, 0, 2);
+        is.addToIndexes();
+        Lemma was = new Lemma(jcas, 3, 6);
+        was.addToIndexes();
+
+        Evaluator constraintsEvaluator = new ValuesGenerator();
+
+        assertEquals(asList(new PossibleValue("be", true)),
+                constraintsEvaluator.generatePossibleValues(is, "value", constraints));
+        assertEquals(asList(new PossibleValue("be", false), new PossibleValue("was", false)),
+                constraintsEvaluator.generatePossibleValues(was, "value", constraints));
+        assertEquals(0, constraintsEvaluator.generatePossibleValues(was, "unrestricted",
+                constraints).size());
+    }
+
     @Test
     public void testSimplePath()
         throws Exception
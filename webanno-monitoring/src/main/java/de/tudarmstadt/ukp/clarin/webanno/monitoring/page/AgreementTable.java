@@ -205,13 +205,13 @@ public class AgreementTable
                             StringBuilder tooltipContent = new StringBuilder();
                             if (result.isExcludeIncomplete()) {
                                 tooltipContent.append(String.format("- Incomplete (missing): %d%n",
-                                        result.getIncompleteSetsByPosition().size()));
+                                        result.getIncompleteSetByPositionCount()));
                                 tooltipContent.append(String.format(
                                         "- Incomplete (not labeled): %d%n", result
-                                                .getIncompleteSetsByLabel().size()));
+                                                .getIncompleteSetByLabelCount()));
                             }
                             tooltipContent.append(String.format("- Plurality: %d", result
-                                    .getPluralitySets().size()));
+                                    .getPluralitySetCount()));
                             
                             Label l = new Label("label", Model.of(label)); 
                             DescriptionTooltipBehavior tooltip = new DescriptionTooltipBehavior(
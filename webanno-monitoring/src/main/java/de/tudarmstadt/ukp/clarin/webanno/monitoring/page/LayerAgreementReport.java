@@ -0,0 +1,175 @@
+/*******************************************************************************
+ * Copyright 2016
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.monitoring.page;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.lang.exception.ExceptionUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.AgreementService;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.AgreementService.ProgressListener;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.AgreementUtils;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.AgreementUtils.AgreementResult;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.AgreementUtils.ConcreteAgreementMeasure;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.LinkCompareBehavior;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.PairwiseAnnotationResult;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationFeature;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationLayer;
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+
+/**
+ * Calculates the agreement on all features of a layer and renders it as a CSV report. The report
+ * is meant to be run in the background via {@link AgreementService#submit(Runnable)}. The report starts with a summary of the agreement per feature and pair of users,
+ * followed by the items of each study as produced by
+ * {@link AgreementUtils#toCSV(CSVPrinter, AgreementResult)}.
+ */
+public class LayerAgreementReport
+    implements Runnable, Serializable
+{
+    private static final long serialVersionUID = 2587340924165727303L;
+
+    private static final Log LOG = LogFactory.getLog(LayerAgreementReport.class);
+
+    private final AgreementService agreementService;
+    private final Project project;
+    private final AnnotationLayer layer;
+    private final ConcreteAgreementMeasure measure;
+    private final LinkCompareBehavior linkCompareBehavior;
+    private final boolean excludeIncomplete;
+
+    private volatile int progress = 0;
+    private volatile byte[] report;
+    private volatile String error;
+
+    public LayerAgreementReport(AgreementService aAgreementService, Project aProject,
+            AnnotationLayer aLayer, ConcreteAgreementMeasure aMeasure,
+            LinkCompareBehavior aLinkCompareBehavior, boolean aExcludeIncomplete)
+    {
+        agreementService = aAgreementService;
+        project = aProject;
+        layer = aLayer;
+        measure = aMeasure;
+        linkCompareBehavior = aLinkCompareBehavior;
+        excludeIncomplete = aExcludeIncomplete;
+    }
+
+    @Override
+    public void run()
+    {
+        try {
+            Map<AnnotationFeature, PairwiseAnnotationResult> results = agreementService
+                    .getLayerAgreement(project, layer, measure, linkCompareBehavior,
+                            excludeIncomplete, new ProgressListener()
+                            {
+                                @Override
+                                public void progress(int aDocumentsDone, int aDocumentCount)
+                                {
+                                    // Leave the last percent for rendering the report
+                                    progress = Math.min(99, aDocumentsDone * 100 / aDocumentCount);
+                                }
+                            });
+            report = toCsv(results);
+        }
+        catch (Exception e) {
+            LOG.error("Unable to calculate agreement for layer [" + layer.getName() + "]", e);
+            error = ExceptionUtils.getRootCauseMessage(e);
+        }
+        finally {
+            progress = 100;
+        }
+    }
+
+    private byte[] toCsv(Map<AnnotationFeature, PairwiseAnnotationResult> aResults)
+        throws IOException
+    {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        try (CSVPrinter printer = new CSVPrinter(new OutputStreamWriter(buf, "UTF-8"),
+                CSVFormat.RFC4180)) {
+            printer.printRecord("Feature", "Annotator 1", "Annotator 2", "Agreement",
+                    "Complete", "Relevant");
+            for (AnnotationFeature feature : aResults.keySet()) {
+                for (AgreementResult result : listStudies(aResults.get(feature))) {
+                    printer.printRecord(feature.getName(), result.getCasGroupIds().get(0),
+                            result.getCasGroupIds().get(1), result.getAgreement(),
+                            result.getCompleteSetCount(), result.getRelevantSetCount());
+                }
+            }
+
+            for (AnnotationFeature feature : aResults.keySet()) {
+                for (AgreementResult result : listStudies(aResults.get(feature))) {
+                    printer.println();
+                    AgreementUtils.toCSV(printer, result);
+                }
+            }
+        }
+        return buf.toByteArray();
+    }
+
+    private static List<AgreementResult> listStudies(PairwiseAnnotationResult aResult)
+    {
+        List<String> raters = new ArrayList<>(aResult.getRaters());
+        List<AgreementResult> studies = new ArrayList<>();
+        for (int m = 0; m < raters.size(); m++) {
+            for (int n = m + 1; n < raters.size(); n++) {
+                studies.add(aResult.getStudy(raters.get(m), raters.get(n)));
+            }
+        }
+        return studies;
+    }
+
+    public AnnotationLayer getLayer()
+    {
+        return layer;
+    }
+
+    public int getProgress()
+    {
+        return progress;
+    }
+
+    public boolean isFinished()
+    {
+        return progress == 100;
+    }
+
+    /**
+     * @return the report or {@code null} if the calculation has not finished or has failed.
+     */
+    public byte[] getReport()
+    {
+        return report;
+    }
+
+    /**
+     * @return the error message if the calculation has failed.
+     */
+    public String getError()
+    {
+        return error;
+    }
+}
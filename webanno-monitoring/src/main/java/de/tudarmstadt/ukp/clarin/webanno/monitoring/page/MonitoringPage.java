@@ -27,7 +27,9 @@ import static de.tudarmstadt.ukp.clarin.webanno.model.SourceDocumentStateTransit
 import static java.util.Arrays.asList;
 
 import java.awt.Color;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
 import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
@@ -43,12 +45,12 @@ import org.apache.commons.lang.exception.ExceptionUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.uima.UIMAException;
-import org.apache.uima.jcas.JCas;
 import org.apache.wicket.AttributeModifier;
 import org.apache.wicket.Component;
 import org.apache.wicket.ajax.AjaxEventBehavior;
 import org.apache.wicket.ajax.AjaxRequestTarget;
 import org.apache.wicket.ajax.form.OnChangeAjaxBehavior;
+import org.apache.wicket.ajax.markup.html.AjaxLink;
 import org.apache.wicket.behavior.AttributeAppender;
 import org.apache.wicket.extensions.markup.html.repeater.data.grid.DataGridView;
 import org.apache.wicket.extensions.markup.html.repeater.data.grid.ICellPopulator;
@@ -62,8 +64,6 @@ import org.apache.wicket.markup.html.form.DropDownChoice;
 import org.apache.wicket.markup.html.form.EnumChoiceRenderer;
 import org.apache.wicket.markup.html.form.Form;
 import org.apache.wicket.markup.html.form.ListChoice;
-import org.apache.wicket.markup.html.image.Image;
-import org.apache.wicket.markup.html.image.NonCachingImage;
 import org.apache.wicket.markup.html.panel.EmptyPanel;
 import org.apache.wicket.markup.html.panel.FeedbackPanel;
 import org.apache.wicket.markup.html.panel.Panel;
@@ -76,6 +76,9 @@ import org.apache.wicket.model.Model;
 import org.apache.wicket.request.resource.PackageResourceReference;
 import org.apache.wicket.request.resource.ResourceReference;
 import org.apache.wicket.spring.injection.annot.SpringBean;
+import org.apache.wicket.util.resource.AbstractResourceStream;
+import org.apache.wicket.util.resource.IResourceStream;
+import org.apache.wicket.util.resource.ResourceStreamNotFoundException;
 import org.jfree.chart.ChartFactory;
 import org.jfree.chart.JFreeChart;
 import org.jfree.chart.axis.NumberAxis;
@@ -91,6 +94,9 @@ import org.jfree.util.UnitType;
 import org.springframework.dao.DataRetrievalFailureException;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.wicketstuff.annotation.mount.MountPath;
+import org.wicketstuff.progressbar.ProgressBar;
+import org.wicketstuff.progressbar.Progression;
+import org.wicketstuff.progressbar.ProgressionModel;
 
 import de.tudarmstadt.ukp.clarin.webanno.api.AnnotationService;
 import de.tudarmstadt.ukp.clarin.webanno.api.RepositoryService;
@@ -98,12 +104,9 @@ import de.tudarmstadt.ukp.clarin.webanno.api.UserDao;
 import de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst;
 import de.tudarmstadt.ukp.clarin.webanno.api.dao.SecurityUtil;
 import de.tudarmstadt.ukp.clarin.webanno.automation.AutomationService;
-import de.tudarmstadt.ukp.clarin.webanno.brat.curation.AgreementUtils;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.AgreementService;
 import de.tudarmstadt.ukp.clarin.webanno.brat.curation.AgreementUtils.AgreementReportExportFormat;
 import de.tudarmstadt.ukp.clarin.webanno.brat.curation.AgreementUtils.ConcreteAgreementMeasure;
-import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2;
-import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.DiffAdapter;
-import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.DiffResult;
 import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.LinkCompareBehavior;
 import de.tudarmstadt.ukp.clarin.webanno.brat.curation.PairwiseAnnotationResult;
 import de.tudarmstadt.ukp.clarin.webanno.brat.curation.component.CurationPanel;
@@ -120,12 +123,13 @@ import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
 import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocumentState;
 import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocumentStateTransition;
 import de.tudarmstadt.ukp.clarin.webanno.model.User;
+import de.tudarmstadt.ukp.clarin.webanno.monitoring.support.ChartImage;
 import de.tudarmstadt.ukp.clarin.webanno.monitoring.support.ChartImageResource;
 import de.tudarmstadt.ukp.clarin.webanno.monitoring.support.EmbeddableImage;
 import de.tudarmstadt.ukp.clarin.webanno.monitoring.support.TableDataProvider;
+import de.tudarmstadt.ukp.clarin.webanno.support.AJAXDownload;
 import de.tudarmstadt.ukp.clarin.webanno.support.EntityModel;
 import de.tudarmstadt.ukp.clarin.webanno.webapp.home.page.ApplicationPageBase;
-import de.tudarmstadt.ukp.dkpro.core.api.metadata.type.DocumentMetaData;
 import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
 
 /**
@@ -169,12 +173,15 @@ public class MonitoringPage
 
     @SpringBean(name = "userRepository")
     private UserDao userRepository;
+
+    @SpringBean(name = "agreementService")
+    private AgreementService agreementService;
     
     private final ProjectSelectionForm projectSelectionForm;
     private final MonitoringDetailForm monitoringDetailForm;
-    private final Image annotatorsProgressImage;
-    private final Image annotatorsProgressPercentageImage;
-    private final Image overallProjectProgressImage;
+    private final ChartImage annotatorsProgressImage;
+    private final ChartImage annotatorsProgressPercentageImage;
+    private final ChartImage overallProjectProgressImage;
     private  TrainingResultForm trainingResultForm;
 
     private Label overview;
@@ -230,17 +237,17 @@ public class MonitoringPage
         trainingResultForm.setVisible(false);
         add(trainingResultForm);
 
-        annotatorsProgressImage = new NonCachingImage("annotator");
+        annotatorsProgressImage = new ChartImage("annotator");
         annotatorsProgressImage.setOutputMarkupPlaceholderTag(true);
         annotatorsProgressImage.setVisible(false);
 
-        annotatorsProgressPercentageImage = new NonCachingImage("annotatorPercentage");
+        annotatorsProgressPercentageImage = new ChartImage("annotatorPercentage");
         annotatorsProgressPercentageImage.setOutputMarkupPlaceholderTag(true);
         annotatorsProgressPercentageImage.setVisible(false);
 
-        overallProjectProgressImage = new NonCachingImage("overallProjectProgressImage");
+        overallProjectProgressImage = new ChartImage("overallProjectProgressImage");
         final Map<String, Integer> overallProjectProgress = getOverallProjectProgress();
-        overallProjectProgressImage.setImageResource(createProgressChart(overallProjectProgress,
+        overallProjectProgressImage.setChart(createProgressChart(overallProjectProgress,
                 100, true));
         overallProjectProgressImage.setOutputMarkupPlaceholderTag(true);
         overallProjectProgressImage.setVisible(true);
@@ -379,9 +386,8 @@ public class MonitoringPage
                     projectSelectionModel.totalDocuments = sourceDocuments.size();
                     ProjectSelectionForm.this.setVisible(true);
 
-                    // Clear the cached CASes. When we switch to another project, we'll have to
-                    // reload them.
-                    updateAgreementTable(null, true);
+                    // When we switch to another project, we'll have to recalculate the agreement.
+                    updateAgreementTable(null);
 
                     // Annotator's Progress
                     if (projectSelectionModel.project != null) {
@@ -394,12 +400,12 @@ public class MonitoringPage
                     overallProjectProgressImage.setVisible(false);
                     overview.setVisible(false);
 
-                    annotatorsProgressImage.setImageResource(createProgressChart(
+                    annotatorsProgressImage.setChart(createProgressChart(
                             projectSelectionModel.annotatorsProgress,
                             projectSelectionModel.totalDocuments, false));
                     annotatorsProgressImage.setVisible(true);
 
-                    annotatorsProgressPercentageImage.setImageResource(createProgressChart(
+                    annotatorsProgressPercentageImage.setChart(createProgressChart(
                             projectSelectionModel.annotatorsProgressInPercent, 100, true));
                     annotatorsProgressPercentageImage.setVisible(true);
 
@@ -621,6 +627,14 @@ public class MonitoringPage
         private DropDownChoice<AgreementReportExportFormat> exportFormat;
 
         private CheckBox excludeIncomplete;
+
+        private AjaxLink<Void> layerReportLink;
+
+        private ProgressBar layerReportProgress;
+
+        private AJAXDownload layerReportDownload;
+
+        private LayerAgreementReport layerReport;
         
         public AgreementForm(String id)
         {
@@ -669,6 +683,94 @@ public class MonitoringPage
                 }
             });
             
+            // The report on all features of a layer is calculated in a background thread, because
+            // it may take a while on large projects.
+            layerReportDownload = new AJAXDownload()
+            {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected IResourceStream getResourceStream()
+                {
+                    return new AbstractResourceStream()
+                    {
+                        private static final long serialVersionUID = 1L;
+
+                        @Override
+                        public InputStream getInputStream()
+                            throws ResourceStreamNotFoundException
+                        {
+                            return new ByteArrayInputStream(layerReport.getReport());
+                        }
+
+                        @Override
+                        public void close()
+                            throws IOException
+                        {
+                            // Nothing to do
+                        }
+                    };
+                }
+            };
+
+            layerReportProgress = new ProgressBar("layerReportProgress", new ProgressionModel()
+            {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected Progression getProgression()
+                {
+                    return new Progression(layerReport != null ? layerReport.getProgress() : 0);
+                }
+            })
+            {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void onFinished(AjaxRequestTarget aTarget)
+                {
+                    if (layerReport.getReport() != null) {
+                        layerReportDownload.initiate(aTarget, "agreement-"
+                                + layerReport.getLayer().getUiName().replaceAll("[^\\w-]", "_")
+                                + AgreementReportExportFormat.CSV.getExtension());
+                    }
+                    else {
+                        error("Unable to calculate agreement: " + layerReport.getError());
+                        aTarget.addChildren(getPage(), FeedbackPanel.class);
+                    }
+                    aTarget.add(layerReportLink);
+                }
+            };
+            layerReportProgress.add(layerReportDownload);
+            add(layerReportProgress);
+
+            add(layerReportLink = new AjaxLink<Void>("layerReport")
+            {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void onConfigure()
+                {
+                    super.onConfigure();
+                    setEnabled(featureList.getModelObject() != null
+                            && (layerReport == null || layerReport.isFinished()));
+                }
+
+                @Override
+                public void onClick(AjaxRequestTarget aTarget)
+                {
+                    AgreementFormModel pref = AgreementForm.this.getModelObject();
+                    layerReport = new LayerAgreementReport(agreementService,
+                            projectSelectionForm.getModelObject().project,
+                            featureList.getModelObject().getLayer(), pref.measure,
+                            pref.linkCompareBehavior, pref.excludeIncomplete);
+                    agreementService.submit(layerReport);
+                    layerReportProgress.start(aTarget);
+                    aTarget.add(this);
+                }
+            });
+            layerReportLink.setOutputMarkupId(true);
+
             add(excludeIncomplete = new CheckBox("excludeIncomplete") {
                 private static final long serialVersionUID = 1L;
                 
@@ -746,20 +848,25 @@ public class MonitoringPage
                         return null;
                     }
                     
-                    Map<String, List<JCas>> casMap = getJCases();
-                    
                     Project project = projectSelectionForm.getModelObject().project;
-                    List<DiffAdapter> adapters = CasDiff2.getAdapters(annotationService,
-                            project);
-
                     AgreementFormModel pref = AgreementForm.this.getModelObject();
-                    
-                    DiffResult diff = CasDiff2.doDiff(asList(feature.getLayer().getName()),
-                            adapters, pref.linkCompareBehavior, casMap);
-                    return AgreementUtils.getPairwiseAgreement(
-                            AgreementForm.this.getModelObject().measure,
-                            pref.excludeIncomplete, diff, feature.getLayer().getName(),
-                            feature.getName(), casMap);
+
+                    // The documents are processed one at a time, so only the CASes of a single
+                    // document are loaded at any time.
+                    try {
+                        return agreementService.getPairwiseAgreement(project, feature,
+                                pref.measure, pref.linkCompareBehavior, pref.excludeIncomplete);
+                    }
+                    catch (DataRetrievalFailureException e) {
+                        error(e.getCause().getMessage());
+                    }
+                    catch (UIMAException e) {
+                        error(ExceptionUtils.getRootCause(e));
+                    }
+                    catch (IOException e) {
+                        error(ExceptionUtils.getRootCause(e));
+                    }
+                    return null;
                 }
             }));
         }
@@ -781,7 +888,7 @@ public class MonitoringPage
                 @Override
                 protected void onUpdate(AjaxRequestTarget aTarget)
                 {
-                    updateAgreementTable(aTarget, false);
+                    updateAgreementTable(aTarget);
 //                    // Adding this as well because when choosing a different measure, it may affect
 //                    // the ability to exclude incomplete configurations.
 //                    aTarget.add(excludeIncomplete);
@@ -1056,94 +1163,9 @@ public class MonitoringPage
 
     }
 
-    // The CASes cannot be serialized, so we make them transient here. However, it does not matter
-    // as we do not access the field directly but via getJCases() which will re-load them if
-    // necessary, e.g. if the transient field is empty after a session is restored from a 
-    // persisted state.
-    private transient Map<String, List<JCas>> cachedCASes;
-
-    /**
-     * Get the finished CASes used to compute agreement.
-     */
-    private Map<String, List<JCas>> getJCases()
-    {
-        // Avoid reloading the CASes when switching features. 
-        if (cachedCASes != null) {
-            return cachedCASes;
-        }
-        
-        Project project = projectSelectionForm.getModelObject().project;
-        
-        List<User> users = repository
-                .listProjectUsersWithPermissions(project, PermissionLevel.USER);
-        
-        List<SourceDocument> sourceDocuments = repository.listSourceDocuments(project);
-        
-        // Filter training documents out from the source documents. Training documents are not
-        // being annotated
-        // FIXME actually, listSourceDocuments() shouldn return training documents in the first 
-        // place. Cf. https://github.com/webanno/webanno/issues/23
-        List<SourceDocument> trainingDoc = new ArrayList<SourceDocument>();
-        for (SourceDocument sdc : sourceDocuments) {
-            if (sdc.isTrainingDocument()) {
-                trainingDoc.add(sdc);
-            }
-        }
-        sourceDocuments.removeAll(trainingDoc);
-        
-        cachedCASes = new LinkedHashMap<>();
-        for (User user : users) {
-            List<JCas> cases = new ArrayList<>();
-            
-            for (SourceDocument document : sourceDocuments) {
-                JCas jCas = null;
-                
-                // Load the CAS if there is a finished one.
-                if (repository.existsAnnotationDocument(document, user)) {
-                    AnnotationDocument annotationDocument = repository.getAnnotationDocument(
-                            document, user);
-                    if (annotationDocument.getState().equals(AnnotationDocumentState.FINISHED)) {
-                        try {
-                            jCas = repository.readAnnotationCas(annotationDocument);
-                            repository.upgradeCas(jCas.getCas(), annotationDocument);
-                            // REC: I think there is no need to write the CASes here. We would not
-                            // want to interfere with currently active annotator users
-                            
-                            // Set the CAS name in the DocumentMetaData so that we can pick it
-                            // up in the Diff position for the purpose of debugging / transparency.
-                            DocumentMetaData documentMetadata = DocumentMetaData.get(jCas);
-                            documentMetadata.setDocumentId(annotationDocument.getDocument().getName());
-                            documentMetadata.setCollectionId(annotationDocument.getProject().getName());
-                        }
-                        catch (DataRetrievalFailureException e) {
-                            error(e.getCause().getMessage());
-                        }
-                        catch (UIMAException e) {
-                            error(ExceptionUtils.getRootCause(e));
-                        }
-                        catch (IOException e) {
-                            error(ExceptionUtils.getRootCause(e));
-                        }
-                    }
-                }
-                
-                // The next line can enter null values into the list if a user didn't work on this
-                // source document yet.
-                cases.add(jCas);
-            }
-
-            cachedCASes.put(user.getUsername(), cases);
-        }
-        
-        return cachedCASes;
-    }
-
-    private void updateAgreementTable(AjaxRequestTarget aTarget, boolean aClearCache)
+    private void updateAgreementTable(AjaxRequestTarget aTarget)
     {
         try {
-            if (aClearCache) {
-                cachedCASes = null;
-            }
             agreementForm.agreementTable2.getDefaultModel().detach();
             if (aTarget != null) {
                 aTarget.add(agreementForm.agreementTable2);
@@ -1157,8 +1179,29 @@ public class MonitoringPage
         }
     }
     
-    private ChartImageResource createProgressChart(Map<String, Integer> chartValues, int aMaxValue,
-            boolean aIsPercentage)
+    private ChartImageResource createProgressChart(Map<String, Integer> aChartValues,
+            final int aMaxValue, final boolean aIsPercentage)
+    {
+        // The chart is built from a copy, since the values may change before it is rendered
+        final Map<String, Integer> chartValues = new LinkedHashMap<String, Integer>(aChartValues);
+
+        // The rendered chart is cached by its data, so it is only built and rendered again if the
+        // data changes
+        String key = (aIsPercentage ? "%" : "#") + aMaxValue + chartValues;
+        return new ChartImageResource(key, CHART_WIDTH, 30 + (chartValues.size() * 18))
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected JFreeChart createChart()
+            {
+                return buildProgressChart(chartValues, aMaxValue, aIsPercentage);
+            }
+        };
+    }
+
+    private static JFreeChart buildProgressChart(Map<String, Integer> chartValues,
+            int aMaxValue, boolean aIsPercentage)
     {
         // fill dataset
         DefaultCategoryDataset dataset = new DefaultCategoryDataset();
@@ -1195,7 +1238,7 @@ public class MonitoringPage
         renderer.setSeriesPaint(0, Color.BLUE);
         chart.getCategoryPlot().setRenderer(renderer);
 
-        return new ChartImageResource(chart, CHART_WIDTH, 30 + (chartValues.size() * 18));
+        return chart;
     }
     
     /**
@@ -1313,7 +1356,7 @@ public class MonitoringPage
                             aTarget.appendJavaScript("alert('the state can only be changed explicitly by the curator')");
                         }
 
-                        updateAgreementTable(aTarget, true);
+                        updateAgreementTable(aTarget);
                         
                         aTarget.add(aCellItem);
                         updateStats(aTarget, projectSelectionForm.getModelObject());
@@ -1426,7 +1469,7 @@ public class MonitoringPage
 
                         }
                         
-                        updateAgreementTable(aTarget, true);
+                        updateAgreementTable(aTarget);
                         
                         aTarget.add(aCellItem);
                         updateStats(aTarget, projectSelectionForm.getModelObject());
@@ -1439,13 +1482,13 @@ public class MonitoringPage
         {
             aModel.annotatorsProgress.clear();
             aModel.annotatorsProgress.putAll(getFinishedDocumentsPerUser(project));
-            annotatorsProgressImage.setImageResource(createProgressChart(aModel.annotatorsProgress,
+            annotatorsProgressImage.setChart(createProgressChart(aModel.annotatorsProgress,
                     aModel.totalDocuments, false));
             aTarget.add(annotatorsProgressImage.setOutputMarkupId(true));
 
             aModel.annotatorsProgressInPercent.clear();
             aModel.annotatorsProgressInPercent.putAll(getPercentageOfFinishedDocumentsPerUser(project));
-            annotatorsProgressPercentageImage.setImageResource(createProgressChart(
+            annotatorsProgressPercentageImage.setChart(createProgressChart(
                     aModel.annotatorsProgressInPercent, 100, true));
             aTarget.add(annotatorsProgressPercentageImage.setOutputMarkupId(true));
 
@@ -1505,6 +1548,7 @@ public class MonitoringPage
             catch (IOException e) {
                 LOG.info("Unable to get the LOG file");
             }
+            agreementService.documentStateChanged(aSourceDocument);
 
         }
 
@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * Copyright 2016
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.monitoring.support;
+
+import org.apache.wicket.markup.ComponentTag;
+import org.apache.wicket.markup.html.image.Image;
+
+/**
+ * An {@link Image} showing a {@link ChartImageResource}. Instead of a random anti-cache parameter,
+ * the URL of the image contains the ETag of the chart. Thus, browsers can reuse the chart as long
+ * as the data does not change, while a changed chart is always fetched again.
+ */
+public class ChartImage
+    extends Image
+{
+    private static final long serialVersionUID = -2400520826208373036L;
+
+    private ChartImageResource chart;
+
+    public ChartImage(String aId)
+    {
+        super(aId);
+    }
+
+    public void setChart(ChartImageResource aChart)
+    {
+        chart = aChart;
+        setImageResource(aChart);
+    }
+
+    @Override
+    protected boolean shouldAddAntiCacheParameter()
+    {
+        return false;
+    }
+
+    @Override
+    protected void onComponentTag(ComponentTag aTag)
+    {
+        super.onComponentTag(aTag);
+
+        if (chart != null) {
+            String src = aTag.getAttribute("src");
+            if (src != null) {
+                aTag.put("src", src + (src.contains("?") ? "&" : "?") + "chart="
+                        + chart.getETag().replace("\"", ""));
+            }
+        }
+    }
+}
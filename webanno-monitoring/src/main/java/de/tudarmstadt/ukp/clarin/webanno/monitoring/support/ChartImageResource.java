@@ -19,43 +19,138 @@ package de.tudarmstadt.ukp.clarin.webanno.monitoring.support;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
 
+import org.apache.wicket.request.http.WebRequest;
 import org.apache.wicket.request.resource.DynamicImageResource;
+import org.apache.wicket.util.time.Time;
 import org.jfree.chart.ChartUtilities;
 import org.jfree.chart.JFreeChart;
 
 /**
  * A base class for the dynamically generated chart Images for percenatage and number of document
  * finished charts.
- *
- *
+ * <p>
+ * The rendered PNG is cached by the key of the chart data, so it is only rendered again when the
+ * data changes. The chart itself is only created if it is not in the cache. The key is also sent
+ * as ETag together with the time of rendering as Last-Modified, so browsers can revalidate their
+ * copy of the chart.
  */
-public class ChartImageResource
+public abstract class ChartImageResource
     extends DynamicImageResource
 {
     private static final long serialVersionUID = 1L;
-    private JFreeChart chart;
+
+    private static final int CACHE_SIZE = 100;
+
+    private static final Map<String, RenderedChart> CACHE = Collections
+            .synchronizedMap(new LinkedHashMap<String, RenderedChart>(16, 0.75f, true)
+            {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, RenderedChart> aEldest)
+                {
+                    return size() > CACHE_SIZE;
+                }
+            });
+
     private int width;
     private int height;
+    private String key;
+    private String etag;
 
-    public ChartImageResource(JFreeChart aChart, int aWidth, int aHeight)
+    /**
+     * @param aKey
+     *            a key uniquely identifying the data shown in the chart.
+     */
+    public ChartImageResource(String aKey, int aWidth, int aHeight)
     {
-        chart = aChart;
         width = aWidth;
         height = aHeight;
+        key = aKey + "|" + aWidth + "x" + aHeight;
+        etag = "\"" + UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)) + "\"";
+    }
+
+    public String getETag()
+    {
+        return etag;
     }
 
+    /**
+     * Create the chart. This is only called if the chart is not in the cache.
+     */
+    protected abstract JFreeChart createChart();
+
     @Override
-    protected byte[] getImageData(Attributes aAttributes)
+    protected ResourceResponse newResourceResponse(Attributes aAttributes)
     {
-        try {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            ChartUtilities.writeChartAsPNG(bos, chart, width, height);
-            return bos.toByteArray();
+        // Render only once per request - the image data is taken from here instead of asking
+        // getImageData(), which would render again if rendering failed
+        final RenderedChart rendered = render();
+        setLastModifiedTime(rendered.lastModified);
+
+        ResourceResponse response = new ResourceResponse();
+        response.setLastModified(rendered.lastModified);
+        response.getHeaders().addHeader("ETag", etag);
+
+        String ifNoneMatch = ((WebRequest) aAttributes.getRequest()).getHeader("If-None-Match");
+        if (etag.equals(ifNoneMatch)) {
+            response.setStatusCode(304);
         }
-        catch (IOException e) {
-            return new byte[0];
+        else if (response.dataNeedsToBeWritten(aAttributes)) {
+            response.setContentType("image/" + getFormat());
+            response.setWriteCallback(new WriteCallback()
+            {
+                @Override
+                public void writeData(Attributes aWriteAttributes)
+                    throws IOException
+                {
+                    aWriteAttributes.getResponse().write(rendered.data);
+                }
+            });
         }
+        return response;
     }
 
+    @Override
+    protected byte[] getImageData(Attributes aAttributes)
+    {
+        return render().data;
+    }
+
+    private RenderedChart render()
+    {
+        RenderedChart rendered = CACHE.get(key);
+        if (rendered == null) {
+            try {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                ChartUtilities.writeChartAsPNG(bos, createChart(), width, height);
+                rendered = new RenderedChart(bos.toByteArray());
+            }
+            catch (IOException e) {
+                // Do not cache - maybe it works next time
+                return new RenderedChart(new byte[0]);
+            }
+            CACHE.put(key, rendered);
+        }
+        return rendered;
+    }
+
+    private static class RenderedChart
+    {
+        private final byte[] data;
+
+        // HTTP dates have a resolution of seconds
+        private final Time lastModified = Time.millis(System.currentTimeMillis() / 1000 * 1000);
+
+        public RenderedChart(byte[] aData)
+        {
+            data = aData;
+        }
+    }
 }
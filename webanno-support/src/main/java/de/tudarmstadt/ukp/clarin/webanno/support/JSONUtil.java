@@ -20,6 +20,7 @@ package de.tudarmstadt.ukp.clarin.webanno.support;
 import java.io.File;
 import java.io.IOException;
 import java.io.StringWriter;
+import java.io.Writer;
 
 import org.apache.commons.io.FileUtils;
 import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
@@ -73,6 +74,36 @@ public class JSONUtil
         return toPrettyJsonString(getJsonConverter(), aObject);
     }
     
+    /**
+     * Write the given object as compact JSON (without indentation) directly to the given writer.
+     * Use this instead of {@link #toPrettyJsonString(Object)} for large responses to avoid
+     * building intermediate strings.
+     *
+     * @param jsonConverter
+     *            the converter.
+     * @param aObject
+     *            the object.
+     * @param aOut
+     *            the writer.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    public static void writeJson(MappingJackson2HttpMessageConverter jsonConverter,
+            Object aObject, Writer aOut)
+        throws IOException
+    {
+        JsonGenerator jsonGenerator = jsonConverter.getObjectMapper().getFactory()
+                .createGenerator(aOut);
+        jsonGenerator.writeObject(aObject);
+        jsonGenerator.flush();
+    }
+
+    public static void writeJson(Object aObject, Writer aOut)
+        throws IOException
+    {
+        writeJson(getJsonConverter(), aObject, aOut);
+    }
+
     public static MappingJackson2HttpMessageConverter getJsonConverter()
     {
         return ApplicationContextProvider.getApplicationContext().getBean("jsonConverter",
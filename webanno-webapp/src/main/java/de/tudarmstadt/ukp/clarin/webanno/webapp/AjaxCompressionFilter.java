@@ -0,0 +1,232 @@
+/*******************************************************************************
+ * Copyright 2016
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.webapp;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Compresses the responses to Wicket AJAX requests using gzip if the browser supports it. These
+ * responses carry the brat rendering data and can become quite large. Other requests are passed
+ * through unchanged - static resources are typically already compressed by the container.
+ */
+public class AjaxCompressionFilter
+    implements Filter
+{
+    private static final String HEADER_WICKET_AJAX = "Wicket-Ajax";
+
+    @Override
+    public void init(FilterConfig filterConfig)
+        throws ServletException
+    {
+        // Do nothing
+    }
+
+    @Override
+    public void doFilter(ServletRequest req, ServletResponse resp, FilterChain chain)
+        throws IOException, ServletException
+    {
+        if (!(req instanceof HttpServletRequest) || !isCompressible((HttpServletRequest) req)) {
+            chain.doFilter(req, resp);
+            return;
+        }
+
+        HttpServletResponse httpResponse = (HttpServletResponse) resp;
+        httpResponse.addHeader("Vary", "Accept-Encoding");
+
+        GzipResponseWrapper wrapper = new GzipResponseWrapper(httpResponse);
+        try {
+            chain.doFilter(req, wrapper);
+        }
+        finally {
+            wrapper.finish();
+        }
+    }
+
+    private boolean isCompressible(HttpServletRequest aRequest)
+    {
+        String acceptEncoding = aRequest.getHeader("Accept-Encoding");
+        return "true".equals(aRequest.getHeader(HEADER_WICKET_AJAX)) && acceptEncoding != null
+                && acceptEncoding.contains("gzip");
+    }
+
+    @Override
+    public void destroy()
+    {
+        // Do nothing
+    }
+
+    private static class GzipResponseWrapper
+        extends HttpServletResponseWrapper
+    {
+        private GzipOutputStream stream;
+        private PrintWriter writer;
+
+        public GzipResponseWrapper(HttpServletResponse aResponse)
+        {
+            super(aResponse);
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream()
+            throws IOException
+        {
+            if (writer != null) {
+                throw new IllegalStateException("getWriter() has already been called");
+            }
+            if (stream == null) {
+                stream = createStream();
+            }
+            return stream;
+        }
+
+        @Override
+        public PrintWriter getWriter()
+            throws IOException
+        {
+            if (writer == null) {
+                if (stream != null) {
+                    throw new IllegalStateException("getOutputStream() has already been called");
+                }
+                stream = createStream();
+                writer = new PrintWriter(new OutputStreamWriter(stream,
+                        getResponse().getCharacterEncoding()));
+            }
+            return writer;
+        }
+
+        /**
+         * The encoding header is set when the body of the response is first requested via
+         * {@link #getOutputStream()} or {@link #getWriter()}. Thus, redirects or errors sent via
+         * {@code sendRedirect()} or {@code sendError()} do not carry it.
+         */
+        private GzipOutputStream createStream()
+            throws IOException
+        {
+            ((HttpServletResponse) getResponse()).setHeader("Content-Encoding", "gzip");
+            return new GzipOutputStream(getResponse().getOutputStream());
+        }
+
+        @Override
+        public void setContentLength(int aLength)
+        {
+            // The length of the compressed content is not known in advance
+        }
+
+        @Override
+        public void setHeader(String aName, String aValue)
+        {
+            if (!"Content-Length".equalsIgnoreCase(aName)) {
+                super.setHeader(aName, aValue);
+            }
+        }
+
+        @Override
+        public void addHeader(String aName, String aValue)
+        {
+            if (!"Content-Length".equalsIgnoreCase(aName)) {
+                super.addHeader(aName, aValue);
+            }
+        }
+
+        @Override
+        public void setIntHeader(String aName, int aValue)
+        {
+            if (!"Content-Length".equalsIgnoreCase(aName)) {
+                super.setIntHeader(aName, aValue);
+            }
+        }
+
+        @Override
+        public void flushBuffer()
+            throws IOException
+        {
+            if (writer != null) {
+                writer.flush();
+            }
+            if (stream != null) {
+                stream.flush();
+            }
+            super.flushBuffer();
+        }
+
+        public void finish()
+            throws IOException
+        {
+            if (writer != null) {
+                writer.close();
+            }
+            else if (stream != null) {
+                stream.close();
+            }
+        }
+    }
+
+    private static class GzipOutputStream
+        extends ServletOutputStream
+    {
+        private final GZIPOutputStream out;
+
+        public GzipOutputStream(ServletOutputStream aOut)
+            throws IOException
+        {
+            out = new GZIPOutputStream(aOut);
+        }
+
+        @Override
+        public void write(int aByte)
+            throws IOException
+        {
+            out.write(aByte);
+        }
+
+        @Override
+        public void write(byte[] aBuffer, int aOffset, int aLength)
+            throws IOException
+        {
+            out.write(aBuffer, aOffset, aLength);
+        }
+
+        @Override
+        public void flush()
+            throws IOException
+        {
+            out.flush();
+        }
+
+        @Override
+        public void close()
+            throws IOException
+        {
+            out.close();
+        }
+    }
+}
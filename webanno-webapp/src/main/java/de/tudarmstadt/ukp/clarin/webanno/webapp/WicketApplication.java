@@ -35,6 +35,7 @@ import org.apache.wicket.spring.injection.annot.SpringComponentInjector;
 import org.wicketstuff.annotation.scan.AnnotatedMountScanner;
 
 import de.tudarmstadt.ukp.clarin.webanno.brat.WebAnnoResources;
+import de.tudarmstadt.ukp.clarin.webanno.brat.resource.BratResourceBundle;
 import de.tudarmstadt.ukp.clarin.webanno.support.FileSystemResource;
 import de.tudarmstadt.ukp.clarin.webanno.webapp.home.page.SettingsUtil;
 import de.tudarmstadt.ukp.clarin.webanno.webapp.page.login.LoginPage;
@@ -74,6 +75,9 @@ public class WicketApplication
                     new CssResourceReference(WebAnnoResources.class, "client/css/style-vis.css"));
             mountResource("/style-ui.css",
                     new CssResourceReference(WebAnnoResources.class, "client/css/style-ui.css"));
+            // Serve the brat client scripts as one bundle instead of one request per script
+            BratResourceBundle.register(this);
+
             mountResource("/static/fonts/PT_Sans-Caption-Web-Regular.ttf",
                     new PackageResourceReference(WebAnnoResources.class, "fonts/PT_Sans-Caption-Web-Regular.ttf"));
             // For an unknown reason, this file doesn't load from the package... so still keeping
@@ -32,6 +32,7 @@ import org.springframework.security.core.context.SecurityContextHolder;
 import de.tudarmstadt.ukp.clarin.webanno.api.RepositoryService;
 import de.tudarmstadt.ukp.clarin.webanno.api.UserDao;
 import de.tudarmstadt.ukp.clarin.webanno.brat.annotation.BratAnnotatorModel;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.AgreementService;
 import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocument;
 import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocumentStateTransition;
 import de.tudarmstadt.ukp.clarin.webanno.model.Mode;
@@ -55,6 +56,9 @@ public class YesNoFinishModalPanel
     @SpringBean(name = "userRepository")
     private UserDao userRepository;
 
+    @SpringBean(name = "agreementService")
+    private AgreementService agreementService;
+
     private YesNoButtonsForm yesNoButtonsForm;
 
     private BratAnnotatorModel bModel;
@@ -107,7 +111,7 @@ public class YesNoFinishModalPanel
                         catch (IOException e) {
                             error("Unable to get the LOG file");
                         }
-
+                        agreementService.documentStateChanged(bModel.getDocument());
                     }
                     else {
                         if (bModel.getDocument().getState()
@@ -23,10 +23,8 @@ import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.
 import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.selectSentenceAt;
 
 import java.io.IOException;
-import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map.Entry;
 
 import org.apache.commons.lang.exception.ExceptionUtils;
 import org.apache.commons.logging.Log;
@@ -64,16 +62,11 @@ import de.tudarmstadt.ukp.clarin.webanno.brat.annotation.BratAnnotatorModel;
 import de.tudarmstadt.ukp.clarin.webanno.brat.annotation.component.AnnotationDetailEditorPanel;
 import de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil;
 import de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAnnotationException;
+import de.tudarmstadt.ukp.clarin.webanno.brat.controller.ConstraintsCache;
 import de.tudarmstadt.ukp.clarin.webanno.brat.project.PreferencesUtil;
-import de.tudarmstadt.ukp.clarin.webanno.constraints.grammar.ConstraintsGrammar;
-import de.tudarmstadt.ukp.clarin.webanno.constraints.grammar.ParseException;
-import de.tudarmstadt.ukp.clarin.webanno.constraints.grammar.syntaxtree.Parse;
 import de.tudarmstadt.ukp.clarin.webanno.constraints.model.ParsedConstraints;
-import de.tudarmstadt.ukp.clarin.webanno.constraints.model.Scope;
-import de.tudarmstadt.ukp.clarin.webanno.constraints.visitor.ParserVisitor;
 import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocument;
 import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocumentState;
-import de.tudarmstadt.ukp.clarin.webanno.model.ConstraintSet;
 import de.tudarmstadt.ukp.clarin.webanno.model.Mode;
 import de.tudarmstadt.ukp.clarin.webanno.model.Project;
 import de.tudarmstadt.ukp.clarin.webanno.model.ScriptDirection;
@@ -107,6 +100,9 @@ public class AnnotationPage
     @SpringBean(name = "documentRepository")
     private RepositoryService repository;
 
+    @SpringBean(name = "constraintsCache")
+    private ConstraintsCache constraintsCache;
+
     @SpringBean(name = "annotationService")
     private AnnotationService annotationService;
 
@@ -916,61 +912,14 @@ public class AnnotationPage
     private ParsedConstraints loadConstraints(AjaxRequestTarget aTarget, Project aProject)
         throws IOException
     {
-        ParsedConstraints merged = null;
-
-        for (ConstraintSet set : repository.listConstraintSets(aProject)) {
-            try {
-                String script = repository.readConstrainSet(set);
-                ConstraintsGrammar parser = new ConstraintsGrammar(new StringReader(script));
-                Parse p = parser.Parse();
-                ParsedConstraints constraints = p.accept(new ParserVisitor());
-
-                if (merged == null) {
-                    merged = constraints;
-                }
-                else {
-                    // Merge imports
-                    for(Entry<String,String> e: constraints.getImports().entrySet()){
-                        //Check if the value already points to some other feature in previous constraint file(s).
-                        if(merged.getImports().containsKey(e.getKey()) && !e.getValue().equalsIgnoreCase(merged.getImports().get(e.getKey()))){
-                            //If detected, notify user with proper message and abort merging
-                            StringBuffer errorMessage = new StringBuffer();
-                            errorMessage.append("Conflict detected in imports for key \"");
-                            errorMessage.append(e.getKey());
-                            errorMessage.append("\", conflicting values are \"");
-                            errorMessage.append(e.getValue());
-                            errorMessage.append("\" & \"");
-                            errorMessage.append(merged.getImports().get(e.getKey()));
-                            errorMessage.append("\". Please contact Project Admin for correcting this. Constraints feature may not work.");
-                            errorMessage.append("\nAborting Constraint rules merge!");
-                            LOG.error(errorMessage.toString());
-                            error(errorMessage.toString());
-                            break; 
-                        }
-                    }
-                    merged.getImports().putAll(constraints.getImports());
-
-                    // Merge scopes
-                    for (Scope scope : constraints.getScopes()) {
-                        Scope target = merged.getScopeByName(scope.getScopeName());
-                        if (target == null) {
-                            // Scope does not exist yet
-                            merged.getScopes().add(scope);
-                        }
-                        else {
-                            // Scope already exists
-                            target.getRules().addAll(scope.getRules());
-                        }
-                    }
-                }
-            }
-            catch (ParseException e) {
-                LOG.error("Error", e);
-                aTarget.addChildren(getPage(), FeedbackPanel.class);
-                error(e.getMessage());
-            }
+        List<String> errors = new ArrayList<>();
+        ParsedConstraints constraints = constraintsCache.getConstraints(aProject, errors);
+        for (String message : errors) {
+            error(message);
         }
-
-        return merged;
+        if (!errors.isEmpty()) {
+            aTarget.addChildren(getPage(), FeedbackPanel.class);
+        }
+        return constraints;
     }
 }
@@ -28,11 +28,9 @@ import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.
 import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.selectSentenceAt;
 
 import java.io.IOException;
-import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 
 import org.apache.commons.lang.exception.ExceptionUtils;
 import org.apache.commons.logging.Log;
@@ -65,19 +63,15 @@ import de.tudarmstadt.ukp.clarin.webanno.api.UserDao;
 import de.tudarmstadt.ukp.clarin.webanno.brat.annotation.BratAnnotatorModel;
 import de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil;
 import de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAnnotationException;
+import de.tudarmstadt.ukp.clarin.webanno.brat.controller.ConstraintsCache;
 import de.tudarmstadt.ukp.clarin.webanno.brat.curation.component.CurationPanel;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.component.model.CurationCasPool;
 import de.tudarmstadt.ukp.clarin.webanno.brat.curation.component.model.CurationContainer;
 import de.tudarmstadt.ukp.clarin.webanno.brat.curation.component.model.SuggestionBuilder;
 import de.tudarmstadt.ukp.clarin.webanno.brat.project.PreferencesUtil;
-import de.tudarmstadt.ukp.clarin.webanno.constraints.grammar.ConstraintsGrammar;
-import de.tudarmstadt.ukp.clarin.webanno.constraints.grammar.ParseException;
-import de.tudarmstadt.ukp.clarin.webanno.constraints.grammar.syntaxtree.Parse;
 import de.tudarmstadt.ukp.clarin.webanno.constraints.model.ParsedConstraints;
-import de.tudarmstadt.ukp.clarin.webanno.constraints.model.Scope;
-import de.tudarmstadt.ukp.clarin.webanno.constraints.visitor.ParserVisitor;
 import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocument;
 import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocumentState;
-import de.tudarmstadt.ukp.clarin.webanno.model.ConstraintSet;
 import de.tudarmstadt.ukp.clarin.webanno.model.Mode;
 import de.tudarmstadt.ukp.clarin.webanno.model.Project;
 import de.tudarmstadt.ukp.clarin.webanno.model.ScriptDirection;
@@ -116,6 +110,9 @@ public class CurationPage
     @SpringBean(name = "documentRepository")
     private RepositoryService repository;
 
+    @SpringBean(name = "constraintsCache")
+    private ConstraintsCache constraintsCache;
+
     @SpringBean(name = "annotationService")
     private AnnotationService annotationService;
 
@@ -124,6 +121,12 @@ public class CurationPage
 
     private ReMergeCasModel reMerge;
     private CurationContainer curationContainer;
+
+    /**
+     * The CASes of the document being curated - created lazily since the page may be restored
+     * from the page store.
+     */
+    private transient CurationCasPool casPool;
     private BratAnnotatorModel bModel;
 
     private int gotoPageAddress;
@@ -1015,7 +1018,7 @@ public class CurationPage
             }
 
             SuggestionBuilder cb = new SuggestionBuilder(repository, annotationService,
-                    userRepository);
+                    userRepository, getCasPool());
             AnnotationDocument randomAnnotationDocument = null;
             if (finishedAnnotationDocuments.size() > 0) {
                 randomAnnotationDocument = finishedAnnotationDocuments.get(0);
@@ -1044,7 +1047,7 @@ public class CurationPage
             currentprojectId = bModel.getProject().getId();
 
             SuggestionBuilder builder = new SuggestionBuilder(repository, annotationService,
-                    userRepository);
+                    userRepository, getCasPool());
             curationContainer = builder.buildCurationContainer(bModel);
             curationContainer.setBratAnnotatorModel(bModel);
             curationPanel.updatePanel(aTarget, curationContainer);
@@ -1059,67 +1062,25 @@ public class CurationPage
         aTarget.add(showreCreateMergeCasModal);
     }
     
+    private CurationCasPool getCasPool()
+    {
+        if (casPool == null) {
+            casPool = new CurationCasPool(repository);
+        }
+        return casPool;
+    }
+
     private ParsedConstraints loadConstraints(AjaxRequestTarget aTarget, Project aProject)
         throws IOException
     {
-        ParsedConstraints merged = null;
-
-        for (ConstraintSet set : repository.listConstraintSets(aProject)) {
-            try {
-                String script = repository.readConstrainSet(set);
-                ConstraintsGrammar parser = new ConstraintsGrammar(new StringReader(script));
-                Parse p = parser.Parse();
-                ParsedConstraints constraints = p.accept(new ParserVisitor());
-
-                if (merged == null) {
-                    merged = constraints;
-                }
-                else {
-                    // Merge imports
-                    for (Entry<String, String> e : constraints.getImports().entrySet()) {
-                        // Check if the value already points to some other feature in previous
-                        // constraint file(s).
-                        if (merged.getImports().containsKey(e.getKey()) && !e.getValue()
-                                .equalsIgnoreCase(merged.getImports().get(e.getKey()))) {
-                            // If detected, notify user with proper message and abort merging
-                            StringBuffer errorMessage = new StringBuffer();
-                            errorMessage.append("Conflict detected in imports for key \"");
-                            errorMessage.append(e.getKey());
-                            errorMessage.append("\", conflicting values are \"");
-                            errorMessage.append(e.getValue());
-                            errorMessage.append("\" & \"");
-                            errorMessage.append(merged.getImports().get(e.getKey()));
-                            errorMessage.append(
-                                    "\". Please contact Project Admin for correcting this. Constraints feature may not work.");
-                            errorMessage.append("\nAborting Constraint rules merge!");
-//                            LOG.error(errorMessage.toString());
-                            error(errorMessage.toString());
-                            break;
-                        }
-                    }
-                    merged.getImports().putAll(constraints.getImports());
-
-                    // Merge scopes
-                    for (Scope scope : constraints.getScopes()) {
-                        Scope target = merged.getScopeByName(scope.getScopeName());
-                        if (target == null) {
-                            // Scope does not exist yet
-                            merged.getScopes().add(scope);
-                        }
-                        else {
-                            // Scope already exists
-                            target.getRules().addAll(scope.getRules());
-                        }
-                    }
-                }
-            }
-            catch (ParseException e) {
-//                LOG.error("Error", e);
-                aTarget.addChildren(getPage(), FeedbackPanel.class);
-                error(e.getMessage());
-            }
+        List<String> errors = new ArrayList<>();
+        ParsedConstraints constraints = constraintsCache.getConstraints(aProject, errors);
+        for (String message : errors) {
+            error(message);
         }
-
-        return merged;
+        if (!errors.isEmpty()) {
+            aTarget.addChildren(getPage(), FeedbackPanel.class);
+        }
+        return constraints;
     }
 }